@@ -0,0 +1,230 @@
+package com.redhat.sso.cache;
+
+import com.redhat.sso.config.EvictionPolicy;
+
+import javax.naming.NamingException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Size-bounded cache whose entries expire after a fixed time to live.
+ * When the cache is full the victim is chosen according to the configured {@link EvictionPolicy}.
+ * A cache built with a max size or a TTL lower or equal to 0 is disabled: every lookup is a miss and nothing is stored.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BoundedCache<K, V> {
+
+    @FunctionalInterface
+    public interface Loader<V> {
+
+        V load() throws NamingException;
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private final long expiresAt;
+        private long frequency = 1;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final String name;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final EvictionPolicy evictionPolicy;
+    private final LongSupplier ticker;
+
+    // access ordered: the eldest entry is the least recently used one
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // LFU only: keys grouped by access frequency, each group in insertion order
+    private final Map<Long, LinkedHashSet<K>> frequencies = new HashMap<>();
+    private long minFrequency = 1;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+
+    public BoundedCache(String name, int maxSize, long ttlMillis, EvictionPolicy evictionPolicy) {
+
+        this(name, maxSize, ttlMillis, evictionPolicy, System::nanoTime);
+    }
+
+    BoundedCache(String name, int maxSize, long ttlMillis, EvictionPolicy evictionPolicy, LongSupplier ticker) {
+
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.evictionPolicy = Optional.ofNullable(evictionPolicy).orElse(EvictionPolicy.LRU);
+        this.ticker = ticker;
+    }
+
+    public boolean isEnabled() {
+
+        return maxSize > 0 && ttlNanos > 0;
+    }
+
+    public String getName() {
+
+        return name;
+    }
+
+    /**
+     * Return the cached value, or null when the key is not cached or its entry is expired
+     */
+    public V getIfPresent(K key) {
+
+        if (!isEnabled()) {
+            return null;
+        }
+
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                missCount.increment();
+                return null;
+            }
+            if (entry.expiresAt - ticker.getAsLong() <= 0) {
+                remove(key);
+                expirationCount.increment();
+                missCount.increment();
+                return null;
+            }
+            touch(key, entry);
+            hitCount.increment();
+            return entry.value;
+        }
+    }
+
+    /**
+     * Return the cached value or load it with the given loader and cache it.
+     * Loader failures are not cached and are propagated to the caller.
+     */
+    public V get(K key, Loader<V> loader) throws NamingException {
+
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        long start = ticker.getAsLong();
+        try {
+            value = loader.load();
+            loadSuccessCount.increment();
+        } catch (NamingException | RuntimeException e) {
+            loadFailureCount.increment();
+            throw e;
+        } finally {
+            totalLoadTime.add(ticker.getAsLong() - start);
+        }
+
+        put(key, value);
+        return value;
+    }
+
+    public void put(K key, V value) {
+
+        if (!isEnabled() || value == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (entries.containsKey(key)) {
+                remove(key);
+            } else if (entries.size() >= maxSize) {
+                evict();
+            }
+            entries.put(key, new Entry<>(value, ticker.getAsLong() + ttlNanos));
+            if (evictionPolicy == EvictionPolicy.LFU) {
+                frequencies.computeIfAbsent(1L, f -> new LinkedHashSet<>()).add(key);
+                minFrequency = 1;
+            }
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+
+        remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+
+        entries.clear();
+        frequencies.clear();
+        minFrequency = 1;
+    }
+
+    public synchronized int size() {
+
+        return entries.size();
+    }
+
+    public CacheStats stats() {
+
+        return new CacheStats(name, size(), hitCount.sum(), missCount.sum(), evictionCount.sum(), expirationCount.sum(),
+            loadSuccessCount.sum(), loadFailureCount.sum(), totalLoadTime.sum());
+    }
+
+    private void touch(K key, Entry<V> entry) {
+
+        if (evictionPolicy != EvictionPolicy.LFU) {
+            return;
+        }
+        LinkedHashSet<K> keys = frequencies.get(entry.frequency);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            frequencies.remove(entry.frequency);
+            if (minFrequency == entry.frequency) {
+                minFrequency++;
+            }
+        }
+        entry.frequency++;
+        frequencies.computeIfAbsent(entry.frequency, f -> new LinkedHashSet<>()).add(key);
+    }
+
+    private void remove(K key) {
+
+        Entry<V> entry = entries.remove(key);
+        if (entry == null || evictionPolicy != EvictionPolicy.LFU) {
+            return;
+        }
+        LinkedHashSet<K> keys = frequencies.get(entry.frequency);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            frequencies.remove(entry.frequency);
+        }
+    }
+
+    private void evict() {
+
+        K victim;
+        if (evictionPolicy == EvictionPolicy.LFU) {
+            LinkedHashSet<K> keys = frequencies.get(minFrequency);
+            if (keys == null) {
+                // the least frequent group was emptied by an expiration or an invalidation
+                minFrequency = frequencies.keySet().stream().min(Long::compare).orElse(1L);
+                keys = frequencies.get(minFrequency);
+            }
+            victim = keys.iterator().next();
+        } else {
+            victim = entries.keySet().iterator().next();
+        }
+        remove(victim);
+        evictionCount.increment();
+    }
+}
@@ -0,0 +1,88 @@
+package com.redhat.sso.cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time snapshot of the statistics of a {@link BoundedCache}
+ */
+public class CacheStats {
+
+    private final String name;
+    private final int size;
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long expirationCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTimeNanos;
+
+    public CacheStats(String name, int size, long hitCount, long missCount, long evictionCount, long expirationCount,
+        long loadSuccessCount, long loadFailureCount, long totalLoadTimeNanos) {
+
+        this.name = name;
+        this.size = size;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.expirationCount = expirationCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getExpirationCount() {
+        return expirationCount;
+    }
+
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    public long getTotalLoadTimeNanos() {
+        return totalLoadTimeNanos;
+    }
+
+    public double getHitRate() {
+
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    public double getAverageLoadTimeMillis() {
+
+        long loadCount = loadSuccessCount + loadFailureCount;
+        return loadCount == 0 ? 0.0 : (double) TimeUnit.NANOSECONDS.toMicros(totalLoadTimeNanos) / loadCount / 1000;
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("%s[size=%d, hits=%d, misses=%d, hitRate=%.2f, evictions=%d, expirations=%d, loadSuccess=%d, loadFailure=%d, avgLoadTime=%.2f ms]",
+            name, size, hitCount, missCount, getHitRate(), evictionCount, expirationCount, loadSuccessCount, loadFailureCount, getAverageLoadTimeMillis());
+    }
+}
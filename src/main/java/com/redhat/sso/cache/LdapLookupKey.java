@@ -0,0 +1,75 @@
+package com.redhat.sso.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Identify a user lookup on the external LDAP: the search base, the attribute used as username filter, the username
+ * and the LDAP attributes read, empty when all the mapped attributes are read
+ */
+public final class LdapLookupKey {
+
+    private final String usersDN;
+    private final String usernameFilter;
+    private final String username;
+    private final Set<String> attributes;
+
+    public LdapLookupKey(String usersDN, String usernameFilter, String username) {
+
+        this(usersDN, usernameFilter, username, Collections.emptySet());
+    }
+
+    public LdapLookupKey(String usersDN, String usernameFilter, String username, Collection<String> attributes) {
+
+        this.usersDN = usersDN;
+        this.usernameFilter = usernameFilter;
+        this.username = username;
+        this.attributes = Collections.unmodifiableSet(new TreeSet<>(attributes));
+    }
+
+    public String getUsersDN() {
+        return usersDN;
+    }
+
+    public String getUsernameFilter() {
+        return usernameFilter;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Set<String> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LdapLookupKey)) {
+            return false;
+        }
+        LdapLookupKey that = (LdapLookupKey) o;
+        return Objects.equals(usersDN, that.usersDN) && Objects.equals(usernameFilter, that.usernameFilter)
+            && Objects.equals(username, that.username) && attributes.equals(that.attributes);
+    }
+
+    @Override
+    public int hashCode() {
+
+        return Objects.hash(usersDN, usernameFilter, username, attributes);
+    }
+
+    @Override
+    public String toString() {
+
+        String lookup = String.format("(%s=%s),%s", usernameFilter, username, usersDN);
+        return attributes.isEmpty() ? lookup : lookup + attributes;
+    }
+}
@@ -0,0 +1,31 @@
+package com.redhat.sso.cache;
+
+import org.keycloak.models.KeycloakSession;
+
+import javax.naming.NamingException;
+
+/**
+ * Memoization of a lookup in the attributes of the KeycloakSession, for the lifetime of the request:
+ * the token mappers building the tokens of a request and the event listener running in the same session
+ * share the result of a single lookup. A failed lookup is not memoized.
+ */
+public final class RequestScopedMemo {
+
+    private static final String ATTRIBUTE_PREFIX = RequestScopedMemo.class.getName() + ":";
+
+    private RequestScopedMemo() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> V get(KeycloakSession session, String key, BoundedCache.Loader<V> loader) throws NamingException {
+
+        String attribute = ATTRIBUTE_PREFIX + key;
+        V memoized = (V) session.getAttribute(attribute);
+        if (memoized != null) {
+            return memoized;
+        }
+        V value = loader.load();
+        session.setAttribute(attribute, value);
+        return value;
+    }
+}
@@ -0,0 +1,110 @@
+package com.redhat.sso.cache;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesce concurrent loads of the same key: the first caller (the leader) runs the loader,
+ * the callers arriving while the load is in flight (the followers) wait for its outcome, value or exception.
+ * Followers wait at most the configured timeout, then fail with a {@link TimeLimitExceededException}.
+ * A timeout lower or equal to 0 disables the coalescing: every caller runs its own load.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+
+    private final LongAdder executionCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+
+    public SingleFlight(long timeoutMillis) {
+
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public V execute(K key, BoundedCache.Loader<V> loader) throws NamingException {
+
+        if (timeoutMillis <= 0) {
+            executionCount.increment();
+            return loader.load();
+        }
+
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> leaderCall = inFlight.putIfAbsent(key, call);
+        if (leaderCall != null) {
+            coalescedCount.increment();
+            return await(key, leaderCall);
+        }
+
+        executionCount.increment();
+        try {
+            V value = loader.load();
+            call.complete(value);
+            return value;
+        } catch (NamingException | RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    private V await(K key, CompletableFuture<V> leaderCall) throws NamingException {
+
+        try {
+            return leaderCall.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeoutCount.increment();
+            throw new TimeLimitExceededException(String.format("Timed out after %d ms waiting for the in-flight search of %s", timeoutMillis, key));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException(String.format("Interrupted while waiting for the in-flight search of %s", key));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NamingException) {
+                throw (NamingException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getExecutionCount() {
+        return executionCount.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("single-flight[inFlight=%d, executions=%d, coalesced=%d, timeouts=%d]",
+            getInFlightCount(), getExecutionCount(), getCoalescedCount(), getTimeoutCount());
+    }
+}
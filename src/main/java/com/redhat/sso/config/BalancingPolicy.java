@@ -0,0 +1,28 @@
+package com.redhat.sso.config;
+
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Order in which the healthy LDAP servers are tried by a search
+ */
+public enum BalancingPolicy {
+    /**
+     * Servers in the configured order: the first healthy server gets all the searches
+     */
+    FAILOVER,
+    /**
+     * Searches spread over the healthy servers in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * Faster of two healthy servers picked at random first, by exponentially weighted moving average of the search latency
+     */
+    EWMA;
+
+    public static BalancingPolicy parse(String value) {
+
+        return Optional.ofNullable(value).map(v -> BalancingPolicy.valueOf(v.trim().toUpperCase(Locale.ROOT))).orElse(FAILOVER);
+    }
+}
+
@@ -0,0 +1,17 @@
+package com.redhat.sso.config;
+
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Choice of the victim when a {@code BoundedCache} is full
+ */
+public enum EvictionPolicy {
+    LRU, LFU;
+
+    public static EvictionPolicy parse(String value) {
+
+        return Optional.ofNullable(value).map(v -> EvictionPolicy.valueOf(v.trim().toUpperCase(Locale.ROOT))).orElse(LRU);
+    }
+}
+
@@ -0,0 +1,95 @@
+package com.redhat.sso.config;
+
+import java.util.Objects;
+
+/**
+ * Sizes and timeouts of the LDAP connection pool
+ */
+public class LdapPoolSettings {
+
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+
+    public LdapPoolSettings(int minSize, int maxSize, long idleTimeoutMillis, long borrowTimeoutMillis, long validationIntervalMillis) {
+
+        this(minSize, maxSize, idleTimeoutMillis, borrowTimeoutMillis, validationIntervalMillis, 10000, 10000);
+    }
+
+    /**
+     * @param minSize                  idle connections kept open for every server
+     * @param maxSize                  max connections in use at the same time for every server
+     * @param idleTimeoutMillis        idle time after which a connection is closed (0 never closes idle connections)
+     * @param borrowTimeoutMillis      max wait for a connection when all the connections of a server are in use
+     * @param validationIntervalMillis idle time after which a connection is validated before being borrowed (0 always validates)
+     * @param connectTimeoutMillis     max wait for a new connection to a server
+     * @param readTimeoutMillis        max wait for the response of a server
+     */
+    public LdapPoolSettings(int minSize, int maxSize, long idleTimeoutMillis, long borrowTimeoutMillis, long validationIntervalMillis,
+        long connectTimeoutMillis, long readTimeoutMillis) {
+
+        this.minSize = Math.max(0, minSize);
+        this.maxSize = Math.max(1, maxSize);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public static LdapPoolSettings defaults() {
+        return new LdapPoolSettings(0, 20, 300000, 5000, 30000);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        LdapPoolSettings that = (LdapPoolSettings) o;
+        return minSize == that.minSize && maxSize == that.maxSize && idleTimeoutMillis == that.idleTimeoutMillis
+            && borrowTimeoutMillis == that.borrowTimeoutMillis && validationIntervalMillis == that.validationIntervalMillis
+            && connectTimeoutMillis == that.connectTimeoutMillis && readTimeoutMillis == that.readTimeoutMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minSize, maxSize, idleTimeoutMillis, borrowTimeoutMillis, validationIntervalMillis, connectTimeoutMillis, readTimeoutMillis);
+    }
+}
@@ -0,0 +1,28 @@
+package com.redhat.sso.config;
+
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Handling of an event update when the queue of the asynchronous event processor is full
+ */
+public enum OverflowPolicy {
+    /**
+     * The event is discarded: the user is updated at the next login
+     */
+    DROP,
+    /**
+     * The request thread waits for a free slot in the queue
+     */
+    BLOCK,
+    /**
+     * The request thread updates the user itself
+     */
+    CALLER_RUNS;
+
+    public static OverflowPolicy parse(String value) {
+
+        return Optional.ofNullable(value).map(v -> OverflowPolicy.valueOf(v.trim().toUpperCase(Locale.ROOT).replace('-', '_'))).orElse(CALLER_RUNS);
+    }
+}
+
@@ -1,10 +1,18 @@
 package com.redhat.sso.config;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class ProviderConfig {
@@ -17,8 +25,98 @@ public class ProviderConfig {
     public static final String EXTERNAL_LDAP_USERS_DN = "EXTERNAL_LDAP_USERS_DN";
     public static final String EXTERNAL_LDAP_ATTRIBUTE_MAP = "EXTERNAL_LDAP_ATTRIBUTE_MAP";
     public static final String EXTERNAL_LDAP_USERNAME_FILTER = "EXTERNAL_LDAP_USERNAME_FILTER";
+    public static final String EXTERNAL_LDAP_CACHE_MAX_SIZE = "EXTERNAL_LDAP_CACHE_MAX_SIZE";
+    public static final String EXTERNAL_LDAP_CACHE_TTL_MILLIS = "EXTERNAL_LDAP_CACHE_TTL_MILLIS";
+    public static final String EXTERNAL_LDAP_CACHE_EVICTION_POLICY = "EXTERNAL_LDAP_CACHE_EVICTION_POLICY";
+    public static final String EXTERNAL_LDAP_NEGATIVE_CACHE_MAX_SIZE = "EXTERNAL_LDAP_NEGATIVE_CACHE_MAX_SIZE";
+    public static final String EXTERNAL_LDAP_NEGATIVE_CACHE_TTL_MILLIS = "EXTERNAL_LDAP_NEGATIVE_CACHE_TTL_MILLIS";
+    public static final String EXTERNAL_LDAP_SINGLE_FLIGHT_TIMEOUT_MILLIS = "EXTERNAL_LDAP_SINGLE_FLIGHT_TIMEOUT_MILLIS";
+    public static final String EXTERNAL_LDAP_POOL_MIN_SIZE = "EXTERNAL_LDAP_POOL_MIN_SIZE";
+    public static final String EXTERNAL_LDAP_POOL_MAX_SIZE = "EXTERNAL_LDAP_POOL_MAX_SIZE";
+    public static final String EXTERNAL_LDAP_POOL_IDLE_TIMEOUT_MILLIS = "EXTERNAL_LDAP_POOL_IDLE_TIMEOUT_MILLIS";
+    public static final String EXTERNAL_LDAP_POOL_BORROW_TIMEOUT_MILLIS = "EXTERNAL_LDAP_POOL_BORROW_TIMEOUT_MILLIS";
+    public static final String EXTERNAL_LDAP_POOL_VALIDATION_INTERVAL_MILLIS = "EXTERNAL_LDAP_POOL_VALIDATION_INTERVAL_MILLIS";
+    public static final String EXTERNAL_LDAP_CONNECT_TIMEOUT_MILLIS = "EXTERNAL_LDAP_CONNECT_TIMEOUT_MILLIS";
+    public static final String EXTERNAL_LDAP_READ_TIMEOUT_MILLIS = "EXTERNAL_LDAP_READ_TIMEOUT_MILLIS";
+    public static final String EXTERNAL_LDAP_USER_DN_TEMPLATE = "EXTERNAL_LDAP_USER_DN_TEMPLATE";
+    public static final String EXTERNAL_LDAP_DN_CACHE_MAX_SIZE = "EXTERNAL_LDAP_DN_CACHE_MAX_SIZE";
+    public static final String EXTERNAL_LDAP_DN_CACHE_TTL_MILLIS = "EXTERNAL_LDAP_DN_CACHE_TTL_MILLIS";
+    public static final String EXTERNAL_LDAP_HEDGING_ENABLED = "EXTERNAL_LDAP_HEDGING_ENABLED";
+    public static final String EXTERNAL_LDAP_HEDGING_PERCENTILE = "EXTERNAL_LDAP_HEDGING_PERCENTILE";
+    public static final String EXTERNAL_LDAP_HEDGING_MIN_DELAY_MILLIS = "EXTERNAL_LDAP_HEDGING_MIN_DELAY_MILLIS";
+    public static final String EXTERNAL_LDAP_HEDGING_INITIAL_DELAY_MILLIS = "EXTERNAL_LDAP_HEDGING_INITIAL_DELAY_MILLIS";
+    public static final String EXTERNAL_LDAP_BALANCING_POLICY = "EXTERNAL_LDAP_BALANCING_POLICY";
+    public static final String EXTERNAL_LDAP_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "EXTERNAL_LDAP_CIRCUIT_BREAKER_FAILURE_THRESHOLD";
+    public static final String EXTERNAL_LDAP_CIRCUIT_BREAKER_PROBE_INTERVAL_MILLIS = "EXTERNAL_LDAP_CIRCUIT_BREAKER_PROBE_INTERVAL_MILLIS";
+    public static final String EXTERNAL_LDAP_ASYNC_THREADS = "EXTERNAL_LDAP_ASYNC_THREADS";
+    public static final String EXTERNAL_LDAP_ASYNC_QUEUE_SIZE = "EXTERNAL_LDAP_ASYNC_QUEUE_SIZE";
+    public static final String EXTERNAL_LDAP_ASYNC_TIMEOUT_MILLIS = "EXTERNAL_LDAP_ASYNC_TIMEOUT_MILLIS";
+    public static final String EXTERNAL_LDAP_EVENT_ASYNC_ENABLED = "EXTERNAL_LDAP_EVENT_ASYNC_ENABLED";
+    public static final String EXTERNAL_LDAP_EVENT_WORKERS = "EXTERNAL_LDAP_EVENT_WORKERS";
+    public static final String EXTERNAL_LDAP_EVENT_QUEUE_CAPACITY = "EXTERNAL_LDAP_EVENT_QUEUE_CAPACITY";
+    public static final String EXTERNAL_LDAP_EVENT_OVERFLOW_POLICY = "EXTERNAL_LDAP_EVENT_OVERFLOW_POLICY";
+    public static final String EXTERNAL_LDAP_EVENT_DRAIN_TIMEOUT_MILLIS = "EXTERNAL_LDAP_EVENT_DRAIN_TIMEOUT_MILLIS";
+    public static final String EXTERNAL_LDAP_EVENT_BATCH_SIZE = "EXTERNAL_LDAP_EVENT_BATCH_SIZE";
+    public static final String EXTERNAL_LDAP_EVENT_BATCH_WINDOW_MILLIS = "EXTERNAL_LDAP_EVENT_BATCH_WINDOW_MILLIS";
+    public static final String EXTERNAL_LDAP_MIN_RESYNC_INTERVAL_MILLIS = "EXTERNAL_LDAP_MIN_RESYNC_INTERVAL_MILLIS";
+    public static final String EXTERNAL_LDAP_RESYNC_MARKER_MAX_SIZE = "EXTERNAL_LDAP_RESYNC_MARKER_MAX_SIZE";
+    public static final String EXTERNAL_LDAP_JOURNAL_PATH = "EXTERNAL_LDAP_JOURNAL_PATH";
+    public static final String EXTERNAL_LDAP_JOURNAL_CAPACITY_BYTES = "EXTERNAL_LDAP_JOURNAL_CAPACITY_BYTES";
+    public static final String EXTERNAL_LDAP_JOURNAL_REPLAY_THREADS = "EXTERNAL_LDAP_JOURNAL_REPLAY_THREADS";
+    public static final String EXTERNAL_LDAP_JOURNAL_REPLAY_INTERVAL_MILLIS = "EXTERNAL_LDAP_JOURNAL_REPLAY_INTERVAL_MILLIS";
+    public static final String EXTERNAL_LDAP_JOURNAL_FORCE_INTERVAL_MILLIS = "EXTERNAL_LDAP_JOURNAL_FORCE_INTERVAL_MILLIS";
+    public static final String EXTERNAL_LDAP_RECONCILIATION_INTERVAL_MILLIS = "EXTERNAL_LDAP_RECONCILIATION_INTERVAL_MILLIS";
+    public static final String EXTERNAL_LDAP_RECONCILIATION_REALMS = "EXTERNAL_LDAP_RECONCILIATION_REALMS";
+    public static final String EXTERNAL_LDAP_RECONCILIATION_PAGE_SIZE = "EXTERNAL_LDAP_RECONCILIATION_PAGE_SIZE";
+    public static final String EXTERNAL_LDAP_RECONCILIATION_CHUNK_SIZE = "EXTERNAL_LDAP_RECONCILIATION_CHUNK_SIZE";
+    public static final String EXTERNAL_LDAP_RECONCILIATION_WORKERS = "EXTERNAL_LDAP_RECONCILIATION_WORKERS";
+    public static final String EXTERNAL_LDAP_RECONCILIATION_MAX_USERS_PER_SECOND = "EXTERNAL_LDAP_RECONCILIATION_MAX_USERS_PER_SECOND";
+    public static final String EXTERNAL_LDAP_RECONCILIATION_LOCK_TIMEOUT_MILLIS = "EXTERNAL_LDAP_RECONCILIATION_LOCK_TIMEOUT_MILLIS";
+    public static final String EXTERNAL_LDAP_LOCAL_CLAIMS_MAX_AGE_MILLIS = "EXTERNAL_LDAP_LOCAL_CLAIMS_MAX_AGE_MILLIS";
+    public static final String EXTERNAL_LDAP_MAPPER_BUDGET_MILLIS = "EXTERNAL_LDAP_MAPPER_BUDGET_MILLIS";
+    public static final String EXTERNAL_LDAP_CONFIG_FILE = "EXTERNAL_LDAP_CONFIG_FILE";
+    public static final String EXTERNAL_LDAP_CONFIG_FILE_POLL_INTERVAL_MILLIS = "EXTERNAL_LDAP_CONFIG_FILE_POLL_INTERVAL_MILLIS";
+    public static final String EXTERNAL_LDAP_STATISTICS_LOG_INTERVAL_MILLIS = "EXTERNAL_LDAP_STATISTICS_LOG_INTERVAL_MILLIS";
+    public static final String EXTERNAL_LDAP_REALM_ISOLATION_ENABLED = "EXTERNAL_LDAP_REALM_ISOLATION_ENABLED";
+    public static final String EXTERNAL_LDAP_MAPPER_MAX_CONCURRENT = "EXTERNAL_LDAP_MAPPER_MAX_CONCURRENT";
+    public static final String EXTERNAL_LDAP_MAPPER_MAX_QUEUED = "EXTERNAL_LDAP_MAPPER_MAX_QUEUED";
+    public static final String EXTERNAL_LDAP_LISTENER_MAX_CONCURRENT = "EXTERNAL_LDAP_LISTENER_MAX_CONCURRENT";
+    public static final String EXTERNAL_LDAP_LISTENER_MAX_QUEUED = "EXTERNAL_LDAP_LISTENER_MAX_QUEUED";
+    public static final String EXTERNAL_LDAP_BULKHEAD_MAX_WAIT_MILLIS = "EXTERNAL_LDAP_BULKHEAD_MAX_WAIT_MILLIS";
+    public static final String EXTERNAL_LDAP_PRIORITY_DISPATCH_ENABLED = "EXTERNAL_LDAP_PRIORITY_DISPATCH_ENABLED";
+    public static final String EXTERNAL_LDAP_MAPPER_RESERVED_SLOTS = "EXTERNAL_LDAP_MAPPER_RESERVED_SLOTS";
 
     private static final String ENV_NOT_PRESENT_ERROR = "The environment variable %s is mandatory but is not present";
+    private static final String ENV_NOT_VALID_ERROR = "The environment variable %s has an invalid value: %s";
+
+    /**
+     * Settings read at startup only, by the event listener factory and the subsystem: a reload doesn't apply them.
+     * All the other settings are applied by a reload of the configuration file.
+     */
+    public static final List<String> STARTUP_ONLY_SETTINGS = Collections.unmodifiableList(Arrays.asList(
+        EXTERNAL_LDAP_FEDERATION_EVENT_LISTENER_ENABLED,
+        EXTERNAL_LDAP_EVENT_ASYNC_ENABLED,
+        EXTERNAL_LDAP_EVENT_WORKERS,
+        EXTERNAL_LDAP_EVENT_QUEUE_CAPACITY,
+        EXTERNAL_LDAP_EVENT_OVERFLOW_POLICY,
+        EXTERNAL_LDAP_EVENT_DRAIN_TIMEOUT_MILLIS,
+        EXTERNAL_LDAP_EVENT_BATCH_SIZE,
+        EXTERNAL_LDAP_EVENT_BATCH_WINDOW_MILLIS,
+        EXTERNAL_LDAP_JOURNAL_PATH,
+        EXTERNAL_LDAP_JOURNAL_CAPACITY_BYTES,
+        EXTERNAL_LDAP_JOURNAL_REPLAY_THREADS,
+        EXTERNAL_LDAP_JOURNAL_REPLAY_INTERVAL_MILLIS,
+        EXTERNAL_LDAP_JOURNAL_FORCE_INTERVAL_MILLIS,
+        EXTERNAL_LDAP_RECONCILIATION_INTERVAL_MILLIS,
+        EXTERNAL_LDAP_RECONCILIATION_REALMS,
+        EXTERNAL_LDAP_RECONCILIATION_PAGE_SIZE,
+        EXTERNAL_LDAP_RECONCILIATION_CHUNK_SIZE,
+        EXTERNAL_LDAP_RECONCILIATION_WORKERS,
+        EXTERNAL_LDAP_RECONCILIATION_MAX_USERS_PER_SECOND,
+        EXTERNAL_LDAP_RECONCILIATION_LOCK_TIMEOUT_MILLIS,
+        EXTERNAL_LDAP_CONFIG_FILE,
+        EXTERNAL_LDAP_CONFIG_FILE_POLL_INTERVAL_MILLIS,
+        EXTERNAL_LDAP_STATISTICS_LOG_INTERVAL_MILLIS));
 
     private final boolean eventListenerEnabled;
     private final boolean mapperEnabled;
@@ -28,21 +126,106 @@ public class ProviderConfig {
     private final String usersDN;
     private final Map<String, String> externalAttributes;
     private final String externalUsernameFilter;
+    private final int cacheMaxSize;
+    private final long cacheTtlMillis;
+    private final EvictionPolicy cacheEvictionPolicy;
+    private final int negativeCacheMaxSize;
+    private final long negativeCacheTtlMillis;
+    private final long singleFlightTimeoutMillis;
+    private final LdapPoolSettings poolSettings;
+    private final String userDnTemplate;
+    private final int dnCacheMaxSize;
+    private final long dnCacheTtlMillis;
+    private final boolean hedgingEnabled;
+    private final double hedgingPercentile;
+    private final long hedgingMinDelayMillis;
+    private final long hedgingInitialDelayMillis;
+    private final BalancingPolicy balancingPolicy;
+    private final int circuitBreakerFailureThreshold;
+    private final long circuitBreakerProbeIntervalMillis;
+    private final int asyncThreads;
+    private final int asyncQueueSize;
+    private final long asyncTimeoutMillis;
+    private final boolean eventAsyncEnabled;
+    private final int eventWorkers;
+    private final int eventQueueCapacity;
+    private final OverflowPolicy eventOverflowPolicy;
+    private final long eventDrainTimeoutMillis;
+    private final int eventBatchSize;
+    private final long eventBatchWindowMillis;
+    private final long minResyncIntervalMillis;
+    private final int resyncMarkerMaxSize;
+    private final String journalPath;
+    private final int journalCapacityBytes;
+    private final int journalReplayThreads;
+    private final long journalReplayIntervalMillis;
+    private final long journalForceIntervalMillis;
+    private final long reconciliationIntervalMillis;
+    private final List<String> reconciliationRealms;
+    private final int reconciliationPageSize;
+    private final int reconciliationChunkSize;
+    private final int reconciliationWorkers;
+    private final int reconciliationMaxUsersPerSecond;
+    private final long reconciliationLockTimeoutMillis;
+    private final long localClaimsMaxAgeMillis;
+    private final long mapperBudgetMillis;
+    private final String configFile;
+    private final long configFilePollIntervalMillis;
+    private final long statisticsLogIntervalMillis;
+    private final boolean realmIsolationEnabled;
+    private final int mapperMaxConcurrent;
+    private final int mapperMaxQueued;
+    private final int listenerMaxConcurrent;
+    private final int listenerMaxQueued;
+    private final long bulkheadMaxWaitMillis;
+    private final boolean priorityDispatchEnabled;
+    private final int mapperReservedSlots;
 
     public ProviderConfig() {
-        this(System.getenv(EXTERNAL_LDAP_FEDERATION_EVENT_LISTENER_ENABLED),
-            System.getenv(EXTERNAL_LDAP_FEDERATION_MAPPER_ENABLED),
-            System.getenv(EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS),
-            System.getenv(EXTERNAL_LDAP_SECURITY_PRINCIPAL),
-            System.getenv(EXTERNAL_LDAP_SECURITY_CREDENTIALS),
-            System.getenv(EXTERNAL_LDAP_USERS_DN),
-            System.getenv(EXTERNAL_LDAP_ATTRIBUTE_MAP),
-            System.getenv(EXTERNAL_LDAP_USERNAME_FILTER)
+        this(environment(System.getenv()));
+    }
+
+    /**
+     * The environment variables overridden by the properties of the EXTERNAL_LDAP_CONFIG_FILE file, if any
+     */
+    public static Map<String, String> environment(Map<String, String> env) {
+
+        String file = env.get(EXTERNAL_LDAP_CONFIG_FILE);
+        if (file == null || file.trim().isEmpty()) {
+            return env;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file.trim()), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format("The configuration file %s can't be read", file), e);
+        }
+        Map<String, String> merged = new HashMap<>(env);
+        properties.stringPropertyNames().forEach(name -> merged.put(name, properties.getProperty(name)));
+        return merged;
+    }
+
+    public ProviderConfig(Map<String, String> env) {
+        this(env.get(EXTERNAL_LDAP_FEDERATION_EVENT_LISTENER_ENABLED),
+            env.get(EXTERNAL_LDAP_FEDERATION_MAPPER_ENABLED),
+            env.get(EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS),
+            env.get(EXTERNAL_LDAP_SECURITY_PRINCIPAL),
+            env.get(EXTERNAL_LDAP_SECURITY_CREDENTIALS),
+            env.get(EXTERNAL_LDAP_USERS_DN),
+            env.get(EXTERNAL_LDAP_ATTRIBUTE_MAP),
+            env.get(EXTERNAL_LDAP_USERNAME_FILTER),
+            env
         );
     }
 
     public ProviderConfig(String eventListenerEnabled, String mapperEnabled, String providerUrls, String securityPrincipal, 
         String securityCredentials, String usersDN, String externalAttributesMap, String externalUsernameFilter) {
+        this(eventListenerEnabled, mapperEnabled, providerUrls, securityPrincipal, securityCredentials, usersDN, 
+            externalAttributesMap, externalUsernameFilter, Collections.emptyMap());
+    }
+
+    private ProviderConfig(String eventListenerEnabled, String mapperEnabled, String providerUrls, String securityPrincipal, 
+        String securityCredentials, String usersDN, String externalAttributesMap, String externalUsernameFilter, Map<String, String> tuning) {
 
         this.eventListenerEnabled = Optional.ofNullable(eventListenerEnabled).map(e -> e.toLowerCase().equals("true")).orElse(true);
         this.mapperEnabled = Optional.ofNullable(mapperEnabled).map(e -> e.toLowerCase().equals("true")).orElse(true);
@@ -69,6 +252,105 @@ public class ProviderConfig {
             this.externalAttributes = Collections.emptyMap();
             this.externalUsernameFilter = null;
         }
+
+        // Optional tuning parameters
+        this.cacheMaxSize = parseInt(tuning, EXTERNAL_LDAP_CACHE_MAX_SIZE, 0);
+        this.cacheTtlMillis = parseLong(tuning, EXTERNAL_LDAP_CACHE_TTL_MILLIS, 60000L);
+        this.cacheEvictionPolicy = parse(tuning, EXTERNAL_LDAP_CACHE_EVICTION_POLICY, EvictionPolicy::parse, EvictionPolicy.LRU);
+        this.negativeCacheMaxSize = parseInt(tuning, EXTERNAL_LDAP_NEGATIVE_CACHE_MAX_SIZE, 0);
+        this.negativeCacheTtlMillis = parseLong(tuning, EXTERNAL_LDAP_NEGATIVE_CACHE_TTL_MILLIS, 10000L);
+        this.singleFlightTimeoutMillis = parseLong(tuning, EXTERNAL_LDAP_SINGLE_FLIGHT_TIMEOUT_MILLIS, 10000L);
+        this.poolSettings = new LdapPoolSettings(
+            parseInt(tuning, EXTERNAL_LDAP_POOL_MIN_SIZE, 0),
+            parseInt(tuning, EXTERNAL_LDAP_POOL_MAX_SIZE, 20),
+            parseLong(tuning, EXTERNAL_LDAP_POOL_IDLE_TIMEOUT_MILLIS, 300000L),
+            parseLong(tuning, EXTERNAL_LDAP_POOL_BORROW_TIMEOUT_MILLIS, 5000L),
+            parseLong(tuning, EXTERNAL_LDAP_POOL_VALIDATION_INTERVAL_MILLIS, 30000L),
+            parseLong(tuning, EXTERNAL_LDAP_CONNECT_TIMEOUT_MILLIS, 10000L),
+            parseLong(tuning, EXTERNAL_LDAP_READ_TIMEOUT_MILLIS, 10000L));
+        this.userDnTemplate = parse(tuning, EXTERNAL_LDAP_USER_DN_TEMPLATE, ProviderConfig::parseDnTemplate, null);
+        this.dnCacheMaxSize = parseInt(tuning, EXTERNAL_LDAP_DN_CACHE_MAX_SIZE, 0);
+        this.dnCacheTtlMillis = parseLong(tuning, EXTERNAL_LDAP_DN_CACHE_TTL_MILLIS, 3600000L);
+        this.hedgingEnabled = parse(tuning, EXTERNAL_LDAP_HEDGING_ENABLED, e -> e.toLowerCase().equals("true"), false);
+        this.hedgingPercentile = parse(tuning, EXTERNAL_LDAP_HEDGING_PERCENTILE, ProviderConfig::parsePercentile, 95d);
+        this.hedgingMinDelayMillis = parseLong(tuning, EXTERNAL_LDAP_HEDGING_MIN_DELAY_MILLIS, 50L);
+        this.hedgingInitialDelayMillis = parseLong(tuning, EXTERNAL_LDAP_HEDGING_INITIAL_DELAY_MILLIS, 500L);
+        this.balancingPolicy = parse(tuning, EXTERNAL_LDAP_BALANCING_POLICY, BalancingPolicy::parse, BalancingPolicy.FAILOVER);
+        this.circuitBreakerFailureThreshold = parseInt(tuning, EXTERNAL_LDAP_CIRCUIT_BREAKER_FAILURE_THRESHOLD, 3);
+        this.circuitBreakerProbeIntervalMillis = parseLong(tuning, EXTERNAL_LDAP_CIRCUIT_BREAKER_PROBE_INTERVAL_MILLIS, 5000L);
+        this.asyncThreads = parseInt(tuning, EXTERNAL_LDAP_ASYNC_THREADS, 8);
+        this.asyncQueueSize = parseInt(tuning, EXTERNAL_LDAP_ASYNC_QUEUE_SIZE, 100);
+        this.asyncTimeoutMillis = parseLong(tuning, EXTERNAL_LDAP_ASYNC_TIMEOUT_MILLIS, 15000L);
+        this.eventAsyncEnabled = parse(tuning, EXTERNAL_LDAP_EVENT_ASYNC_ENABLED, e -> e.toLowerCase().equals("true"), false);
+        this.eventWorkers = parseInt(tuning, EXTERNAL_LDAP_EVENT_WORKERS, 4);
+        this.eventQueueCapacity = parseInt(tuning, EXTERNAL_LDAP_EVENT_QUEUE_CAPACITY, 1000);
+        this.eventOverflowPolicy = parse(tuning, EXTERNAL_LDAP_EVENT_OVERFLOW_POLICY, OverflowPolicy::parse, OverflowPolicy.CALLER_RUNS);
+        this.eventDrainTimeoutMillis = parseLong(tuning, EXTERNAL_LDAP_EVENT_DRAIN_TIMEOUT_MILLIS, 30000L);
+        this.eventBatchSize = parseInt(tuning, EXTERNAL_LDAP_EVENT_BATCH_SIZE, 1);
+        this.eventBatchWindowMillis = parseLong(tuning, EXTERNAL_LDAP_EVENT_BATCH_WINDOW_MILLIS, 200L);
+        this.minResyncIntervalMillis = parseLong(tuning, EXTERNAL_LDAP_MIN_RESYNC_INTERVAL_MILLIS, 0L);
+        this.resyncMarkerMaxSize = parseInt(tuning, EXTERNAL_LDAP_RESYNC_MARKER_MAX_SIZE, 10000);
+        this.journalPath = parse(tuning, EXTERNAL_LDAP_JOURNAL_PATH, Function.identity(), null);
+        this.journalCapacityBytes = parseInt(tuning, EXTERNAL_LDAP_JOURNAL_CAPACITY_BYTES, 1048576);
+        this.journalReplayThreads = parseInt(tuning, EXTERNAL_LDAP_JOURNAL_REPLAY_THREADS, 2);
+        this.journalReplayIntervalMillis = parseLong(tuning, EXTERNAL_LDAP_JOURNAL_REPLAY_INTERVAL_MILLIS, 30000L);
+        this.journalForceIntervalMillis = parseLong(tuning, EXTERNAL_LDAP_JOURNAL_FORCE_INTERVAL_MILLIS, 0L);
+        this.reconciliationIntervalMillis = parseLong(tuning, EXTERNAL_LDAP_RECONCILIATION_INTERVAL_MILLIS, 0L);
+        this.reconciliationRealms = parse(tuning, EXTERNAL_LDAP_RECONCILIATION_REALMS,
+            v -> Arrays.stream(v.split(",")).map(String::trim).filter(r -> !r.isEmpty()).collect(Collectors.toList()), Collections.emptyList());
+        this.reconciliationPageSize = parseInt(tuning, EXTERNAL_LDAP_RECONCILIATION_PAGE_SIZE, 500);
+        this.reconciliationChunkSize = parseInt(tuning, EXTERNAL_LDAP_RECONCILIATION_CHUNK_SIZE, 100);
+        this.reconciliationWorkers = parseInt(tuning, EXTERNAL_LDAP_RECONCILIATION_WORKERS, 2);
+        this.reconciliationMaxUsersPerSecond = parseInt(tuning, EXTERNAL_LDAP_RECONCILIATION_MAX_USERS_PER_SECOND, 100);
+        this.reconciliationLockTimeoutMillis = parseLong(tuning, EXTERNAL_LDAP_RECONCILIATION_LOCK_TIMEOUT_MILLIS, 3600000L);
+        this.localClaimsMaxAgeMillis = parseLong(tuning, EXTERNAL_LDAP_LOCAL_CLAIMS_MAX_AGE_MILLIS, 0L);
+        this.mapperBudgetMillis = parseLong(tuning, EXTERNAL_LDAP_MAPPER_BUDGET_MILLIS, 0L);
+        this.configFile = parse(tuning, EXTERNAL_LDAP_CONFIG_FILE, Function.identity(), null);
+        this.configFilePollIntervalMillis = parseLong(tuning, EXTERNAL_LDAP_CONFIG_FILE_POLL_INTERVAL_MILLIS, 5000L);
+        this.statisticsLogIntervalMillis = parseLong(tuning, EXTERNAL_LDAP_STATISTICS_LOG_INTERVAL_MILLIS, 300000L);
+        this.realmIsolationEnabled = parse(tuning, EXTERNAL_LDAP_REALM_ISOLATION_ENABLED, e -> e.toLowerCase().equals("true"), false);
+        this.mapperMaxConcurrent = parseInt(tuning, EXTERNAL_LDAP_MAPPER_MAX_CONCURRENT, 0);
+        this.mapperMaxQueued = parseInt(tuning, EXTERNAL_LDAP_MAPPER_MAX_QUEUED, 0);
+        this.listenerMaxConcurrent = parseInt(tuning, EXTERNAL_LDAP_LISTENER_MAX_CONCURRENT, 0);
+        this.listenerMaxQueued = parseInt(tuning, EXTERNAL_LDAP_LISTENER_MAX_QUEUED, 0);
+        this.bulkheadMaxWaitMillis = parseLong(tuning, EXTERNAL_LDAP_BULKHEAD_MAX_WAIT_MILLIS, 1000L);
+        this.priorityDispatchEnabled = parse(tuning, EXTERNAL_LDAP_PRIORITY_DISPATCH_ENABLED, e -> e.toLowerCase().equals("true"), false);
+        this.mapperReservedSlots = parseInt(tuning, EXTERNAL_LDAP_MAPPER_RESERVED_SLOTS, 1);
+    }
+
+    private static int parseInt(Map<String, String> tuning, String name, int defaultValue) {
+        return parse(tuning, name, Integer::parseInt, defaultValue);
+    }
+
+    private static long parseLong(Map<String, String> tuning, String name, long defaultValue) {
+        return parse(tuning, name, Long::parseLong, defaultValue);
+    }
+
+    private static String parseDnTemplate(String template) {
+        if (!template.contains("{0}")) {
+            throw new IllegalArgumentException("The DN template must contain the {0} placeholder");
+        }
+        return template;
+    }
+
+    private static double parsePercentile(String percentile) {
+        double value = Double.parseDouble(percentile);
+        if (value <= 0 || value > 100) {
+            throw new IllegalArgumentException("The percentile must be greater than 0 and at most 100");
+        }
+        return value;
+    }
+
+    private static <T> T parse(Map<String, String> tuning, String name, Function<String, T> parser, T defaultValue) {
+        String value = tuning.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return parser.apply(value.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format(ENV_NOT_VALID_ERROR, name, value), e);
+        }
     }
 
     public boolean isEventListenerEnabled() {
@@ -102,4 +384,343 @@ public class ProviderConfig {
     public String getExternalUsernameFilter() {
         return externalUsernameFilter;
     }
+
+    /**
+     * Max number of users kept in the LDAP attribute cache (0 disables the cache)
+     */
+    public int getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    public long getCacheTtlMillis() {
+        return cacheTtlMillis;
+    }
+
+    public EvictionPolicy getCacheEvictionPolicy() {
+        return cacheEvictionPolicy;
+    }
+
+    /**
+     * Max number of usernames remembered as not found or ambiguous on the external LDAP (0 disables the cache)
+     */
+    public int getNegativeCacheMaxSize() {
+        return negativeCacheMaxSize;
+    }
+
+    public long getNegativeCacheTtlMillis() {
+        return negativeCacheTtlMillis;
+    }
+
+    /**
+     * Max time a lookup waits for the identical lookup already in flight (0 disables the coalescing)
+     */
+    public long getSingleFlightTimeoutMillis() {
+        return singleFlightTimeoutMillis;
+    }
+
+    public LdapPoolSettings getPoolSettings() {
+        return poolSettings;
+    }
+
+    /**
+     * DN of the users with {0} as placeholder of the username, null when the DN is found with a search
+     */
+    public String getUserDnTemplate() {
+        return userDnTemplate;
+    }
+
+    /**
+     * Max number of username to DN associations remembered after a search (0 disables the index)
+     */
+    public int getDnCacheMaxSize() {
+        return dnCacheMaxSize;
+    }
+
+    public long getDnCacheTtlMillis() {
+        return dnCacheTtlMillis;
+    }
+
+    /**
+     * Send the search to the next server when the current one doesn't answer within the hedging delay
+     */
+    public boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+
+    /**
+     * Percentile of the observed search latencies used as hedging delay
+     */
+    public double getHedgingPercentile() {
+        return hedgingPercentile;
+    }
+
+    public long getHedgingMinDelayMillis() {
+        return hedgingMinDelayMillis;
+    }
+
+    /**
+     * Hedging delay used until enough search latencies have been observed
+     */
+    public long getHedgingInitialDelayMillis() {
+        return hedgingInitialDelayMillis;
+    }
+
+    public BalancingPolicy getBalancingPolicy() {
+        return balancingPolicy;
+    }
+
+    /**
+     * Consecutive failures after which a LDAP server is ejected until it answers a probe (0 never ejects a server)
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public long getCircuitBreakerProbeIntervalMillis() {
+        return circuitBreakerProbeIntervalMillis;
+    }
+
+    /**
+     * Max number of asynchronous LDAP lookups running at the same time
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    /**
+     * Max number of asynchronous LDAP lookups waiting for a thread, the next ones are rejected
+     */
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    /**
+     * Max duration of an asynchronous LDAP lookup (0 never times out)
+     */
+    public long getAsyncTimeoutMillis() {
+        return asyncTimeoutMillis;
+    }
+
+    /**
+     * Update the users after the commit of the login transaction, on a pool of workers
+     */
+    public boolean isEventAsyncEnabled() {
+        return eventAsyncEnabled;
+    }
+
+    public int getEventWorkers() {
+        return eventWorkers;
+    }
+
+    /**
+     * Max number of events waiting for a worker
+     */
+    public int getEventQueueCapacity() {
+        return eventQueueCapacity;
+    }
+
+    public OverflowPolicy getEventOverflowPolicy() {
+        return eventOverflowPolicy;
+    }
+
+    /**
+     * Max wait for the queued events at shutdown
+     */
+    public long getEventDrainTimeoutMillis() {
+        return eventDrainTimeoutMillis;
+    }
+
+    /**
+     * Max number of users updated with a single LDAP search and a single transaction (1 disables the batching)
+     */
+    public int getEventBatchSize() {
+        return eventBatchSize;
+    }
+
+    /**
+     * Max wait of an event for its batch to fill up
+     */
+    public long getEventBatchWindowMillis() {
+        return eventBatchWindowMillis;
+    }
+
+    /**
+     * Min time between two synchronizations of the same user (0 synchronizes the user at every login)
+     */
+    public long getMinResyncIntervalMillis() {
+        return minResyncIntervalMillis;
+    }
+
+    /**
+     * Max number of users remembered as recently synchronized
+     */
+    public int getResyncMarkerMaxSize() {
+        return resyncMarkerMaxSize;
+    }
+
+    /**
+     * File of the journal of the user updates failed because the external LDAP was not available, null disables the journal
+     */
+    public String getJournalPath() {
+        return journalPath;
+    }
+
+    public int getJournalCapacityBytes() {
+        return journalCapacityBytes;
+    }
+
+    /**
+     * Max number of journaled updates replayed at the same time
+     */
+    public int getJournalReplayThreads() {
+        return journalReplayThreads;
+    }
+
+    public long getJournalReplayIntervalMillis() {
+        return journalReplayIntervalMillis;
+    }
+
+    /**
+     * Max time a write of the journal waits to be forced to the storage device, 0 forces every write at once
+     */
+    public long getJournalForceIntervalMillis() {
+        return journalForceIntervalMillis;
+    }
+
+    /**
+     * Wait between two reconciliations of all the users with the external LDAP (0 disables the reconciliation)
+     */
+    public long getReconciliationIntervalMillis() {
+        return reconciliationIntervalMillis;
+    }
+
+    /**
+     * Names of the realms reconciled, all the realms when empty
+     */
+    public List<String> getReconciliationRealms() {
+        return reconciliationRealms;
+    }
+
+    public int getReconciliationPageSize() {
+        return reconciliationPageSize;
+    }
+
+    /**
+     * Max number of users updated in one transaction by the reconciliation
+     */
+    public int getReconciliationChunkSize() {
+        return reconciliationChunkSize;
+    }
+
+    public int getReconciliationWorkers() {
+        return reconciliationWorkers;
+    }
+
+    /**
+     * Max rate of the reconciliation (0 doesn't throttle the reconciliation)
+     */
+    public int getReconciliationMaxUsersPerSecond() {
+        return reconciliationMaxUsersPerSecond;
+    }
+
+    /**
+     * Lease of the cluster-wide lock of a reconciliation: it must be longer than a run, the lock of a node that crashed
+     * is released after it
+     */
+    public long getReconciliationLockTimeoutMillis() {
+        return reconciliationLockTimeoutMillis;
+    }
+
+    /**
+     * Max age of the attributes synchronized on the Keycloak user for the mapper to use them as claims
+     * (0 disables the local claims, the mapper searches the external LDAP)
+     */
+    public long getLocalClaimsMaxAgeMillis() {
+        return localClaimsMaxAgeMillis;
+    }
+
+    /**
+     * Max wait of the mapper for the attributes of a user, after which the token is issued with the last known claims
+     * (0 waits for the lookup and fails the token request when the lookup fails)
+     */
+    public long getMapperBudgetMillis() {
+        return mapperBudgetMillis;
+    }
+
+    /**
+     * Properties file overriding the environment variables, null when the configuration is read from the environment only
+     */
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    /**
+     * Wait between two checks of the configuration file for changes (0 doesn't reload the configuration)
+     */
+    public long getConfigFilePollIntervalMillis() {
+        return configFilePollIntervalMillis;
+    }
+
+    /**
+     * Wait between two logs of the statistics of the caches and of the LDAP connections (0 logs them at shutdown only)
+     */
+    public long getStatisticsLogIntervalMillis() {
+        return statisticsLogIntervalMillis;
+    }
+
+    /**
+     * True when every realm has its own connection pool and caches, not only the realms with LDAP settings of their own
+     */
+    public boolean isRealmIsolationEnabled() {
+        return realmIsolationEnabled;
+    }
+
+    /**
+     * Max number of LDAP searches of the token mappers running at the same time, 0 when not limited
+     */
+    public int getMapperMaxConcurrent() {
+        return mapperMaxConcurrent;
+    }
+
+    /**
+     * Max number of LDAP searches of the token mappers waiting for a slot, the next ones are shed
+     */
+    public int getMapperMaxQueued() {
+        return mapperMaxQueued;
+    }
+
+    /**
+     * Max number of LDAP searches of the event listener running at the same time, 0 when not limited
+     */
+    public int getListenerMaxConcurrent() {
+        return listenerMaxConcurrent;
+    }
+
+    /**
+     * Max number of LDAP searches of the event listener waiting for a slot, the next ones are shed
+     */
+    public int getListenerMaxQueued() {
+        return listenerMaxQueued;
+    }
+
+    /**
+     * Max wait of a limited LDAP search for a slot, shed when exceeded
+     */
+    public long getBulkheadMaxWaitMillis() {
+        return bulkheadMaxWaitMillis;
+    }
+
+    /**
+     * True when the searches of the mappers are dispatched on the connection slots before the ones of the event listener
+     */
+    public boolean isPriorityDispatchEnabled() {
+        return priorityDispatchEnabled;
+    }
+
+    /**
+     * Connection slots never used by the searches of the event listener when the priority dispatch is enabled
+     */
+    public int getMapperReservedSlots() {
+        return mapperReservedSlots;
+    }
 }
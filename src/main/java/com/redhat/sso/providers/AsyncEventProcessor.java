@@ -0,0 +1,419 @@
+package com.redhat.sso.providers;
+
+import com.redhat.sso.config.OverflowPolicy;
+import com.redhat.sso.service.RealmUserServices;
+import com.redhat.sso.service.UserService;
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import javax.naming.NamingException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Update of the users after the commit of the login transaction, on a pool of workers draining a bounded queue:
+ * the login response doesn't wait for the LDAP search and the attribute writes anymore.
+ * Every update runs in its own KeycloakSession and transaction.
+ * With a batch size greater than 1 the events are collected for a short window and grouped by realm:
+ * the users of a batch are searched with a single LDAP search, outside any transaction, then updated in a single transaction.
+ */
+public class AsyncEventProcessor {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncEventProcessor.class.getName());
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final RealmUserServices userServices;
+    private final OverflowPolicy overflowPolicy;
+    private final long drainTimeoutMillis;
+    private final BlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor workers;
+    // BLOCK only: free slots of the queue, taken before an event is queued and given back when a worker picks it up
+    private final Semaphore queueSlots;
+    private final int batchSize;
+    // realm id -> ids of the users waiting for the next batch
+    private final Map<String, Set<String>> pendingBatches = new HashMap<>();
+    private int pendingCount;
+    // guarded by pendingBatches: set by close, after which the events are not batched anymore
+    private boolean closed;
+    private final ScheduledExecutorService batchFlusher;
+    // null when the failed updates are not journaled
+    private final UpdateJournal journal;
+
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder processedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder callerRunsCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+
+    /**
+     * @param workers            number of threads updating the users
+     * @param queueCapacity      max number of events waiting for a worker
+     * @param overflowPolicy     what to do with an event when the queue is full
+     * @param drainTimeoutMillis max wait for the queued events at shutdown
+     */
+    public AsyncEventProcessor(KeycloakSessionFactory sessionFactory, UserService userService, int workers, int queueCapacity,
+        OverflowPolicy overflowPolicy, long drainTimeoutMillis) {
+
+        this(sessionFactory, userService, workers, queueCapacity, overflowPolicy, drainTimeoutMillis, 1, 0);
+    }
+
+    /**
+     * @param batchSize         max number of users updated together (1 disables the batching)
+     * @param batchWindowMillis max wait of an event for its batch to fill up
+     */
+    public AsyncEventProcessor(KeycloakSessionFactory sessionFactory, UserService userService, int workers, int queueCapacity,
+        OverflowPolicy overflowPolicy, long drainTimeoutMillis, int batchSize, long batchWindowMillis) {
+
+        this(sessionFactory, userService, workers, queueCapacity, overflowPolicy, drainTimeoutMillis, batchSize, batchWindowMillis, null);
+    }
+
+    /**
+     * @param journal journal of the updates failed because the external LDAP was not available, null to only log them
+     */
+    public AsyncEventProcessor(KeycloakSessionFactory sessionFactory, UserService userService, int workers, int queueCapacity,
+        OverflowPolicy overflowPolicy, long drainTimeoutMillis, int batchSize, long batchWindowMillis, UpdateJournal journal) {
+
+        this(sessionFactory, new RealmUserServices(userService), workers, queueCapacity, overflowPolicy, drainTimeoutMillis, batchSize,
+            batchWindowMillis, journal);
+    }
+
+    /**
+     * @param userServices the UserService of every realm
+     */
+    public AsyncEventProcessor(KeycloakSessionFactory sessionFactory, RealmUserServices userServices, int workers, int queueCapacity,
+        OverflowPolicy overflowPolicy, long drainTimeoutMillis, int batchSize, long batchWindowMillis, UpdateJournal journal) {
+
+        this.sessionFactory = sessionFactory;
+        this.userServices = userServices;
+        this.overflowPolicy = Optional.ofNullable(overflowPolicy).orElse(OverflowPolicy.CALLER_RUNS);
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.journal = journal;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.queueSlots = this.overflowPolicy == OverflowPolicy.BLOCK ? new Semaphore(queue.remainingCapacity()) : null;
+
+        int poolSize = Math.max(1, workers);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, queue, r -> {
+            Thread thread = new Thread(r, "sso-event-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (task, executor) -> overflow(task));
+        this.workers.allowCoreThreadTimeOut(true);
+
+        this.batchSize = Math.max(1, batchSize);
+        if (this.batchSize > 1) {
+            this.batchFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "sso-event-batch-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long window = Math.max(1, batchWindowMillis);
+            this.batchFlusher.scheduleWithFixedDelay(this::flush, window, window, TimeUnit.MILLISECONDS);
+        } else {
+            this.batchFlusher = null;
+        }
+    }
+
+    /**
+     * Queue the update of the user of the event
+     */
+    public void submit(Event event) {
+
+        String realmId = event.getRealmId();
+        String userId = event.getUserId();
+        String type = event.getType().name();
+        submittedCount.increment();
+        if (batchSize == 1) {
+            execute(() -> process(type, realmId, userId));
+            return;
+        }
+
+        Map<String, Set<String>> batches = null;
+        synchronized (pendingBatches) {
+            if (closed) {
+                droppedCount.increment();
+                LOGGER.warn("Event processor closed, user update discarded");
+                return;
+            }
+            if (pendingBatches.computeIfAbsent(realmId, r -> new LinkedHashSet<>()).add(userId)) {
+                pendingCount++;
+            }
+            if (pendingCount >= batchSize) {
+                batches = takePendingBatches();
+            }
+        }
+        // outside the lock: the overflow policy may block or run the batch on this thread
+        if (batches != null) {
+            batches.forEach((batchRealmId, userIds) -> execute(() -> processBatch(batchRealmId, userIds)));
+        }
+    }
+
+    /**
+     * Queue the pending batches, even if not full
+     */
+    void flush() {
+
+        Map<String, Set<String>> batches;
+        synchronized (pendingBatches) {
+            batches = takePendingBatches();
+        }
+        batches.forEach((realmId, userIds) -> execute(() -> processBatch(realmId, userIds)));
+    }
+
+    private Map<String, Set<String>> takePendingBatches() {
+
+        Map<String, Set<String>> batches = new HashMap<>(pendingBatches);
+        pendingBatches.clear();
+        pendingCount = 0;
+        return batches;
+    }
+
+    /**
+     * Queue a task; with the BLOCK policy the caller first waits for a free slot in the queue, so that the executor
+     * rejects the task only once closed
+     */
+    private void execute(Runnable task) {
+
+        if (queueSlots == null) {
+            workers.execute(task);
+            return;
+        }
+        try {
+            queueSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedCount.increment();
+            LOGGER.warn("Interrupted while waiting for a free slot in the event queue, user update discarded");
+            return;
+        }
+        workers.execute(new QueuedTask(task));
+    }
+
+    /**
+     * Task holding a slot of the queue until a worker picks it up
+     */
+    private final class QueuedTask implements Runnable {
+
+        private final Runnable task;
+
+        private QueuedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+
+            queueSlots.release();
+            task.run();
+        }
+    }
+
+    private void overflow(Runnable task) {
+
+        if (task instanceof QueuedTask) {
+            queueSlots.release();
+        }
+        if (workers.isShutdown()) {
+            droppedCount.increment();
+            LOGGER.warn("Event processor closed, user update discarded");
+            return;
+        }
+        switch (overflowPolicy) {
+            case CALLER_RUNS:
+                callerRunsCount.increment();
+                task.run();
+                break;
+            default:
+                droppedCount.increment();
+                LOGGER.warnf("Event queue full (%d events), user update discarded", queue.size());
+                break;
+        }
+    }
+
+    private void process(String type, String realmId, String userId) {
+
+        long start = System.currentTimeMillis();
+        try {
+            LOGGER.infof("Handling event with Type %s for userId %s", type, userId);
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                try {
+                    userServices.forRealm(realm).updateUser(realm, session, userId);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            processedCount.increment();
+        } catch (RuntimeException ex) {
+            failedCount.increment();
+            Throwable failure = ex instanceof IllegalStateException && ex.getCause() != null ? ex.getCause() : ex;
+            LOGGER.error("Exception caught:", failure);
+            if (journal != null && UpdateJournal.isTransientFailure(failure)) {
+                journal.append(realmId, userId);
+            }
+        } finally {
+            LOGGER.infof("Ends in: %s ms.", (System.currentTimeMillis() - start));
+        }
+    }
+
+    /**
+     * Search the users of the batch with a single LDAP search, outside any transaction, then update them all in a
+     * single transaction: a user that can't be updated is skipped without failing the others. When the transaction of
+     * the batch fails anyway, e.g. at the commit, every user updated in it is updated again in its own transaction.
+     */
+    private void processBatch(String realmId, Set<String> userIds) {
+
+        long start = System.currentTimeMillis();
+        batchCount.increment();
+        try {
+            LOGGER.infof("Handling a batch of %d events for realm %s", userIds.size(), realmId);
+            Map<String, Map<String, String>> attributes;
+            try {
+                Map<String, String> usernames = new LinkedHashMap<>();
+                AtomicReference<UserService> userService = new AtomicReference<>();
+                // short transaction: only the usernames are read from the local storage
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    userService.set(userServices.forRealm(realm));
+                    usernames.putAll(userService.get().usernames(realm, session, userIds));
+                });
+                attributes = userService.get().queryUsers(usernames);
+            } catch (NamingException | RuntimeException ex) {
+                failedCount.add(userIds.size());
+                LOGGER.error("Exception caught:", ex);
+                if (journal != null && UpdateJournal.isTransientFailure(ex)) {
+                    userIds.forEach(userId -> journal.append(realmId, userId));
+                }
+                return;
+            }
+            failedCount.add(userIds.size() - attributes.size());
+            if (!attributes.isEmpty()) {
+                applyBatch(realmId, attributes);
+            }
+        } finally {
+            LOGGER.infof("Ends in: %s ms.", (System.currentTimeMillis() - start));
+        }
+    }
+
+    private void applyBatch(String realmId, Map<String, Map<String, String>> attributes) {
+
+        Set<String> applied = new LinkedHashSet<>();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                UserService userService = userServices.forRealm(realm);
+                attributes.forEach((userId, secondaryAttributes) -> {
+                    try {
+                        userService.updateUser(realm, session, userId, secondaryAttributes);
+                        applied.add(userId);
+                    } catch (RuntimeException ex) {
+                        failedCount.increment();
+                        LOGGER.error("Exception caught:", ex);
+                    }
+                });
+            });
+            processedCount.add(applied.size());
+        } catch (RuntimeException ex) {
+            LOGGER.warnf(ex, "Transaction of a batch of %d users failed, updating every user in its own transaction", applied.size());
+            applied.forEach(userId -> applyBatchUser(realmId, userId, attributes.get(userId)));
+        }
+    }
+
+    private void applyBatchUser(String realmId, String userId, Map<String, String> secondaryAttributes) {
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                userServices.forRealm(realm).updateUser(realm, session, userId, secondaryAttributes);
+            });
+            processedCount.increment();
+        } catch (RuntimeException ex) {
+            failedCount.increment();
+            LOGGER.error("Exception caught:", ex);
+        }
+    }
+
+    /**
+     * Stop accepting events and wait for the queued ones to be processed
+     */
+    public void close() {
+
+        if (batchFlusher != null) {
+            batchFlusher.shutdownNow();
+            Map<String, Set<String>> batches;
+            synchronized (pendingBatches) {
+                closed = true;
+                batches = takePendingBatches();
+            }
+            batches.forEach((realmId, userIds) -> execute(() -> processBatch(realmId, userIds)));
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                int pending = workers.shutdownNow().size();
+                if (queueSlots != null) {
+                    queueSlots.release(pending);
+                }
+                droppedCount.add(pending);
+                LOGGER.warnf("Event queue not drained within %d ms, %d user update(s) discarded", drainTimeoutMillis, pending);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        }
+        LOGGER.infof("Event processor closed: %s", this);
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.sum();
+    }
+
+    public long getProcessedCount() {
+        return processedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public long getCallerRunsCount() {
+        return callerRunsCount.sum();
+    }
+
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("async-event-processor[policy=%s, queued=%d, submitted=%d, processed=%d, failed=%d, dropped=%d, callerRuns=%d, batches=%d]",
+            overflowPolicy, getQueueSize(), getSubmittedCount(), getProcessedCount(), getFailedCount(), getDroppedCount(), getCallerRunsCount(), getBatchCount());
+    }
+}
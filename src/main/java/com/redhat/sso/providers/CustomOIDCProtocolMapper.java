@@ -1,6 +1,10 @@
 package com.redhat.sso.providers;
 
+import com.redhat.sso.cache.RequestScopedMemo;
 import com.redhat.sso.config.ProviderConfig;
+import com.redhat.sso.service.LdapService.UserNotUniqueException;
+import com.redhat.sso.service.LdapSubsystem;
+import com.redhat.sso.service.RealmUserServices;
 import com.redhat.sso.service.UserService;
 import org.jboss.logging.Logger;
 import org.keycloak.models.ClientSessionContext;
@@ -18,33 +22,98 @@ import org.keycloak.representations.JsonWebToken;
 
 import javax.naming.NamingException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class CustomOIDCProtocolMapper extends AbstractOIDCProtocolMapper implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper {
 
     private static final Logger LOGGER = Logger.getLogger(CustomOIDCProtocolMapper.class.getName());
 
     public static final String PROVIDER_ID = "oidc-multipleldapclaimmapper";
+
+    /**
+     * Mapper option: seconds the claims are kept in the user session notes and reused by the token refreshes
+     */
+    public static final String SESSION_NOTES_MAX_AGE = "session.notes.max.age";
+
+    /**
+     * Mapper option: comma separated LDAP attributes of EXTERNAL_LDAP_ATTRIBUTE_MAP added as claims, all of them when empty
+     */
+    public static final String LDAP_ATTRIBUTES = "ldap.attributes";
+
+    static final String SESSION_NOTE_PREFIX = "ldap.claim.";
+    static final String SESSION_NOTE_TIMESTAMP = "ldap.claims.timestamp";
     
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<ProviderConfigProperty>();
 
-    private final UserService userService;
-    private final ProviderConfig config;
+    private final RealmUserServices userServices;
+    // the current configuration, replaced when the configuration file changes
+    private final Supplier<ProviderConfig> config;
+
+    /**
+     * Lookup of the attributes of a user shared by the mappers of a request, within the budget of the request
+     */
+    private static final class BudgetedLookup {
+
+        private final CompletableFuture<Map<String, String>> attributes;
+        private final long deadlineNanos;
+
+        private BudgetedLookup(CompletableFuture<Map<String, String>> attributes, long budgetMillis) {
+            this.attributes = attributes;
+            this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        }
+    }
 
     static {
         OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties, CustomOIDCProtocolMapper.class);
+
+        ProviderConfigProperty sessionNotesMaxAge = new ProviderConfigProperty();
+        sessionNotesMaxAge.setName(SESSION_NOTES_MAX_AGE);
+        sessionNotesMaxAge.setLabel("Claims max age in user session");
+        sessionNotesMaxAge.setType(ProviderConfigProperty.STRING_TYPE);
+        sessionNotesMaxAge.setDefaultValue("0");
+        sessionNotesMaxAge.setHelpText("Seconds the LDAP claims are kept in the user session notes, so that the refreshes of the tokens "
+            + "don't search the external LDAP. With 0 the external LDAP is searched for every token.");
+        configProperties.add(sessionNotesMaxAge);
+
+        ProviderConfigProperty ldapAttributes = new ProviderConfigProperty();
+        ldapAttributes.setName(LDAP_ATTRIBUTES);
+        ldapAttributes.setLabel("LDAP attributes");
+        ldapAttributes.setType(ProviderConfigProperty.STRING_TYPE);
+        ldapAttributes.setHelpText("Comma separated names of the LDAP attributes of EXTERNAL_LDAP_ATTRIBUTE_MAP added as claims by this mapper, "
+            + "only these attributes are read from the external LDAP. When empty all the attributes are added.");
+        configProperties.add(ldapAttributes);
     }
 
     public CustomOIDCProtocolMapper() {
 
-        this.userService = new UserService();
-        this.config = new ProviderConfig();
+        this(LdapSubsystem.get());
+    }
+
+    private CustomOIDCProtocolMapper(LdapSubsystem subsystem) {
+
+        this(subsystem.getUserServices(), subsystem::getConfig);
     }
 
     protected CustomOIDCProtocolMapper(UserService userService, ProviderConfig config) {
 
-        this.userService = userService;
+        this(new RealmUserServices(userService), () -> config);
+    }
+
+    private CustomOIDCProtocolMapper(RealmUserServices userServices, Supplier<ProviderConfig> config) {
+
+        this.userServices = userServices;
         this.config = config;
     }
 
@@ -75,7 +144,7 @@ public class CustomOIDCProtocolMapper extends AbstractOIDCProtocolMapper impleme
     public String getHelpText() {
 
         StringBuilder sb = new StringBuilder();
-        config.getExternalAttributes().forEach((k, v) -> {
+        config.get().getExternalAttributes().forEach((k, v) -> {
             sb.append(sb.length() == 0 ? "" : ",").append(k).append(" => ").append(v);
         });
 
@@ -85,24 +154,235 @@ public class CustomOIDCProtocolMapper extends AbstractOIDCProtocolMapper impleme
     @Override
     protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession, KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
 
-        if (!config.isMapperEnabled()) {
+        if (!config.get().isMapperEnabled()) {
 
             LOGGER.warnf("The mapper is disabled. If you want to enable it, change the %s env property value.", ProviderConfig.EXTERNAL_LDAP_FEDERATION_MAPPER_ENABLED);
             return;
         }
 
-        enrichToken(token, userSession.getUser().getUsername());
+        enrichToken(token, mappingModel, userSession, keycloakSession, clientSessionCtx);
+    }
+
+    private void enrichToken(JsonWebToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession, KeycloakSession keycloakSession,
+        ClientSessionContext clientSessionCtx) {
+
+        // the realms with LDAP settings of their own have their own UserService and configuration
+        UserService userService = userServices.forRealm(userSession.getRealm());
+        ProviderConfig realmConfig = userService == userServices.getDefault() ? config.get() : userService.getConfig();
+        Set<String> ldapAttributes = ldapAttributes(mappingModel, realmConfig);
+        if (ldapAttributes == null) {
+            // none of the attributes of the mapper option is known: the mapper adds no claim
+            return;
+        }
+        // attributes written on the user by the event listener, when fresh enough
+        Map<String, String> customAttributes = userService.getSynchronizedAttributes(userSession.getUser()).orElse(null);
+        if (customAttributes == null) {
+            // the mappers of the client share the lookup of the attributes needed by any of them
+            Set<String> lookupAttributes = ldapAttributes.isEmpty() ? ldapAttributes : lookupAttributes(ldapAttributes, clientSessionCtx, realmConfig);
+            long maxAgeMillis = TimeUnit.SECONDS.toMillis(sessionNotesMaxAge(mappingModel));
+            if (maxAgeMillis > 0) {
+                customAttributes = readSessionNotes(userSession, lookupAttributes, maxAgeMillis);
+            }
+            if (customAttributes == null) {
+                customAttributes = realmConfig.getMapperBudgetMillis() > 0
+                    ? queryLDAPWithinBudget(userService, realmConfig.getMapperBudgetMillis(), keycloakSession, userSession.getUser().getUsername(), lookupAttributes).orElse(null)
+                    : queryLDAP(userService, keycloakSession, userSession.getUser().getUsername(), lookupAttributes);
+                if (customAttributes == null) {
+                    customAttributes = lastKnownClaims(userService, userSession, lookupAttributes);
+                } else if (maxAgeMillis > 0) {
+                    writeSessionNotes(userSession, lookupAttributes, customAttributes);
+                }
+            }
+        }
+        Map<String, Object> otherClaims = token.getOtherClaims();
+        claims(customAttributes, ldapAttributes, realmConfig).forEach(otherClaims::put);
     }
 
-    private void enrichToken(JsonWebToken token, String username) {
+    private Map<String, String> queryLDAP(UserService userService, KeycloakSession keycloakSession, String username, Set<String> ldapAttributes) {
         try {
-            Map<String, String> customAttributes = userService.queryLDAP(username);
-            Map<String, Object> otherClaims = token.getOtherClaims();
-            customAttributes.forEach(otherClaims::put);
+            // access token, ID token and userinfo of the same request share a single lookup
+            if (ldapAttributes.isEmpty()) {
+                return RequestScopedMemo.get(keycloakSession, UserService.LDAP_ATTRIBUTES_MEMO + username,
+                    () -> userService.queryLDAP(username));
+            }
+            return RequestScopedMemo.get(keycloakSession, UserService.LDAP_ATTRIBUTES_MEMO + username + ldapAttributes,
+                () -> userService.queryLDAP(username, ldapAttributes));
         } catch (NamingException e) {
 
             throw new IllegalArgumentException("Error reading attributes", e);
         }
     }
 
+    /**
+     * Attributes of the user read within the mapper budget: the mappers of the same request share the lookup and its
+     * deadline, a lookup not completed in time goes on and fills the cache for the next requests.
+     * A user not found or found more than once fails the token, as without a budget: no last known claims are served.
+     *
+     * @return empty when the lookup failed or didn't complete within the budget
+     */
+    private Optional<Map<String, String>> queryLDAPWithinBudget(UserService userService, long budgetMillis, KeycloakSession keycloakSession, String username, Set<String> ldapAttributes) {
+
+        BudgetedLookup lookup;
+        try {
+            lookup = RequestScopedMemo.get(keycloakSession, UserService.LDAP_ATTRIBUTES_MEMO + username + ldapAttributes + ":budgeted",
+                () -> new BudgetedLookup(userService.queryLDAPAsync(username, ldapAttributes), budgetMillis));
+        } catch (NamingException e) {
+            throw new IllegalArgumentException("Error reading attributes", e);
+        }
+        try {
+            return Optional.of(lookup.attributes.get(Math.max(0, lookup.deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS));
+        } catch (TimeoutException e) {
+            LOGGER.warnf("Attributes of user %s not read within %d ms, token issued with the last known claims", username, budgetMillis);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UserNotUniqueException) {
+                UserNotUniqueException notUnique = (UserNotUniqueException) e.getCause();
+                throw new UserNotUniqueException(notUnique.getMessage(), notUnique.getCount());
+            }
+            LOGGER.warnf("Attributes of user %s not read, token issued with the last known claims: %s", username, e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        userService.recordDegradedToken();
+        return Optional.empty();
+    }
+
+    /**
+     * Claims synchronized on the user or stored in the session notes whatever their age, none when unknown
+     */
+    private Map<String, String> lastKnownClaims(UserService userService, UserSessionModel userSession, Set<String> ldapAttributes) {
+
+        Optional<Map<String, String>> synchronizedAttributes = userService.getLastSynchronizedAttributes(userSession.getUser());
+        if (synchronizedAttributes.isPresent()) {
+            return synchronizedAttributes.get();
+        }
+        Map<String, String> sessionNotes = readSessionNotes(userSession, ldapAttributes, Long.MAX_VALUE);
+        return sessionNotes != null ? sessionNotes : Collections.emptyMap();
+    }
+
+    /**
+     * LDAP attributes of the mapper option, empty when the option is not set and the mapper adds all the attributes,
+     * null when none of the attributes of the option is in EXTERNAL_LDAP_ATTRIBUTE_MAP and the mapper adds no claim
+     */
+    private Set<String> ldapAttributes(ProtocolMapperModel mappingModel, ProviderConfig realmConfig) {
+
+        String option = mappingModel.getConfig() == null ? null : mappingModel.getConfig().get(LDAP_ATTRIBUTES);
+        if (option == null || option.trim().isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> ldapAttributes = new TreeSet<>();
+        for (String ldapAttribute : option.split(",")) {
+            if (realmConfig.getExternalAttributes().containsKey(ldapAttribute.trim())) {
+                ldapAttributes.add(ldapAttribute.trim());
+            } else if (!ldapAttribute.trim().isEmpty()) {
+                LOGGER.warnf("LDAP attribute %s of the mapper option %s not in %s, ignored", ldapAttribute.trim(), LDAP_ATTRIBUTES,
+                    ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP);
+            }
+        }
+        return ldapAttributes.isEmpty() ? null : ldapAttributes;
+    }
+
+    /**
+     * Union of the LDAP attributes of all the mappers of this type of the client, empty when one of them adds all the attributes
+     */
+    private Set<String> lookupAttributes(Set<String> ldapAttributes, ClientSessionContext clientSessionCtx, ProviderConfig realmConfig) {
+
+        Set<String> lookupAttributes = new TreeSet<>(ldapAttributes);
+        List<ProtocolMapperModel> mappers = clientSessionCtx.getProtocolMappersStream()
+            .filter(mapper -> PROVIDER_ID.equals(mapper.getProtocolMapper()))
+            .collect(Collectors.toList());
+        for (ProtocolMapperModel mapper : mappers) {
+            Set<String> mapperAttributes = ldapAttributes(mapper, realmConfig);
+            if (mapperAttributes == null) {
+                continue;
+            }
+            if (mapperAttributes.isEmpty()) {
+                return mapperAttributes;
+            }
+            lookupAttributes.addAll(mapperAttributes);
+        }
+        return lookupAttributes;
+    }
+
+    /**
+     * Claims of the given LDAP attributes, all the claims when empty
+     */
+    private Map<String, String> claims(Map<String, String> attributes, Set<String> ldapAttributes, ProviderConfig realmConfig) {
+
+        if (ldapAttributes.isEmpty()) {
+            return attributes;
+        }
+        Map<String, String> claims = new HashMap<>();
+        ldapAttributes.stream().map(realmConfig.getExternalAttributes()::get).forEach(name -> {
+            if (attributes.containsKey(name)) {
+                claims.put(name, attributes.get(name));
+            }
+        });
+        return claims;
+    }
+
+    private static long sessionNotesMaxAge(ProtocolMapperModel mappingModel) {
+
+        String maxAge = mappingModel.getConfig() == null ? null : mappingModel.getConfig().get(SESSION_NOTES_MAX_AGE);
+        if (maxAge == null || maxAge.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(maxAge.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warnf("Invalid value %s of the mapper option %s, the claims are not kept in the user session", maxAge, SESSION_NOTES_MAX_AGE);
+            return 0;
+        }
+    }
+
+    /**
+     * Prefix of the session notes of the claims of the given LDAP attributes, every attribute subset has its own notes
+     */
+    private static String sessionNotePrefix(Set<String> ldapAttributes) {
+
+        return ldapAttributes.isEmpty() ? SESSION_NOTE_PREFIX : "ldap.claims" + ldapAttributes + ".";
+    }
+
+    private static String sessionNoteTimestamp(Set<String> ldapAttributes) {
+
+        return ldapAttributes.isEmpty() ? SESSION_NOTE_TIMESTAMP : SESSION_NOTE_TIMESTAMP + ldapAttributes;
+    }
+
+    /**
+     * Claims stored in the user session notes, null when missing or older than the max age
+     */
+    private static Map<String, String> readSessionNotes(UserSessionModel userSession, Set<String> ldapAttributes, long maxAgeMillis) {
+
+        String prefix = sessionNotePrefix(ldapAttributes);
+        String timestamp = userSession.getNote(sessionNoteTimestamp(ldapAttributes));
+        if (timestamp == null) {
+            return null;
+        }
+        try {
+            if (System.currentTimeMillis() - Long.parseLong(timestamp) >= maxAgeMillis) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        Map<String, String> claims = new HashMap<>();
+        userSession.getNotes().forEach((name, value) -> {
+            if (name.startsWith(prefix)) {
+                claims.put(name.substring(prefix.length()), value);
+            }
+        });
+        return claims;
+    }
+
+    private static void writeSessionNotes(UserSessionModel userSession, Set<String> ldapAttributes, Map<String, String> claims) {
+
+        String prefix = sessionNotePrefix(ldapAttributes);
+        // claims not returned anymore by the external LDAP
+        new ArrayList<>(userSession.getNotes().keySet()).stream()
+            .filter(name -> name.startsWith(prefix) && !claims.containsKey(name.substring(prefix.length())))
+            .forEach(userSession::removeNote);
+        claims.forEach((name, value) -> userSession.setNote(prefix + name, value));
+        userSession.setNote(sessionNoteTimestamp(ldapAttributes), String.valueOf(System.currentTimeMillis()));
+    }
+
 }
\ No newline at end of file
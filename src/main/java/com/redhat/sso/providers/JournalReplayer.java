@@ -0,0 +1,176 @@
+package com.redhat.sso.providers;
+
+import com.redhat.sso.providers.UpdateJournal.Entry;
+import com.redhat.sso.service.RealmUserServices;
+import com.redhat.sso.service.UserService;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Periodic replay of the user updates pending in the journal, with a bounded number of concurrent updates.
+ * A round starts only when the external LDAP is available and stops at the first update failed because
+ * of the external LDAP: the remaining updates wait for the next round.
+ */
+public class JournalReplayer {
+
+    private static final Logger LOGGER = Logger.getLogger(JournalReplayer.class.getName());
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final RealmUserServices userServices;
+    private final UpdateJournal journal;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder replayedCount = new LongAdder();
+    private final LongAdder discardedCount = new LongAdder();
+
+    /**
+     * @param threads        max number of updates replayed at the same time
+     * @param intervalMillis wait between two replay rounds
+     */
+    public JournalReplayer(KeycloakSessionFactory sessionFactory, UserService userService, UpdateJournal journal, int threads, long intervalMillis) {
+
+        this(sessionFactory, new RealmUserServices(userService), journal, threads, intervalMillis);
+    }
+
+    /**
+     * @param userServices   the UserService of every realm
+     * @param threads        max number of updates replayed at the same time
+     * @param intervalMillis wait between two replay rounds
+     */
+    public JournalReplayer(KeycloakSessionFactory sessionFactory, RealmUserServices userServices, UpdateJournal journal, int threads, long intervalMillis) {
+
+        this.sessionFactory = sessionFactory;
+        this.userServices = userServices;
+        this.journal = journal;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "sso-journal-replay-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sso-journal-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(100, intervalMillis);
+        this.scheduler.scheduleWithFixedDelay(this::replay, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replay the pending updates
+     *
+     * @return number of users updated
+     */
+    int replay() {
+
+        List<Entry> entries = journal.getPendingEntries();
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        if (!userServices.getDefault().isLdapAvailable()) {
+            LOGGER.debugf("External LDAP not available, replay of %d pending update(s) postponed", entries.size());
+            return 0;
+        }
+
+        LOGGER.infof("Replaying %d pending user update(s)", entries.size());
+        AtomicBoolean ldapUnavailable = new AtomicBoolean();
+        AtomicInteger replayed = new AtomicInteger();
+        List<Future<?>> updates = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            updates.add(workers.submit(() -> {
+                if (!ldapUnavailable.get() && replay(entry, ldapUnavailable)) {
+                    replayed.incrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> update : updates) {
+            try {
+                update.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                updates.forEach(u -> u.cancel(true));
+                break;
+            } catch (ExecutionException e) {
+                LOGGER.error("Exception caught:", e.getCause());
+            }
+        }
+        LOGGER.infof("Replayed %d user update(s), %d still pending", replayed.get(), journal.getPendingCount());
+        return replayed.get();
+    }
+
+    private boolean replay(Entry entry, AtomicBoolean ldapUnavailable) {
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(entry.getRealmId());
+                if (realm == null) {
+                    throw new IllegalArgumentException(String.format("Realm with id %s not found", entry.getRealmId()));
+                }
+                try {
+                    userServices.forRealm(realm).updateUser(realm, session, entry.getUserId());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            journal.markApplied(entry);
+            replayedCount.increment();
+            return true;
+        } catch (RuntimeException ex) {
+            Throwable failure = ex instanceof IllegalStateException && ex.getCause() != null ? ex.getCause() : ex;
+            if (UpdateJournal.isTransientFailure(failure)) {
+                ldapUnavailable.set(true);
+                LOGGER.warnf("Replay of the update of user %s failed, external LDAP still not available: %s", entry.getUserId(), failure.getMessage());
+            } else {
+                // the update would fail again: the user is updated at the next login
+                journal.markApplied(entry);
+                discardedCount.increment();
+                LOGGER.error("Exception caught:", failure);
+            }
+            return false;
+        }
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.sum();
+    }
+
+    public long getDiscardedCount() {
+        return discardedCount.sum();
+    }
+
+    public void close() {
+
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+        LOGGER.infof("Journal replayer closed: %s", this);
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("journal-replayer[replayed=%d, discarded=%d, %s]", getReplayedCount(), getDiscardedCount(), journal);
+    }
+}
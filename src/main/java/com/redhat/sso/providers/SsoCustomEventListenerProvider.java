@@ -1,5 +1,6 @@
 package com.redhat.sso.providers;
 
+import com.redhat.sso.service.RealmUserServices;
 import com.redhat.sso.service.UserService;
 import org.jboss.logging.Logger;
 import org.keycloak.events.Event;
@@ -15,19 +16,42 @@ public class SsoCustomEventListenerProvider implements EventListenerProvider {
     private static final Logger LOGGER = Logger.getLogger(SsoCustomEventListenerProvider.class.getName());
 
     private final KeycloakSession session;
-    private final UserService userService;
+    private final RealmUserServices userServices;
+    // null when the users are updated before the commit of the login transaction
+    private final AsyncEventProcessor eventProcessor;
+    // null when the failed updates are not journaled
+    private final UpdateJournal journal;
     private final EventListenerTransaction transaction = new EventListenerTransaction(
             null,
             this::handleClientEvent
     );
 
     public SsoCustomEventListenerProvider(KeycloakSession session, UserService userService) {
+        this(session, userService, null);
+    }
+
+    public SsoCustomEventListenerProvider(KeycloakSession session, UserService userService, AsyncEventProcessor eventProcessor) {
+        this(session, userService, eventProcessor, null);
+    }
+
+    public SsoCustomEventListenerProvider(KeycloakSession session, UserService userService, AsyncEventProcessor eventProcessor, UpdateJournal journal) {
+        this(session, new RealmUserServices(userService), eventProcessor, journal);
+    }
+
+    public SsoCustomEventListenerProvider(KeycloakSession session, RealmUserServices userServices, AsyncEventProcessor eventProcessor, UpdateJournal journal) {
         this.session = session;
-        this.userService = userService;
+        this.userServices = userServices;
+        this.eventProcessor = eventProcessor;
+        this.journal = journal;
         // enlistPrepare -> if our transaction fails than the user is NOT verified
         // enlist -> if our transaction fails than the user is still verified
         // enlistAfterCompletion -> if our transaction fails our user is still verified
-        this.session.getTransactionManager().enlistPrepare(this.transaction);
+        if (eventProcessor == null) {
+            this.session.getTransactionManager().enlistPrepare(this.transaction);
+        } else {
+            // the events of a committed login are queued, the users are updated by the event processor
+            this.session.getTransactionManager().enlistAfterCompletion(this.transaction);
+        }
     }
 
 
@@ -37,20 +61,37 @@ public class SsoCustomEventListenerProvider implements EventListenerProvider {
     }
 
     void handleClientEvent(Event event) {
+        if (isUserUpdateEvent(event) && userServices.forRealmId(event.getRealmId()).isRecentlySynchronized(event.getRealmId(), event.getUserId())) {
+            LOGGER.debugf("User %s synchronized recently, event with Type %s skipped", event.getUserId(), event.getType().name());
+            return;
+        }
+        if (eventProcessor != null) {
+            if (isUserUpdateEvent(event)) {
+                eventProcessor.submit(event);
+            }
+            return;
+        }
         long start = System.currentTimeMillis();
         try {
-            if (EventType.LOGIN.equals(event.getType()) || EventType.IMPERSONATE.equals(event.getType())) {
+            if (isUserUpdateEvent(event)) {
                 LOGGER.infof("Handling event with Type %s for userId %s", event.getType().name(), event.getUserId());
                 RealmModel realm = session.realms().getRealm(event.getRealmId());
-                userService.updateUser(realm, session, event.getUserId());
+                userServices.forRealm(realm).updateUser(realm, session, event.getUserId());
             }
         } catch (Exception ex) {
             LOGGER.error("Exception caught:", ex);
+            if (journal != null && UpdateJournal.isTransientFailure(ex)) {
+                journal.append(event.getRealmId(), event.getUserId());
+            }
         } finally {
             LOGGER.infof("Ends in: %s ms.", (System.currentTimeMillis() - start));
         }
     }
 
+    private static boolean isUserUpdateEvent(Event event) {
+        return EventType.LOGIN.equals(event.getType()) || EventType.IMPERSONATE.equals(event.getType());
+    }
+
     @Override
     public void onEvent(AdminEvent adminEvent, boolean includeRepresentation) {
         transaction.addAdminEvent(adminEvent, includeRepresentation);
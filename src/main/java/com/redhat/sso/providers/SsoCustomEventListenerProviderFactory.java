@@ -1,6 +1,8 @@
 package com.redhat.sso.providers;
 
 import com.redhat.sso.config.ProviderConfig;
+import com.redhat.sso.service.LdapSubsystem;
+import com.redhat.sso.service.RealmUserServices;
 import com.redhat.sso.service.UserService;
 
 import org.jboss.logging.Logger;
@@ -12,6 +14,9 @@ import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 public class SsoCustomEventListenerProviderFactory implements EventListenerProviderFactory {
 
     public static final class NoOpSsoCustomEventListenerProvider implements EventListenerProvider {
@@ -36,18 +41,29 @@ public class SsoCustomEventListenerProviderFactory implements EventListenerProvi
 
     private static final NoOpSsoCustomEventListenerProvider NO_OP_PROVIDER = new NoOpSsoCustomEventListenerProvider();
 
+    // the configuration at startup: the settings of the event listener are not reloaded (ProviderConfig.STARTUP_ONLY_SETTINGS)
     private final ProviderConfig config;
-    private final UserService userService;
+    private final RealmUserServices userServices;
+    // false when the UserService is not the one of the shared LDAP subsystem
+    private final boolean sharedSubsystem;
+    private AsyncEventProcessor eventProcessor;
+    private UpdateJournal journal;
+    private JournalReplayer journalReplayer;
+    private UserReconciler userReconciler;
 
     public SsoCustomEventListenerProviderFactory(UserService userService) {
 
         this.config = new ProviderConfig();
-        this.userService = userService;
+        this.userServices = new RealmUserServices(userService);
+        this.sharedSubsystem = false;
     }
 
     public SsoCustomEventListenerProviderFactory() {
 
-        this(new UserService());
+        LdapSubsystem subsystem = LdapSubsystem.get();
+        this.config = subsystem.getConfig();
+        this.userServices = subsystem.getUserServices();
+        this.sharedSubsystem = true;
     }
 
     @Override
@@ -55,7 +71,7 @@ public class SsoCustomEventListenerProviderFactory implements EventListenerProvi
 
         if (config.isEventListenerEnabled()) {
 
-            return new SsoCustomEventListenerProvider(keycloakSession, userService);
+            return new SsoCustomEventListenerProvider(keycloakSession, userServices, eventProcessor, journal);
         } else {
 
             LOGGER.warnf("The event listener is disabled. If you want to enable it, change the %s env property value.", ProviderConfig.EXTERNAL_LDAP_FEDERATION_EVENT_LISTENER_ENABLED);
@@ -70,12 +86,53 @@ public class SsoCustomEventListenerProviderFactory implements EventListenerProvi
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
-        //Not useful
+
+        if (config.isEventListenerEnabled() && config.getJournalPath() != null) {
+            try {
+                journal = new UpdateJournal(Paths.get(config.getJournalPath()), config.getJournalCapacityBytes(),
+                    config.getJournalForceIntervalMillis());
+                journalReplayer = new JournalReplayer(keycloakSessionFactory, userServices, journal,
+                    config.getJournalReplayThreads(), config.getJournalReplayIntervalMillis());
+            } catch (IOException e) {
+                LOGGER.errorf(e, "Update journal %s not available, the failed updates won't be replayed", config.getJournalPath());
+            }
+        }
+
+        if (config.isEventListenerEnabled() && config.isEventAsyncEnabled()) {
+            eventProcessor = new AsyncEventProcessor(keycloakSessionFactory, userServices, config.getEventWorkers(),
+                config.getEventQueueCapacity(), config.getEventOverflowPolicy(), config.getEventDrainTimeoutMillis(),
+                config.getEventBatchSize(), config.getEventBatchWindowMillis(), journal);
+            LOGGER.infof("Users updated after the login commit by %d worker(s), overflow policy %s", config.getEventWorkers(), config.getEventOverflowPolicy());
+        }
+
+        if (config.isEventListenerEnabled() && config.getReconciliationIntervalMillis() > 0) {
+            userReconciler = new UserReconciler(keycloakSessionFactory, userServices, config.getReconciliationRealms(),
+                config.getReconciliationIntervalMillis(), config.getReconciliationPageSize(), config.getReconciliationChunkSize(),
+                config.getReconciliationWorkers(), config.getReconciliationMaxUsersPerSecond(), config.getReconciliationLockTimeoutMillis());
+            LOGGER.infof("Users reconciled with external LDAP every %d ms", config.getReconciliationIntervalMillis());
+        }
     }
 
     @Override
     public void close() {
-        //Not useful
+
+        if (userReconciler != null) {
+            userReconciler.close();
+        }
+        if (eventProcessor != null) {
+            eventProcessor.close();
+        }
+        if (journalReplayer != null) {
+            journalReplayer.close();
+        }
+
+        if (sharedSubsystem) {
+            // the LDAP subsystem of the mapper too, the factory is closed at shutdown only
+            LdapSubsystem.shutdown();
+        } else {
+            userServices.logStatistics();
+            userServices.close();
+        }
     }
 
     @Override
@@ -0,0 +1,386 @@
+package com.redhat.sso.providers;
+
+import org.jboss.logging.Logger;
+
+import javax.naming.NamingException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Append-only journal of the user updates failed because the external LDAP was not available, memory-mapped on a file
+ * so that the pending updates survive a restart.
+ * Every entry is [length:int][status:byte][realm id NUL user id in UTF-8]: the length is written last, so an entry torn
+ * by a crash is ignored at the next start. An applied entry is only marked, the file is rewritten with the pending
+ * entries when all the entries are applied or the applied ones take more than half of it.
+ * The writes are forced to the storage device at once, or every force interval when the journal is allowed to lose the
+ * last updates on an operating system crash.
+ */
+public class UpdateJournal {
+
+    public static final class Entry {
+
+        private final String realmId;
+        private final String userId;
+
+        public Entry(String realmId, String userId) {
+            this.realmId = realmId;
+            this.userId = userId;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        private String key() {
+            return realmId + '\u0000' + userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) o;
+            return Objects.equals(realmId, entry.realmId) && Objects.equals(userId, entry.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(realmId, userId);
+        }
+
+        @Override
+        public String toString() {
+            return realmId + "/" + userId;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(UpdateJournal.class.getName());
+
+    private static final int HEADER_SIZE = Integer.BYTES + 1;
+    private static final byte PENDING = 1;
+    private static final byte APPLIED = 2;
+    private static final int MIN_CAPACITY = 4096;
+
+    private final Path path;
+    private final int capacity;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private int appliedBytes;
+    // null when every write is forced at once
+    private final ScheduledExecutorService syncer;
+    private boolean dirty;
+    // key of the entry -> offset of the entry in the file
+    private Map<String, Integer> pending = new LinkedHashMap<>();
+
+    private final LongAdder appendedCount = new LongAdder();
+    private final LongAdder appliedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder compactionCount = new LongAdder();
+    private final LongAdder forceCount = new LongAdder();
+
+    /**
+     * @param path     file of the journal, created when missing
+     * @param capacity size of the file in bytes
+     */
+    public UpdateJournal(Path path, int capacity) throws IOException {
+
+        this(path, capacity, 0);
+    }
+
+    /**
+     * @param forceIntervalMillis max time a write waits to be forced to the storage device (0 forces every write at once)
+     */
+    public UpdateJournal(Path path, int capacity, long forceIntervalMillis) throws IOException {
+
+        this.path = path.toAbsolutePath();
+        this.capacity = Math.max(MIN_CAPACITY, capacity);
+        Files.createDirectories(this.path.getParent());
+        map();
+        recover();
+        if (forceIntervalMillis > 0) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "sso-update-journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.syncer.scheduleWithFixedDelay(this::force, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+        LOGGER.infof("Update journal %s opened with %d pending update(s)", this.path, pending.size());
+    }
+
+    /**
+     * True when the update failed because the external LDAP was not available (a NamingException): the update can succeed
+     * later, unlike the one of a user not found in the realm (an IllegalArgumentException) or not found or found more than
+     * once on the external LDAP (a LdapService.UserNotUniqueException)
+     */
+    public static boolean isTransientFailure(Throwable failure) {
+
+        return failure instanceof NamingException;
+    }
+
+    private void map() throws IOException {
+
+        FileChannel mappedChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // a journal written with a larger capacity keeps its size
+            buffer = mappedChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(mappedChannel.size(), capacity));
+        } catch (IOException | RuntimeException e) {
+            mappedChannel.close();
+            throw e;
+        }
+        channel = mappedChannel;
+    }
+
+    /**
+     * Force the writes to the storage device, at once or at the next force interval
+     */
+    private void sync() {
+
+        if (syncer == null) {
+            buffer.force();
+            forceCount.increment();
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Force the writes not forced yet to the storage device
+     */
+    public synchronized void force() {
+
+        if (dirty) {
+            buffer.force();
+            forceCount.increment();
+            dirty = false;
+        }
+    }
+
+    private void recover() {
+
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            if (buffer.get(offset + Integer.BYTES) == PENDING) {
+                Integer previous = pending.put(readKey(offset, length), offset);
+                if (previous != null) {
+                    markApplied(previous);
+                }
+            } else {
+                appliedBytes += HEADER_SIZE + length;
+            }
+            offset += HEADER_SIZE + length;
+        }
+        position = offset;
+    }
+
+    private String readKey(int offset, int length) {
+
+        byte[] payload = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + HEADER_SIZE);
+        source.get(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Add the update of a user to the journal, nothing when it is already pending
+     *
+     * @return false when the journal is full
+     */
+    public synchronized boolean append(String realmId, String userId) {
+
+        String key = new Entry(realmId, userId).key();
+        if (pending.containsKey(key)) {
+            return true;
+        }
+        byte[] payload = key.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + payload.length;
+        if (position + size > buffer.capacity() && appliedBytes > 0) {
+            compact();
+        }
+        if (position + size > buffer.capacity()) {
+            rejectedCount.increment();
+            LOGGER.errorf("Update journal full (%d pending updates), update of user %s discarded", pending.size(), userId);
+            return false;
+        }
+
+        buffer.put(position + Integer.BYTES, PENDING);
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + HEADER_SIZE);
+        target.put(payload);
+        buffer.putInt(position, payload.length);
+        sync();
+
+        pending.put(key, position);
+        position += size;
+        appendedCount.increment();
+        LOGGER.infof("Update of user %s journaled, %d pending update(s)", userId, pending.size());
+        return true;
+    }
+
+    /**
+     * Remove the update of a user from the pending ones
+     */
+    public synchronized void markApplied(Entry entry) {
+
+        Integer offset = pending.remove(entry.key());
+        if (offset == null) {
+            return;
+        }
+        markApplied(offset);
+        sync();
+        appliedCount.increment();
+        if (pending.isEmpty() || appliedBytes > buffer.capacity() / 2) {
+            compact();
+        }
+    }
+
+    private void markApplied(int offset) {
+
+        buffer.put(offset + Integer.BYTES, APPLIED);
+        appliedBytes += HEADER_SIZE + buffer.getInt(offset);
+    }
+
+    /**
+     * Rewrite the journal with the pending entries only, on a new file atomically moved over the current one
+     */
+    synchronized void compact() {
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        Map<String, Integer> compactedPending = new LinkedHashMap<>();
+        int offset = 0;
+        try {
+            Files.deleteIfExists(compacted);
+            try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer targetBuffer = target.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(buffer.capacity(), capacity));
+                for (Map.Entry<String, Integer> entry : pending.entrySet()) {
+                    int size = HEADER_SIZE + buffer.getInt(entry.getValue());
+                    ByteBuffer source = buffer.duplicate();
+                    source.position(entry.getValue());
+                    source.limit(entry.getValue() + size);
+                    targetBuffer.position(offset);
+                    targetBuffer.put(source);
+                    compactedPending.put(entry.getKey(), offset);
+                    offset += size;
+                }
+                targetBuffer.force();
+            }
+            Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.error("Compaction of the update journal failed", e);
+            return;
+        }
+        FileChannel previousChannel = channel;
+        try {
+            map();
+        } catch (IOException e) {
+            // the pending entries are still written on the previous file, kept open: it is not the journal file anymore
+            LOGGER.error("Compacted update journal not mapped, the journal won't survive a restart", e);
+            return;
+        }
+        try {
+            previousChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing the previous update journal file", e);
+        }
+        // the mapping of the previous file is released when its buffer is garbage collected
+        dirty = false;
+
+        LOGGER.debugf("Update journal compacted: %d bytes of applied updates released", appliedBytes);
+        pending = compactedPending;
+        position = offset;
+        appliedBytes = 0;
+        compactionCount.increment();
+    }
+
+    /**
+     * Snapshot of the pending updates, in journal order
+     */
+    public synchronized List<Entry> getPendingEntries() {
+
+        List<Entry> entries = new ArrayList<>(pending.size());
+        for (String key : pending.keySet()) {
+            int separator = key.indexOf('\u0000');
+            entries.add(new Entry(key.substring(0, separator), key.substring(separator + 1)));
+        }
+        return entries;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getAppendedCount() {
+        return appendedCount.sum();
+    }
+
+    public long getAppliedCount() {
+        return appliedCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getCompactionCount() {
+        return compactionCount.sum();
+    }
+
+    /**
+     * Number of times the writes have been forced to the storage device
+     */
+    public long getForceCount() {
+        return forceCount.sum();
+    }
+
+    public synchronized void close() {
+
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing the update journal", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("update-journal[file=%s, pending=%d, appended=%d, applied=%d, rejected=%d, compactions=%d, forces=%d]",
+            path, getPendingCount(), getAppendedCount(), getAppliedCount(), getRejectedCount(), getCompactionCount(), getForceCount());
+    }
+}
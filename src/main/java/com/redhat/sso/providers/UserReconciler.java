@@ -0,0 +1,284 @@
+package com.redhat.sso.providers;
+
+import com.redhat.sso.service.RealmUserServices;
+import com.redhat.sso.service.UserService;
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Periodic reconciliation of the Keycloak users with all the users of the external LDAP, so that the attributes of
+ * the users not logging in are refreshed too.
+ * The LDAP users are read one page at a time; every page is split in chunks updated by a pool of workers, each chunk
+ * in its own transaction. The next page is read only when the current one is applied, and no faster than the
+ * configured number of users per second.
+ * Only the realms served by the default UserService are reconciled: the realms with LDAP settings of their own are
+ * updated at login.
+ * A run holds a cluster-wide lock: when another Keycloak node is already reconciling, the run is skipped.
+ */
+public class UserReconciler {
+
+    private static final Logger LOGGER = Logger.getLogger(UserReconciler.class.getName());
+
+    /**
+     * Key of the cluster-wide lock of a run
+     */
+    static final String TASK_KEY = "sso-user-reconciliation";
+
+    static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 3600000L;
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final RealmUserServices userServices;
+    private final List<String> realmNames;
+    private final int pageSize;
+    private final int chunkSize;
+    private final int maxUsersPerSecond;
+    // lease of the lock, longer than a run: a run of a node that crashed doesn't prevent the runs of the other nodes longer
+    private final long lockTimeoutMillis;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder runCount = new LongAdder();
+    private final LongAdder skippedCount = new LongAdder();
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder matchedCount = new LongAdder();
+    private final LongAdder failedChunkCount = new LongAdder();
+
+    /**
+     * @param realmNames        realms to reconcile, all the realms when empty
+     * @param intervalMillis    wait between the end of a reconciliation and the start of the next one
+     * @param pageSize          max number of users read from LDAP with one request
+     * @param chunkSize         max number of users updated in one transaction
+     * @param workers           max number of chunks updated at the same time
+     * @param maxUsersPerSecond max reconciliation rate (0 doesn't throttle the reconciliation)
+     */
+    public UserReconciler(KeycloakSessionFactory sessionFactory, UserService userService, List<String> realmNames, long intervalMillis,
+        int pageSize, int chunkSize, int workers, int maxUsersPerSecond) {
+
+        this(sessionFactory, new RealmUserServices(userService), realmNames, intervalMillis, pageSize, chunkSize, workers, maxUsersPerSecond,
+            DEFAULT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param userServices      the UserService of every realm, the users are read from the external LDAP of the default one
+     * @param lockTimeoutMillis lease of the cluster-wide lock of a run, longer than the longest run
+     */
+    public UserReconciler(KeycloakSessionFactory sessionFactory, RealmUserServices userServices, List<String> realmNames, long intervalMillis,
+        int pageSize, int chunkSize, int workers, int maxUsersPerSecond, long lockTimeoutMillis) {
+
+        this.sessionFactory = sessionFactory;
+        this.userServices = userServices;
+        this.realmNames = new ArrayList<>(realmNames);
+        this.pageSize = Math.max(1, pageSize);
+        this.chunkSize = Math.max(1, chunkSize);
+        this.maxUsersPerSecond = Math.max(0, maxUsersPerSecond);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+            Thread thread = new Thread(r, "sso-user-reconcile-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sso-user-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1000, intervalMillis);
+        this.lockTimeoutMillis = Math.max(1000, lockTimeoutMillis);
+        this.scheduler.scheduleWithFixedDelay(this::reconcileSafely, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reconcile the users unless another node of the cluster is already reconciling them
+     */
+    void reconcileSafely() {
+
+        KeycloakSession session = sessionFactory.create();
+        try {
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (cluster == null) {
+                reconcile();
+            } else if (!cluster.executeIfNotExecuted(TASK_KEY, (int) Math.min(Integer.MAX_VALUE, TimeUnit.MILLISECONDS.toSeconds(lockTimeoutMillis)),
+                this::reconcile).isExecuted()) {
+                skippedCount.increment();
+                LOGGER.info("Reconciliation of the users with external LDAP skipped, already running on another node");
+            }
+        } catch (NamingException | RuntimeException e) {
+            LOGGER.error("Reconciliation of the users with external LDAP failed", e);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Reconcile all the users of the external LDAP
+     *
+     * @return number of Keycloak users found for the LDAP users
+     */
+    int reconcile() throws NamingException {
+
+        runCount.increment();
+        long start = System.nanoTime();
+        AtomicInteger read = new AtomicInteger();
+        AtomicInteger matched = new AtomicInteger();
+        LOGGER.info("Reconciliation of the users with external LDAP started");
+
+        List<String> realmIds = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session ->
+            realms(session).map(RealmModel::getId).forEach(realmIds::add));
+        if (realmIds.isEmpty()) {
+            LOGGER.info("Reconciliation of the users with external LDAP ended: no realm to reconcile");
+            return 0;
+        }
+
+        userServices.getDefault().streamLDAPUsers(pageSize, page -> {
+            matched.addAndGet(reconcilePage(realmIds, page));
+            throttle(start, read.addAndGet(page.size()));
+        });
+
+        readCount.add(read.get());
+        matchedCount.add(matched.get());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.infof("Reconciliation of the users with external LDAP ended in %d ms: %d LDAP user(s) read, %d user(s) found",
+            elapsedMillis, read.get(), matched.get());
+        if (elapsedMillis > lockTimeoutMillis) {
+            LOGGER.warnf("Reconciliation longer than the lease of its lock (%d ms): another node may have reconciled at the same time",
+                lockTimeoutMillis);
+        }
+        return matched.get();
+    }
+
+    private int reconcilePage(List<String> realmIds, Map<String, Map<String, String>> page) {
+
+        List<Future<Integer>> chunks = new ArrayList<>();
+        Map<String, Map<String, String>> chunk = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, String>> user : page.entrySet()) {
+            chunk.put(user.getKey(), user.getValue());
+            if (chunk.size() == chunkSize) {
+                chunks.add(submit(realmIds, chunk));
+                chunk = new LinkedHashMap<>();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(submit(realmIds, chunk));
+        }
+
+        int matched = 0;
+        for (Future<Integer> result : chunks) {
+            try {
+                matched += result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                chunks.forEach(c -> c.cancel(true));
+                break;
+            } catch (ExecutionException e) {
+                failedChunkCount.increment();
+                LOGGER.error("Exception caught:", e.getCause());
+            }
+        }
+        return matched;
+    }
+
+    private Future<Integer> submit(List<String> realmIds, Map<String, Map<String, String>> chunk) {
+
+        return workers.submit(() -> {
+            int[] matched = new int[1];
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> realmIds.stream().map(session.realms()::getRealm)
+                .filter(Objects::nonNull).forEach(realm -> matched[0] += userServices.getDefault().reconcileUsers(realm, session, chunk)));
+            return matched[0];
+        });
+    }
+
+    /**
+     * Realms to reconcile, resolved once per run
+     */
+    private Stream<RealmModel> realms(KeycloakSession session) {
+
+        if (realmNames.isEmpty()) {
+            return session.realms().getRealmsStream().filter(userServices::isDefault);
+        }
+        return realmNames.stream().map(session.realms()::getRealmByName).filter(Objects::nonNull).filter(userServices::isDefault);
+    }
+
+    /**
+     * Wait until the users read so far fit the max reconciliation rate
+     */
+    private void throttle(long start, int read) {
+
+        if (maxUsersPerSecond == 0) {
+            return;
+        }
+        long waitNanos = TimeUnit.SECONDS.toNanos(read) / maxUsersPerSecond - (System.nanoTime() - start);
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                // the read of the next page stops the reconciliation
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getRunCount() {
+        return runCount.sum();
+    }
+
+    /**
+     * Runs skipped because another node of the cluster was reconciling the users
+     */
+    public long getSkippedCount() {
+        return skippedCount.sum();
+    }
+
+    public long getReadCount() {
+        return readCount.sum();
+    }
+
+    public long getMatchedCount() {
+        return matchedCount.sum();
+    }
+
+    public long getFailedChunkCount() {
+        return failedChunkCount.sum();
+    }
+
+    public void close() {
+
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.infof("User reconciler closed: %s", this);
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("user-reconciler[runs=%d, skipped=%d, read=%d, found=%d, failedChunks=%d]",
+            getRunCount(), getSkippedCount(), getReadCount(), getMatchedCount(), getFailedChunkCount());
+    }
+}
@@ -0,0 +1,123 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.cache.BoundedCache;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor of the asynchronous LDAP lookups, so that the blocking LDAP calls don't run on the Keycloak request threads.
+ * A lookup is rejected with a {@link ServiceUnavailableException} when all the threads are busy and the queue is full,
+ * fails with a {@link TimeLimitExceededException} when it doesn't complete within the timeout,
+ * and is interrupted when its future is cancelled or times out.
+ */
+public class LdapAsyncExecutor implements AutoCloseable {
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder cancelledCount = new LongAdder();
+
+    /**
+     * @param threads       max number of lookups running at the same time
+     * @param queueSize     max number of lookups waiting for a thread
+     * @param timeoutMillis max duration of a lookup, waiting time included (0 never times out)
+     */
+    public LdapAsyncExecutor(int threads, int queueSize, long timeoutMillis) {
+
+        int poolSize = Math.max(1, threads);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+            Thread thread = new Thread(r, "ldap-async-lookup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public <T> CompletableFuture<T> submit(BoundedCache.Loader<T> lookup) {
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                try {
+                    result.complete(lookup.load());
+                } catch (NamingException | RuntimeException | Error e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            result.completeExceptionally(new ServiceUnavailableException(
+                String.format("Too many asynchronous LDAP lookups: %d running, %d queued", executor.getActiveCount(), executor.getQueue().size())));
+            return result;
+        }
+        submittedCount.increment();
+
+        if (timeoutMillis > 0) {
+            CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+                if (result.completeExceptionally(new TimeLimitExceededException(String.format("LDAP lookup not completed within %d ms", timeoutMillis)))) {
+                    timeoutCount.increment();
+                }
+            });
+        }
+        // a lookup nobody waits for anymore gives back its thread (and its LDAP connection)
+        result.whenComplete((value, error) -> {
+            if (error instanceof CancellationException) {
+                cancelledCount.increment();
+            }
+            if (error instanceof CancellationException || error instanceof TimeLimitExceededException) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.sum();
+    }
+
+    @Override
+    public void close() {
+
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("ldap-async-executor[active=%d, queued=%d, submitted=%d, rejected=%d, timeouts=%d, cancelled=%d]",
+            executor.getActiveCount(), getQueueSize(), getSubmittedCount(), getRejectedCount(), getTimeoutCount(), getCancelledCount());
+    }
+}
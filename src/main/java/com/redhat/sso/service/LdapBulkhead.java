@@ -0,0 +1,117 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.cache.BoundedCache;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limit of the LDAP searches running at the same time for one kind of caller, so that a slow external LDAP holds a
+ * bounded number of Keycloak threads.
+ * A search waits for a free slot at most the max wait, and only when fewer than the max queued searches are already
+ * waiting: otherwise it is shed at once with a {@link ServiceUnavailableException}, like a search that waited too long.
+ */
+public class LdapBulkhead {
+
+    private final String name;
+    // null when the searches are not limited
+    private final Semaphore slots;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder admittedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+
+    /**
+     * @param maxConcurrent max number of searches running at the same time (0 doesn't limit the searches)
+     * @param maxQueued     max number of searches waiting for a slot
+     * @param maxWaitMillis max wait of a search for a slot
+     */
+    public LdapBulkhead(String name, int maxConcurrent, int maxQueued, long maxWaitMillis) {
+
+        this.name = name;
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        this.slots = this.maxConcurrent > 0 ? new Semaphore(this.maxConcurrent) : null;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+    }
+
+    public <T> T call(BoundedCache.Loader<T> search) throws NamingException {
+
+        if (slots == null) {
+            return search.load();
+        }
+        if (!slots.tryAcquire()) {
+            acquire();
+        }
+        admittedCount.increment();
+        try {
+            return search.load();
+        } finally {
+            slots.release();
+        }
+    }
+
+    private void acquire() throws ServiceUnavailableException {
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejectedCount.increment();
+            throw new ServiceUnavailableException(String.format("Too many %s LDAP searches: %d running, %d queued", name, maxConcurrent, maxQueued));
+        }
+        try {
+            if (!slots.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.increment();
+                throw new ServiceUnavailableException(String.format("No %s LDAP search slot free within %d ms", name, maxWaitMillis));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException(String.format("Wait for a %s LDAP search slot interrupted", name));
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    public int getActiveCount() {
+        return slots == null ? 0 : maxConcurrent - slots.availablePermits();
+    }
+
+    /**
+     * Searches waiting for a slot
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public long getAdmittedCount() {
+        return admittedCount.sum();
+    }
+
+    /**
+     * Searches shed because too many searches were already waiting
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Searches shed because no slot was free within the max wait
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("ldap-bulkhead-%s[maxConcurrent=%d, active=%d, queued=%d, admitted=%d, rejected=%d, timeouts=%d]",
+            name, maxConcurrent, getActiveCount(), getQueueDepth(), getAdmittedCount(), getRejectedCount(), getTimeoutCount());
+    }
+}
@@ -0,0 +1,387 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.config.LdapPoolSettings;
+import com.redhat.sso.service.LdapService.LdapCtxCreationException;
+import org.jboss.logging.Logger;
+
+import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Pool of LDAP connections owned by the plugin, replacing the JDK pool (com.sun.jndi.ldap.connect.pool)
+ * that can only be tuned with JVM-wide system properties.
+ * Every configured server url has its own sub-pool; {@link #borrow()} tries the urls in the configured order,
+ * as the JNDI provider does with a space separated PROVIDER_URL, {@link #borrow(String)} uses the given server only.
+ */
+public class LdapConnectionPool implements AutoCloseable {
+
+    static final class PooledConnection {
+
+        private final String url;
+        private final DirContext context;
+        private long lastUsedAt;
+
+        private PooledConnection(String url, DirContext context) {
+            this.url = url;
+            this.context = context;
+            this.lastUsedAt = System.nanoTime();
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        DirContext getContext() {
+            return context;
+        }
+    }
+
+    private final class ServerPool {
+
+        private final String url;
+        private final Semaphore permits = new Semaphore(settings.getMaxSize(), true);
+        private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+        private ServerPool(String url) {
+            this.url = url;
+        }
+
+        private PooledConnection borrow(long deadline) throws NamingException {
+
+            try {
+                if (!permits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    borrowTimeoutCount.increment();
+                    throw new ServiceUnavailableException(String.format("No LDAP connection to %s available within %d ms", url, settings.getBorrowTimeoutMillis()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedNamingException("Interrupted while waiting for a LDAP connection to " + url);
+            }
+
+            try {
+                PooledConnection connection;
+                // LIFO: the most recently used connections stay warm, the others reach the idle timeout
+                while ((connection = idle.pollFirst()) != null) {
+                    if (isValid(connection)) {
+                        borrowCount.increment();
+                        return connection;
+                    }
+                    destroy(connection);
+                }
+                connection = create(url);
+                borrowCount.increment();
+                return connection;
+            } catch (NamingException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private void release(PooledConnection connection) {
+
+            connection.lastUsedAt = System.nanoTime();
+            if (closed.get() || idle.size() >= settings.getMaxSize()) {
+                destroy(connection);
+            } else {
+                idle.offerFirst(connection);
+            }
+            permits.release();
+        }
+
+        private void invalidate(PooledConnection connection) {
+
+            destroy(connection);
+            permits.release();
+        }
+
+        private void maintain() {
+
+            if (settings.getIdleTimeoutMillis() > 0) {
+                long idleTimeout = TimeUnit.MILLISECONDS.toNanos(settings.getIdleTimeoutMillis());
+                PooledConnection eldest;
+                while (idle.size() > settings.getMinSize() && (eldest = idle.pollLast()) != null) {
+                    if (System.nanoTime() - eldest.lastUsedAt < idleTimeout) {
+                        idle.offerLast(eldest);
+                        break;
+                    }
+                    idleEvictionCount.increment();
+                    destroy(eldest);
+                }
+            }
+
+            try {
+                while (!closed.get() && idle.size() < settings.getMinSize()) {
+                    idle.offerLast(create(url));
+                }
+            } catch (NamingException e) {
+                LOGGER.debugf("Unable to open the minimum number of connections to %s: %s", url, e.getMessage());
+            }
+        }
+
+        private void clear() {
+
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                destroy(connection);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[active=%d, idle=%d]", url, settings.getMaxSize() - permits.availablePermits(), idle.size());
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LdapConnectionPool.class.getName());
+
+    private final String securityPrincipal;
+    private final String securityCredentials;
+    private final LdapPoolSettings settings;
+    private final Map<String, ServerPool> serverPools = new LinkedHashMap<>();
+    private final ScheduledExecutorService maintenance;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder destroyedCount = new LongAdder();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder borrowTimeoutCount = new LongAdder();
+    private final LongAdder validationFailureCount = new LongAdder();
+    private final LongAdder idleEvictionCount = new LongAdder();
+
+    public LdapConnectionPool(List<String> providerUrls, String securityPrincipal, String securityCredentials, LdapPoolSettings settings) {
+
+        this.securityPrincipal = securityPrincipal;
+        this.securityCredentials = securityCredentials;
+        this.settings = settings;
+        providerUrls.stream().map(String::trim).filter(url -> !url.isEmpty()).forEach(url -> serverPools.put(url, new ServerPool(url)));
+
+        if (settings.getMinSize() > 0 || settings.getIdleTimeoutMillis() > 0) {
+            long period = settings.getIdleTimeoutMillis() > 0 ? Math.min(Math.max(settings.getIdleTimeoutMillis() / 2, 1000), 30000) : 30000;
+            this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ldap-connection-pool-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.maintenance.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.maintenance = null;
+        }
+    }
+
+    /**
+     * Borrow a connection from the first server that can provide one
+     *
+     * @throws LdapCtxCreationException when no server is available
+     */
+    PooledConnection borrow() throws LdapCtxCreationException {
+
+        if (closed.get()) {
+            throw new LdapCtxCreationException(new ServiceUnavailableException("The LDAP connection pool is closed"));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getBorrowTimeoutMillis());
+        NamingException lastError = new ServiceUnavailableException("No LDAP server configured");
+        for (ServerPool serverPool : serverPools.values()) {
+            try {
+                return serverPool.borrow(deadline);
+            } catch (InterruptedNamingException e) {
+                throw new LdapCtxCreationException(e);
+            } catch (NamingException e) {
+                LOGGER.debugf("LDAP server %s not available: %s", serverPool.url, e.getMessage());
+                lastError = e;
+            }
+        }
+        throw new LdapCtxCreationException(lastError);
+    }
+
+    /**
+     * Borrow a connection to the given server only
+     *
+     * @throws LdapCtxCreationException when the server is not available
+     */
+    PooledConnection borrow(String url) throws LdapCtxCreationException {
+
+        ServerPool serverPool = serverPools.get(url);
+        if (closed.get() || serverPool == null) {
+            throw new LdapCtxCreationException(new ServiceUnavailableException(
+                closed.get() ? "The LDAP connection pool is closed" : "LDAP server " + url + " not configured"));
+        }
+        try {
+            return serverPool.borrow(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getBorrowTimeoutMillis()));
+        } catch (NamingException e) {
+            throw new LdapCtxCreationException(e);
+        }
+    }
+
+    /**
+     * Open a new connection to the given server and read its root DSE, without using a pooled connection
+     *
+     * @throws NamingException when the server doesn't answer
+     */
+    void probe(String url) throws NamingException {
+
+        PooledConnection connection = create(url);
+        try {
+            connection.context.getAttributes("", new String[] {"1.1"});
+        } finally {
+            destroy(connection);
+        }
+    }
+
+    /**
+     * Configured server urls, in order of preference
+     */
+    List<String> getUrls() {
+
+        return new ArrayList<>(serverPools.keySet());
+    }
+
+    /**
+     * Give back a healthy connection to the pool
+     */
+    void release(PooledConnection connection) {
+
+        serverPools.get(connection.url).release(connection);
+    }
+
+    /**
+     * Close a broken connection instead of giving it back to the pool
+     */
+    void invalidate(PooledConnection connection) {
+
+        serverPools.get(connection.url).invalidate(connection);
+    }
+
+    @Override
+    public void close() {
+
+        if (closed.compareAndSet(false, true)) {
+            if (maintenance != null) {
+                maintenance.shutdownNow();
+            }
+            serverPools.values().forEach(ServerPool::clear);
+            LOGGER.infof("LDAP connection pool closed: %s", this);
+        }
+    }
+
+    private void maintain() {
+
+        try {
+            serverPools.values().forEach(ServerPool::maintain);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error during the LDAP connection pool maintenance", e);
+        }
+    }
+
+    private boolean isValid(PooledConnection connection) {
+
+        long idleTime = System.nanoTime() - connection.lastUsedAt;
+        if (idleTime < TimeUnit.MILLISECONDS.toNanos(settings.getValidationIntervalMillis())) {
+            return true;
+        }
+        try {
+            // Root DSE read without attributes (1.1): the cheapest round trip to the server
+            connection.context.getAttributes("", new String[] {"1.1"});
+            return true;
+        } catch (NamingException e) {
+            validationFailureCount.increment();
+            LOGGER.debugf("Stale LDAP connection to %s detected: %s", connection.url, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Open a connection to the given server outside of the pool, for the requests holding a connection
+     * for a long time or changing its request controls. The caller closes the connection.
+     */
+    LdapContext openLdapContext(String url) throws NamingException {
+
+        LdapContext context = new InitialLdapContext(environment(url), null);
+        createdCount.increment();
+        LOGGER.debugf("Dedicated LDAP connection to %s opened", url);
+        return context;
+    }
+
+    private PooledConnection create(String url) throws NamingException {
+
+        PooledConnection connection = new PooledConnection(url, new InitialDirContext(environment(url)));
+        createdCount.increment();
+        LOGGER.debugf("LDAP connection to %s opened", url);
+        return connection;
+    }
+
+    private Hashtable<String, String> environment(String url) {
+
+        Hashtable<String, String> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        env.put(Context.PROVIDER_URL, url);
+        env.put(Context.SECURITY_AUTHENTICATION, "simple");
+        env.put(Context.SECURITY_PRINCIPAL, securityPrincipal);
+        env.put(Context.SECURITY_CREDENTIALS, securityCredentials);
+        env.put("com.sun.jndi.ldap.connect.pool", "false");
+        env.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(settings.getConnectTimeoutMillis()));
+        env.put("com.sun.jndi.ldap.read.timeout", String.valueOf(settings.getReadTimeoutMillis()));
+        return env;
+    }
+
+    private void destroy(PooledConnection connection) {
+
+        destroyedCount.increment();
+        try {
+            connection.context.close();
+        } catch (NamingException e) {
+            LOGGER.debugf("Error closing the LDAP connection to %s: %s", connection.url, e.getMessage());
+        }
+    }
+
+    public long getCreatedCount() {
+        return createdCount.sum();
+    }
+
+    public long getDestroyedCount() {
+        return destroyedCount.sum();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    public long getBorrowTimeoutCount() {
+        return borrowTimeoutCount.sum();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailureCount.sum();
+    }
+
+    public long getIdleEvictionCount() {
+        return idleEvictionCount.sum();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("ldap-connection-pool[servers=%s, created=%d, destroyed=%d, borrowed=%d, borrowTimeouts=%d, validationFailures=%d, idleEvictions=%d]",
+            serverPools.values().stream().map(ServerPool::toString).collect(Collectors.joining(", ", "[", "]")),
+            getCreatedCount(), getDestroyedCount(), getBorrowCount(), getBorrowTimeoutCount(), getValidationFailureCount(), getIdleEvictionCount());
+    }
+}
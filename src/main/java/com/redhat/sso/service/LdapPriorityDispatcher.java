@@ -0,0 +1,222 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.cache.BoundedCache;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Priority dispatch of the LDAP searches on the slots of the connection pool: the searches of the token mappers, which
+ * block the token issuance, run first; the searches of the event listener and of the batch synchronizations run only
+ * when no mapper search is waiting, and never on the slots reserved to the mappers.
+ * A search not dispatched within the max wait fails with a {@link ServiceUnavailableException}.
+ * A hedged request holds a connection of its own, so it takes a slot too: only a free slot no search is waiting for,
+ * otherwise the request is not hedged.
+ */
+public class LdapPriorityDispatcher implements LdapRequestHedger.HedgeSlots {
+
+    public enum Priority {
+        // searches of the token mappers
+        INTERACTIVE,
+        // searches of the event listener, the journal replay and the reconciliation
+        BACKGROUND
+    }
+
+    private final int slots;
+    private final int reservedSlots;
+    private final long maxWaitMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition interactiveTurn = lock.newCondition();
+    private final Condition backgroundTurn = lock.newCondition();
+    // guarded by lock
+    private int running;
+    private int interactiveWaiting;
+    private int backgroundWaiting;
+
+    private final LongAdder interactiveCount = new LongAdder();
+    private final LongAdder backgroundCount = new LongAdder();
+    private final LongAdder deferredCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder hedgeCount = new LongAdder();
+
+    /**
+     * @param slots         max number of searches and hedged requests running at the same time, the max size of the connection pool
+     * @param reservedSlots slots never used by the background searches
+     * @param maxWaitMillis max wait of a search for a slot
+     */
+    public LdapPriorityDispatcher(int slots, int reservedSlots, long maxWaitMillis) {
+
+        this.slots = Math.max(1, slots);
+        this.reservedSlots = Math.min(Math.max(0, reservedSlots), this.slots - 1);
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+    }
+
+    public <T> T call(Priority priority, BoundedCache.Loader<T> search) throws NamingException {
+
+        acquire(priority);
+        try {
+            return search.load();
+        } finally {
+            release();
+        }
+    }
+
+    private void acquire(Priority priority) throws ServiceUnavailableException {
+
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        lock.lock();
+        try {
+            if (priority == Priority.INTERACTIVE) {
+                interactiveWaiting++;
+                try {
+                    while (running >= slots) {
+                        waitNanos = await(interactiveTurn, waitNanos);
+                    }
+                } finally {
+                    interactiveWaiting--;
+                }
+                interactiveCount.increment();
+            } else {
+                if (!isBackgroundTurn()) {
+                    deferredCount.increment();
+                }
+                backgroundWaiting++;
+                try {
+                    while (!isBackgroundTurn()) {
+                        waitNanos = await(backgroundTurn, waitNanos);
+                    }
+                } finally {
+                    backgroundWaiting--;
+                }
+                backgroundCount.increment();
+            }
+            running++;
+        } finally {
+            signalNext();
+            lock.unlock();
+        }
+    }
+
+    private boolean isBackgroundTurn() {
+        return interactiveWaiting == 0 && running < slots - reservedSlots;
+    }
+
+    private long await(Condition turn, long waitNanos) throws ServiceUnavailableException {
+
+        if (waitNanos <= 0) {
+            timeoutCount.increment();
+            throw new ServiceUnavailableException(String.format("No LDAP connection slot free within %d ms", maxWaitMillis));
+        }
+        try {
+            return turn.awaitNanos(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Wait for an LDAP connection slot interrupted");
+        }
+    }
+
+    /**
+     * Take a free slot for a hedged request, if no search is waiting for it
+     */
+    @Override
+    public boolean tryAcquire() {
+
+        lock.lock();
+        try {
+            if (running >= slots || interactiveWaiting > 0 || backgroundWaiting > 0) {
+                return false;
+            }
+            running++;
+            hedgeCount.increment();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void release() {
+
+        lock.lock();
+        try {
+            running--;
+            signalNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the searches whose turn it is, the interactive ones first
+     */
+    private void signalNext() {
+
+        if (interactiveWaiting > 0) {
+            if (running < slots) {
+                interactiveTurn.signal();
+            }
+        } else if (backgroundWaiting > 0 && isBackgroundTurn()) {
+            backgroundTurn.signal();
+        }
+    }
+
+    public int getRunningCount() {
+
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Searches waiting for a slot, by priority
+     */
+    public int getWaitingCount(Priority priority) {
+
+        lock.lock();
+        try {
+            return priority == Priority.INTERACTIVE ? interactiveWaiting : backgroundWaiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getInteractiveCount() {
+        return interactiveCount.sum();
+    }
+
+    public long getBackgroundCount() {
+        return backgroundCount.sum();
+    }
+
+    /**
+     * Background searches that had to wait for the interactive ones or for a free slot
+     */
+    public long getDeferredCount() {
+        return deferredCount.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * Hedged requests that took a slot
+     */
+    public long getHedgeCount() {
+        return hedgeCount.sum();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("ldap-priority-dispatcher[slots=%d, reserved=%d, running=%d, interactive=%d, background=%d, deferred=%d, timeouts=%d, hedges=%d]",
+            slots, reservedSlots, getRunningCount(), getInteractiveCount(), getBackgroundCount(), getDeferredCount(), getTimeoutCount(), getHedgeCount());
+    }
+}
@@ -0,0 +1,271 @@
+package com.redhat.sso.service;
+
+import org.jboss.logging.Logger;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hedged execution of a request on a list of LDAP servers: the request is sent to the first server and,
+ * when it doesn't answer within a delay based on a percentile of the latencies observed so far, it is sent
+ * to the next server too. The first answer wins and the other requests are cancelled.
+ * A request failing with a {@link NamingException} is sent to the next server immediately;
+ * a {@link RuntimeException} (i.e. user not found) is a definitive answer.
+ */
+public class LdapRequestHedger implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface ServerRequest<T> {
+
+        T execute(String url) throws NamingException;
+    }
+
+    /**
+     * Slots a hedged request takes for the time it runs, on top of the slot of the search it hedges
+     */
+    public interface HedgeSlots {
+
+        /**
+         * @return false when no slot is free, the request is not hedged for now
+         */
+        boolean tryAcquire();
+
+        void release();
+    }
+
+    public static final HedgeSlots UNLIMITED = new HedgeSlots() {
+
+        @Override
+        public boolean tryAcquire() {
+            return true;
+        }
+
+        @Override
+        public void release() {
+            // Nothing to do
+        }
+    };
+
+    private static final Logger LOGGER = Logger.getLogger(LdapRequestHedger.class.getName());
+
+    private static final int SAMPLES = 1024;
+    private static final int MIN_SAMPLES = 20;
+    private static final int PERCENTILE_REFRESH = 64;
+
+    private final double percentile;
+    private final long minDelayMillis;
+    private final ThreadPoolExecutor executor;
+
+    private final long[] latencies = new long[SAMPLES];
+    private int sampleCount;
+    private volatile long percentileDelayMillis;
+
+    private final LongAdder hedgedCount = new LongAdder();
+    private final LongAdder hedgeWonCount = new LongAdder();
+
+    /**
+     * @param percentile         percentile of the observed latencies after which the request is hedged (i.e. 95)
+     * @param minDelayMillis     lower bound of the hedging delay
+     * @param initialDelayMillis hedging delay used until enough latencies have been observed
+     * @param maxThreads         max number of requests in flight
+     */
+    public LdapRequestHedger(double percentile, long minDelayMillis, long initialDelayMillis, int maxThreads) {
+
+        this(percentile, minDelayMillis, initialDelayMillis, newExecutor(maxThreads));
+    }
+
+    LdapRequestHedger(double percentile, long minDelayMillis, long initialDelayMillis, ThreadPoolExecutor executor) {
+
+        this.percentile = Math.min(Math.max(percentile, 0), 100);
+        this.minDelayMillis = minDelayMillis;
+        this.percentileDelayMillis = initialDelayMillis;
+        this.executor = executor;
+    }
+
+    private static ThreadPoolExecutor newExecutor(int maxThreads) {
+
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Math.max(2, maxThreads), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "ldap-hedged-request-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public <T> T execute(List<String> urls, ServerRequest<T> request) throws NamingException {
+        return execute(urls, UNLIMITED, request);
+    }
+
+    /**
+     * @param hedgeSlots slots taken by the hedged requests: a request is hedged only when a slot is free
+     */
+    public <T> T execute(List<String> urls, HedgeSlots hedgeSlots, ServerRequest<T> request) throws NamingException {
+
+        ExecutorCompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<T>> requests = new ArrayList<>();
+        // one flag per hedge holding a slot, set by the hedge when it starts or by the cancellation of a hedge not started
+        List<AtomicBoolean> hedges = new ArrayList<>();
+        Future<T> primary;
+        try {
+            primary = submit(completionService, requests, urls.get(0), request);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Too many hedged LDAP requests in flight, executing the request without hedging");
+            return request.execute(urls.get(0));
+        }
+
+        int next = 1;
+        int pending = 1;
+        NamingException lastError = null;
+        try {
+            while (pending > 0) {
+                Future<T> completed = next < urls.size()
+                    ? completionService.poll(getDelayMillis(), TimeUnit.MILLISECONDS)
+                    : completionService.take();
+
+                if (completed == null) {
+                    // the requests in flight are slow: hedge on the next server, if a slot is free
+                    if (!hedgeSlots.tryAcquire()) {
+                        LOGGER.debugf("No slot free to hedge the LDAP request on %s", urls.get(next));
+                        continue;
+                    }
+                    AtomicBoolean started = new AtomicBoolean();
+                    if (trySubmit(completionService, requests, urls.get(next), url -> {
+                        if (!started.compareAndSet(false, true)) {
+                            throw new InterruptedNamingException("Hedged LDAP request cancelled before its start");
+                        }
+                        try {
+                            return request.execute(url);
+                        } finally {
+                            hedgeSlots.release();
+                        }
+                    })) {
+                        LOGGER.debugf("Hedging the LDAP request on %s", urls.get(next));
+                        hedgedCount.increment();
+                        hedges.add(started);
+                        pending++;
+                    } else {
+                        hedgeSlots.release();
+                    }
+                    next++;
+                    continue;
+                }
+
+                pending--;
+                try {
+                    T result = completed.get();
+                    if (completed != primary) {
+                        hedgeWonCount.increment();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (!(cause instanceof NamingException)) {
+                        throw rethrow(cause);
+                    }
+                    lastError = (NamingException) cause;
+                    // failed fast: try the next server without waiting
+                    while (pending == 0 && next < urls.size()) {
+                        if (trySubmit(completionService, requests, urls.get(next++), request)) {
+                            pending++;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("Interrupted while waiting for the LDAP request");
+        } finally {
+            requests.forEach(r -> r.cancel(true));
+            // a hedge cancelled before its start never runs: its slot is released here
+            hedges.stream().filter(started -> started.compareAndSet(false, true)).forEach(started -> hedgeSlots.release());
+        }
+        throw lastError;
+    }
+
+    private <T> Future<T> submit(ExecutorCompletionService<T> completionService, List<Future<T>> requests, String url, ServerRequest<T> request) {
+
+        long start = System.nanoTime();
+        Future<T> future = completionService.submit(() -> {
+            T result = request.execute(url);
+            recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return result;
+        });
+        requests.add(future);
+        return future;
+    }
+
+    private <T> boolean trySubmit(ExecutorCompletionService<T> completionService, List<Future<T>> requests, String url, ServerRequest<T> request) {
+
+        try {
+            submit(completionService, requests, url, request);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.debugf("Too many LDAP requests in flight, request on %s not sent", url);
+            return false;
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+
+    private synchronized void recordLatency(long latencyMillis) {
+
+        latencies[sampleCount % SAMPLES] = latencyMillis;
+        sampleCount++;
+        if (sampleCount >= MIN_SAMPLES && sampleCount % PERCENTILE_REFRESH == MIN_SAMPLES % PERCENTILE_REFRESH) {
+            long[] samples = Arrays.copyOf(latencies, Math.min(sampleCount, SAMPLES));
+            Arrays.sort(samples);
+            int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+            percentileDelayMillis = samples[Math.max(0, index)];
+        }
+    }
+
+    /**
+     * Current hedging delay: the configured percentile of the observed latencies, never lower than the min delay
+     */
+    public long getDelayMillis() {
+
+        return Math.max(minDelayMillis, percentileDelayMillis);
+    }
+
+    public long getHedgedCount() {
+        return hedgedCount.sum();
+    }
+
+    public long getHedgeWonCount() {
+        return hedgeWonCount.sum();
+    }
+
+    @Override
+    public void close() {
+
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("ldap-hedging[delay=%d ms, hedged=%d, hedgesWon=%d]", getDelayMillis(), getHedgedCount(), getHedgeWonCount());
+    }
+}
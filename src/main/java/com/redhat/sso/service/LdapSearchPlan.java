@@ -0,0 +1,139 @@
+package com.redhat.sso.service;
+
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.Rdn;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Search of a user compiled once per configuration: base DN, filter expression and the controls
+ * asking only for the mapped attributes and for at most 2 entries (enough to detect an ambiguous username).
+ * Instances are immutable and shared between threads.
+ */
+public final class LdapSearchPlan {
+
+    static final long COUNT_LIMIT = 2;
+
+    private final String baseDN;
+    private final String uniqueAttribute;
+    private final Map<String, String> attributeMapping;
+    private final String filterExpression;
+    private final String[] returningAttributes;
+    private final SearchControls searchControls;
+    private final String userDnTemplate;
+    private final SearchControls entryControls;
+    private final SearchControls batchControls;
+
+    public LdapSearchPlan(String baseDN, String uniqueAttribute, Map<String, String> attributeMapping) {
+
+        this(baseDN, uniqueAttribute, attributeMapping, null);
+    }
+
+    /**
+     * @param userDnTemplate DN of the users with {0} as placeholder of the username (i.e. uid={0},ou=users,dc=example,dc=com), null when unknown
+     */
+    public LdapSearchPlan(String baseDN, String uniqueAttribute, Map<String, String> attributeMapping, String userDnTemplate) {
+
+        this.baseDN = baseDN;
+        this.uniqueAttribute = uniqueAttribute;
+        this.attributeMapping = Collections.unmodifiableMap(new LinkedHashMap<>(attributeMapping));
+        // the username is passed as filter argument {0}, so that JNDI escapes it
+        this.filterExpression = String.format("(%s={0})", uniqueAttribute);
+        this.returningAttributes = attributeMapping.keySet().toArray(new String[0]);
+
+        this.searchControls = new SearchControls();
+        this.searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        this.searchControls.setReturningAttributes(returningAttributes);
+        this.searchControls.setCountLimit(COUNT_LIMIT);
+
+        this.userDnTemplate = userDnTemplate;
+        // base-object read of a known DN, still filtered by username to detect a DN now owned by another user
+        this.entryControls = new SearchControls();
+        this.entryControls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        this.entryControls.setReturningAttributes(returningAttributes);
+        this.entryControls.setCountLimit(1);
+
+        // the search of several users needs the unique attribute to tell the entries apart
+        String[] batchAttributes = Arrays.copyOf(returningAttributes, returningAttributes.length + 1);
+        batchAttributes[returningAttributes.length] = uniqueAttribute;
+        this.batchControls = new SearchControls();
+        this.batchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        this.batchControls.setReturningAttributes(batchAttributes);
+    }
+
+    boolean matches(String baseDN, String uniqueAttribute, Map<String, String> attributeMapping) {
+
+        return Objects.equals(this.baseDN, baseDN) && Objects.equals(this.uniqueAttribute, uniqueAttribute)
+            && this.attributeMapping.equals(attributeMapping);
+    }
+
+    /**
+     * DN derived from the template, or null when no template is configured
+     */
+    String userDN(String userName) {
+
+        return userDnTemplate == null ? null : userDnTemplate.replace("{0}", Rdn.escapeValue(userName));
+    }
+
+    public String getBaseDN() {
+        return baseDN;
+    }
+
+    public String getUniqueAttribute() {
+        return uniqueAttribute;
+    }
+
+    public Map<String, String> getAttributeMapping() {
+        return attributeMapping;
+    }
+
+    String getFilterExpression() {
+        return filterExpression;
+    }
+
+    /**
+     * Filter matching any of the given number of usernames, passed as filter arguments {0}, {1}, ...
+     */
+    String getBatchFilterExpression(int userCount) {
+
+        StringBuilder filter = new StringBuilder("(|");
+        for (int i = 0; i < userCount; i++) {
+            filter.append('(').append(uniqueAttribute).append("={").append(i).append("})");
+        }
+        return filter.append(')').toString();
+    }
+
+    /**
+     * Filter matching every user with a value of the unique attribute
+     */
+    String getAllUsersFilterExpression() {
+
+        return String.format("(%s=*)", uniqueAttribute);
+    }
+
+    String[] getReturningAttributes() {
+        return returningAttributes.clone();
+    }
+
+    SearchControls getSearchControls() {
+        return searchControls;
+    }
+
+    SearchControls getEntryControls() {
+        return entryControls;
+    }
+
+    SearchControls getBatchControls() {
+        return batchControls;
+    }
+
+    /**
+     * Filter as it is sent to the server, for logging purpose
+     */
+    String describeFilter(String userName) {
+        return String.format("(%s=%s)", uniqueAttribute, userName);
+    }
+}
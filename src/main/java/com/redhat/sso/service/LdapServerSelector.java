@@ -0,0 +1,251 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.config.BalancingPolicy;
+
+import org.jboss.logging.Logger;
+
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Order in which the LDAP servers are tried by a search, with a circuit breaker for every server:
+ * a server failing a number of consecutive times is ejected, moved after the healthy servers,
+ * and probed in the background until it answers again.
+ */
+public class LdapServerSelector implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface Prober {
+
+        void probe(String url) throws NamingException;
+    }
+
+    private static final class ServerState {
+
+        private final String url;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile boolean ejected;
+        private volatile double ewmaLatencyMillis;
+
+        private ServerState(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, ewma=%.1f ms, failures=%d]", url, ejected ? "ejected" : "available", ewmaLatencyMillis, consecutiveFailures.get());
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LdapServerSelector.class.getName());
+
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final BalancingPolicy policy;
+    private final int failureThreshold;
+    private final Prober prober;
+    private final Map<String, ServerState> servers = new LinkedHashMap<>();
+    private final AtomicInteger nextServer = new AtomicInteger();
+    private final ScheduledExecutorService probing;
+
+    private final LongAdder ejectionCount = new LongAdder();
+    private final LongAdder recoveryCount = new LongAdder();
+
+    /**
+     * @param urls                configured server urls, in order of preference
+     * @param policy              order of the healthy servers
+     * @param failureThreshold    consecutive failures after which a server is ejected (0 never ejects a server)
+     * @param probeIntervalMillis interval between two probes of an ejected server
+     * @param prober              check that an ejected server answers again
+     */
+    public LdapServerSelector(List<String> urls, BalancingPolicy policy, int failureThreshold, long probeIntervalMillis, Prober prober) {
+
+        this.policy = Optional.ofNullable(policy).orElse(BalancingPolicy.FAILOVER);
+        this.failureThreshold = failureThreshold;
+        this.prober = prober;
+        urls.forEach(url -> servers.put(url, new ServerState(url)));
+
+        if (failureThreshold > 0) {
+            this.probing = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ldap-server-probe");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(probeIntervalMillis, 100);
+            this.probing.scheduleWithFixedDelay(this::probeEjectedServers, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.probing = null;
+        }
+    }
+
+    /**
+     * Servers to try for the next search: the available servers ordered by the balancing policy,
+     * then the ejected servers in the configured order, tried only when no available server answers
+     */
+    public List<String> select() {
+
+        List<ServerState> available = new ArrayList<>(servers.size());
+        List<String> ejected = new ArrayList<>();
+        for (ServerState server : servers.values()) {
+            if (server.ejected) {
+                ejected.add(server.url);
+            } else {
+                available.add(server);
+            }
+        }
+
+        if (available.size() > 1) {
+            switch (policy) {
+                case ROUND_ROBIN:
+                    Collections.rotate(available, -Math.floorMod(nextServer.getAndIncrement(), available.size()));
+                    break;
+                case EWMA:
+                    powerOfTwoChoices(available);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        List<String> urls = available.stream().map(server -> server.url).collect(Collectors.toCollection(ArrayList::new));
+        urls.addAll(ejected);
+        return urls;
+    }
+
+    /**
+     * Power of two choices: of two servers picked at random, the one with the lower latency goes first, so that the
+     * fastest server doesn't get all the searches; the others follow as fallbacks by latency.
+     * Servers never measured (0 ms) win their pick, so that every server gets a latency.
+     */
+    private static void powerOfTwoChoices(List<ServerState> available) {
+
+        available.sort(Comparator.comparingDouble(server -> server.ewmaLatencyMillis));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(available.size());
+        int second = random.nextInt(available.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        // sorted by latency: the lower index of the two is the faster server
+        available.add(0, available.remove(Math.min(first, second)));
+    }
+
+    /**
+     * The server answered the search (even with no entry)
+     */
+    public void recordSuccess(String url, long latencyMillis) {
+
+        ServerState server = servers.get(url);
+        if (server == null) {
+            return;
+        }
+        server.consecutiveFailures.set(0);
+        synchronized (server) {
+            server.ewmaLatencyMillis = server.ewmaLatencyMillis == 0
+                ? latencyMillis
+                : EWMA_WEIGHT * latencyMillis + (1 - EWMA_WEIGHT) * server.ewmaLatencyMillis;
+        }
+        if (server.ejected) {
+            recover(server);
+        }
+    }
+
+    /**
+     * The server was not reachable, refused the connection or didn't answer in time
+     */
+    public void recordFailure(String url) {
+
+        ServerState server = servers.get(url);
+        if (server == null) {
+            return;
+        }
+        int failures = server.consecutiveFailures.incrementAndGet();
+        if (failureThreshold > 0 && failures >= failureThreshold && !server.ejected) {
+            synchronized (server) {
+                if (!server.ejected) {
+                    server.ejected = true;
+                    ejectionCount.increment();
+                    LOGGER.warnf("LDAP server %s ejected after %d consecutive failures", url, failures);
+                }
+            }
+        }
+    }
+
+    private void probeEjectedServers() {
+
+        for (ServerState server : servers.values()) {
+            if (!server.ejected) {
+                continue;
+            }
+            try {
+                prober.probe(server.url);
+                server.consecutiveFailures.set(0);
+                recover(server);
+            } catch (NamingException | RuntimeException e) {
+                LOGGER.debugf("LDAP server %s still not available: %s", server.url, e.getMessage());
+            }
+        }
+    }
+
+    private void recover(ServerState server) {
+
+        synchronized (server) {
+            if (server.ejected) {
+                server.ejected = false;
+                recoveryCount.increment();
+                LOGGER.infof("LDAP server %s is available again", server.url);
+            }
+        }
+    }
+
+    public boolean isEjected(String url) {
+
+        ServerState server = servers.get(url);
+        return server != null && server.ejected;
+    }
+
+    /**
+     * True when at least one server is not ejected
+     */
+    public boolean isAvailable() {
+
+        return servers.values().stream().anyMatch(server -> !server.ejected);
+    }
+
+    public long getEjectionCount() {
+        return ejectionCount.sum();
+    }
+
+    public long getRecoveryCount() {
+        return recoveryCount.sum();
+    }
+
+    @Override
+    public void close() {
+
+        if (probing != null) {
+            probing.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("ldap-server-selector[policy=%s, servers=%s, ejections=%d, recoveries=%d]", policy,
+            servers.values().stream().map(ServerState::toString).collect(Collectors.joining(", ", "[", "]")),
+            getEjectionCount(), getRecoveryCount());
+    }
+}
@@ -1,23 +1,48 @@
 package com.redhat.sso.service;
 
+import com.redhat.sso.cache.BoundedCache;
+import com.redhat.sso.cache.LdapLookupKey;
+import com.redhat.sso.config.BalancingPolicy;
+import com.redhat.sso.config.EvictionPolicy;
+import com.redhat.sso.config.LdapPoolSettings;
+import com.redhat.sso.config.ProviderConfig;
 import org.jboss.logging.Logger;
 
 import javax.naming.CommunicationException;
-import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
-import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class LdapService {
 
@@ -33,32 +58,125 @@ public class LdapService {
         }
     }
 
+    /**
+     * The search returned no entry or more than one entry for the given username
+     */
+    public static class UserNotUniqueException extends IllegalArgumentException {
+
+        private final int count;
+
+        public UserNotUniqueException(String message, int count) {
+
+            super(message);
+            this.count = count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isNotFound() {
+            return count == 0;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ConnectionSource {
+
+        LdapConnectionPool.PooledConnection borrow() throws NamingException;
+    }
+
+    /**
+     * Runs the read of one page of a paged search, i.e. within the limits of the caller: the limits are not held
+     * while the consumer processes the page
+     */
+    @FunctionalInterface
+    public interface PageReader {
+
+        Map<String, Map<String, String>> read(BoundedCache.Loader<Map<String, Map<String, String>>> page) throws NamingException;
+    }
+
     private static final Logger LOGGER = Logger.getLogger(LdapService.class.getName());
+    private static final int MAX_SEARCH_PLANS = 64;
 
-    private final List<String> providerUrls;
-    private final String securityPrincipal;
-    private final String securityCredentials;
+    private final LdapConnectionPool connectionPool;
+    private final LdapServerSelector serverSelector;
+    // null when the searches are not hedged
+    private final LdapRequestHedger hedger;
+    private volatile LdapRequestHedger.HedgeSlots hedgeSlots = LdapRequestHedger.UNLIMITED;
+    private final LdapAsyncExecutor asyncExecutor;
+    private final String userDnTemplate;
+    // username -> DN of the entry found by the last subtree search
+    private final BoundedCache<LdapLookupKey, String> dnIndex;
+    // attribute mapping -> search plan, one per subset of attributes read by the mappers
+    private final Map<Map<String, String>, LdapSearchPlan> plans = new ConcurrentHashMap<>();
+
+    // lookups in progress: a retired service is closed when the last one is over
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicBoolean retired = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private final LongAdder directReadCount = new LongAdder();
+    private final LongAdder directReadMissCount = new LongAdder();
 
     LdapService(List<String> providerUrls, String securityPrincipal, String securityCredentials) {
 
-        this.providerUrls = providerUrls;
-        this.securityPrincipal = securityPrincipal;
-        this.securityCredentials = securityCredentials;
+        this(providerUrls, securityPrincipal, securityCredentials, LdapPoolSettings.defaults());
+    }
+
+    LdapService(List<String> providerUrls, String securityPrincipal, String securityCredentials, LdapPoolSettings poolSettings) {
+
+        this(new LdapConnectionPool(providerUrls, securityPrincipal, securityCredentials, poolSettings));
+    }
+
+    private LdapService(LdapConnectionPool connectionPool) {
+
+        this(connectionPool, new LdapServerSelector(connectionPool.getUrls(), BalancingPolicy.FAILOVER, 0, 0, connectionPool::probe),
+            null, new LdapAsyncExecutor(8, 100, 15000), null, new BoundedCache<>("ldap-dn-index", 0, 0, EvictionPolicy.LRU));
     }
 
-    private DirContext initContext() throws NamingException {
+    LdapService(ProviderConfig config) {
 
-        Hashtable<String, String> env = new Hashtable<>();
-        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        env.put(Context.PROVIDER_URL, providerUrls.stream().reduce("", (a, b) -> a + " " + b));
-        env.put(Context.SECURITY_AUTHENTICATION, "simple");
-        env.put(Context.SECURITY_PRINCIPAL, securityPrincipal);
-        env.put(Context.SECURITY_CREDENTIALS, securityCredentials);
-        env.put("com.sun.jndi.ldap.connect.pool", "true");
-        env.put("com.sun.jndi.ldap.connect.timeout", "10000"); // 10 secs
-        env.put("com.sun.jndi.ldap.read.timeout", "10000"); // 10 secs
-        
-        return new InitialDirContext(env);
+        this(new LdapConnectionPool(config.getProviderUrls(), config.getSecurityPrincipal(), config.getSecurityCredentials(), config.getPoolSettings()), config);
+    }
+
+    private LdapService(LdapConnectionPool connectionPool, ProviderConfig config) {
+
+        this(connectionPool,
+            new LdapServerSelector(connectionPool.getUrls(), config.getBalancingPolicy(), config.getCircuitBreakerFailureThreshold(),
+                config.getCircuitBreakerProbeIntervalMillis(), connectionPool::probe),
+            createHedger(config),
+            new LdapAsyncExecutor(config.getAsyncThreads(), config.getAsyncQueueSize(), config.getAsyncTimeoutMillis()),
+            config.getUserDnTemplate(),
+            new BoundedCache<>("ldap-dn-index", config.getDnCacheMaxSize(), config.getDnCacheTtlMillis(), EvictionPolicy.LRU));
+    }
+
+    private LdapService(LdapConnectionPool connectionPool, LdapServerSelector serverSelector, LdapRequestHedger hedger, LdapAsyncExecutor asyncExecutor,
+        String userDnTemplate, BoundedCache<LdapLookupKey, String> dnIndex) {
+
+        this.connectionPool = connectionPool;
+        this.serverSelector = serverSelector;
+        this.hedger = hedger;
+        this.asyncExecutor = asyncExecutor;
+        this.userDnTemplate = userDnTemplate;
+        this.dnIndex = dnIndex;
+    }
+
+    /**
+     * Slots taken by the hedged searches, the ones of the priority dispatcher of the searches; not limited by default
+     */
+    public void setHedgeSlots(LdapRequestHedger.HedgeSlots hedgeSlots) {
+        this.hedgeSlots = hedgeSlots;
+    }
+
+    private static LdapRequestHedger createHedger(ProviderConfig config) {
+
+        if (!config.isHedgingEnabled() || config.getProviderUrls().size() < 2) {
+            return null;
+        }
+        // a hedged search holds at most one connection on every server
+        int maxInFlight = config.getProviderUrls().size() * config.getPoolSettings().getMaxSize();
+        return new LdapRequestHedger(config.getHedgingPercentile(), config.getHedgingMinDelayMillis(), config.getHedgingInitialDelayMillis(), maxInFlight);
     }
 
     /**
@@ -73,45 +191,209 @@ public class LdapService {
      */
     public Map<String, String> searchUserOnExternalLDAP(String baseDN, String uniqueAttribute, String userName, Map<String, String> attributeMapping) throws NamingException {
 
-        DirContext ctx = createContext();
+        return searchUser(planFor(baseDN, uniqueAttribute, attributeMapping), userName);
+    }
 
-        String filter = String.format("(%s=%s)", uniqueAttribute, userName);
-        SearchControls searchControls = new SearchControls();
-        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    /**
+     * Search User with a precompiled search plan
+     *
+     * @param plan     search plan (base DN, username filter and mapped attributes)
+     * @param userName SSO username
+     * @return Map of key, value attributes found
+     * @throws NamingException when the search went wrong
+     */
+    public Map<String, String> searchUser(LdapSearchPlan plan, String userName) throws NamingException {
 
-        NamingEnumeration<SearchResult> search;
-        try {
+        return track(() -> {
+            SearchResult userFound;
+            try {
+
+                userFound = locateEntry(plan, userName);
+            } catch (CommunicationException e) {
+                LOGGER.warn("LDAP Connection reset detect:" + e.getMessage() + ". Retrying...");
+
+                userFound = locateEntry(plan, userName);
+            }
+
+            return mapAttributes(plan, userName, userFound.getAttributes());
+        });
+    }
+
+    /**
+     * Search several users with a single LDAP search, (|(uniqueAttribute=userName1)(uniqueAttribute=userName2)...) as filter
+     *
+     * @param baseDN           baseDN for the search
+     * @param uniqueAttribute  attribute used on LDAP to filter user (usually cn or samaccountname)
+     * @param userNames        SSO usernames
+     * @param attributeMapping map of attributes names to retrieve and how to map them to user
+     * @return Map of username, key value attributes found; the users not found or found more than once are missing
+     * @throws NamingException when the search went wrong
+     */
+    public Map<String, Map<String, String>> searchUsersOnExternalLDAP(String baseDN, String uniqueAttribute, Collection<String> userNames,
+        Map<String, String> attributeMapping) throws NamingException {
+
+        return searchUsers(planFor(baseDN, uniqueAttribute, attributeMapping), userNames);
+    }
+
+    /**
+     * Search several users with a precompiled search plan and a single LDAP search
+     */
+    public Map<String, Map<String, String>> searchUsers(LdapSearchPlan plan, Collection<String> userNames) throws NamingException {
+
+        return track(() -> {
+            if (userNames.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            List<String> distinctUserNames = new ArrayList<>(new LinkedHashSet<>(userNames));
+
+            Map<String, SearchResult> entries;
+            try {
+                entries = execute(url -> searchMany(plan, distinctUserNames, () -> connectionPool.borrow(url)));
+            } catch (CommunicationException e) {
+                LOGGER.warn("LDAP Connection reset detect:" + e.getMessage() + ". Retrying...");
+
+                entries = execute(url -> searchMany(plan, distinctUserNames, () -> connectionPool.borrow(url)));
+            }
+
+            Map<String, Map<String, String>> result = new HashMap<>();
+            entries.forEach((userName, entry) -> {
+                dnIndex.put(new LdapLookupKey(plan.getBaseDN(), plan.getUniqueAttribute(), userName), entry.getNameInNamespace());
+                result.put(userName, mapAttributes(plan, userName, entry.getAttributes()));
+            });
+            return result;
+        });
+    }
+
+    /**
+     * Read all the users under the base DN, (uniqueAttribute=*) as filter, with the paged results control on a dedicated
+     * connection: the next page is requested only after the consumer has processed the current one
+     *
+     * @param pageSize     max number of users of a page
+     * @param pageConsumer receives the page as a Map of username, key value attributes found
+     * @return number of users read
+     * @throws NamingException when the search went wrong or the thread was interrupted
+     */
+    public int streamUsersOnExternalLDAP(String baseDN, String uniqueAttribute, Map<String, String> attributeMapping, int pageSize,
+        Consumer<Map<String, Map<String, String>>> pageConsumer) throws NamingException {
+
+        return streamUsersOnExternalLDAP(baseDN, uniqueAttribute, attributeMapping, pageSize, BoundedCache.Loader::load, pageConsumer);
+    }
+
+    /**
+     * @param pageReader runs the read of every page
+     */
+    public int streamUsersOnExternalLDAP(String baseDN, String uniqueAttribute, Map<String, String> attributeMapping, int pageSize,
+        PageReader pageReader, Consumer<Map<String, Map<String, String>>> pageConsumer) throws NamingException {
 
-            search = ctx.search(baseDN, filter, searchControls);
-        } catch (CommunicationException e) {
-            LOGGER.warn("LDAP Connection reset detect:" + e.getMessage() + ". Retrying...");
+        return track(() -> {
+            LdapSearchPlan plan = planFor(baseDN, uniqueAttribute, attributeMapping);
+            NamingException lastError = new ServiceUnavailableException("No LDAP server configured");
+            for (String url : serverSelector.select()) {
+                LdapContext context;
+                try {
+                    context = connectionPool.openLdapContext(url);
+                } catch (NamingException e) {
+                    LOGGER.debugf("LDAP server %s not available: %s", url, e.getMessage());
+                    serverSelector.recordFailure(url);
+                    lastError = e;
+                    continue;
+                }
+                try {
+                    // the pages already consumed can't be read again from another server
+                    return streamUsers(plan, context, Math.max(1, pageSize), pageReader, pageConsumer);
+                } catch (InterruptedNamingException e) {
+                    throw e;
+                } catch (NamingException e) {
+                    serverSelector.recordFailure(url);
+                    throw e;
+                } finally {
+                    try {
+                        context.close();
+                    } catch (NamingException e) {
+                        LOGGER.debugf("Error closing the LDAP connection to %s: %s", url, e.getMessage());
+                    }
+                }
+            }
+            throw lastError;
+        });
+    }
+
+    private int streamUsers(LdapSearchPlan plan, LdapContext context, int pageSize, PageReader pageReader,
+        Consumer<Map<String, Map<String, String>>> pageConsumer) throws NamingException {
 
-            closeContext(ctx); 
+        int count = 0;
+        byte[][] cookie = new byte[1][];
+        do {
+            Map<String, Map<String, String>> page = pageReader.read(() -> readPage(plan, context, pageSize, cookie));
 
-            ctx = createContext();
-            
-            search = ctx.search(baseDN, filter, searchControls);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedNamingException("Read of the users under " + plan.getBaseDN() + " interrupted");
+            }
+            if (!page.isEmpty()) {
+                count += page.size();
+                pageConsumer.accept(page);
+            }
+        } while (cookie[0] != null && cookie[0].length > 0);
+        return count;
+    }
+
+    /**
+     * Read the page following the given cookie, replaced with the cookie of the next page
+     */
+    private Map<String, Map<String, String>> readPage(LdapSearchPlan plan, LdapContext context, int pageSize, byte[][] cookie) throws NamingException {
+
+        try {
+            context.setRequestControls(new Control[] {new PagedResultsControl(pageSize, cookie[0], Control.CRITICAL)});
+        } catch (IOException e) {
+            NamingException error = new NamingException("Error encoding the paged results control: " + e.getMessage());
+            error.initCause(e);
+            throw error;
         }
-        finally {
-            closeContext(ctx);
+
+        Map<String, Map<String, String>> page = new LinkedHashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+        NamingEnumeration<SearchResult> results = context.search(plan.getBaseDN(), plan.getAllUsersFilterExpression(), plan.getBatchControls());
+        try {
+            while (results.hasMore()) {
+                SearchResult entry = results.next();
+                Attribute uniqueValue = entry.getAttributes().get(plan.getUniqueAttribute());
+                if (uniqueValue == null || uniqueValue.get() == null) {
+                    continue;
+                }
+                String userName = String.valueOf(uniqueValue.get());
+                if (page.put(userName, mapAttributes(plan, userName, entry.getAttributes())) != null) {
+                    ambiguous.add(userName);
+                }
+            }
+        } finally {
+            results.close();
         }
+        ambiguous.forEach(userName -> {
+            LOGGER.warnf("Found more than one record using baseDN %s and filter %s", plan.getBaseDN(), plan.describeFilter(userName));
+            page.remove(userName);
+        });
 
-        ArrayList<SearchResult> list = Collections.list(search);
-        if (list.size() != 1) {
-            throw new IllegalArgumentException(String.format("Found %s record(s) using baseDN %s and filter %s. Expected 1", list.size(), baseDN, filter));
+        cookie[0] = null;
+        Control[] responseControls = context.getResponseControls();
+        for (int i = 0; responseControls != null && i < responseControls.length; i++) {
+            if (responseControls[i] instanceof PagedResultsResponseControl) {
+                cookie[0] = ((PagedResultsResponseControl) responseControls[i]).getCookie();
+            }
         }
-        SearchResult userFound = list.stream().findFirst().get();
-        final Attributes userAttributes = userFound.getAttributes();
+        return page;
+    }
+
+    private Map<String, String> mapAttributes(LdapSearchPlan plan, String userName, Attributes userAttributes) {
 
         // key1=value1,key2=value2,... -> value1=userAttributes.get(key1),value2=userAttributes.get(key2),...
         Map<String, String> result = new HashMap<>();
-        attributeMapping.forEach((key, value) -> {
+        plan.getAttributeMapping().forEach((key, value) -> {
             try {
                 Attribute attribute = userAttributes.get(key);
                 if (attribute != null && attribute.get() != null) {
                     result.put(value, (String) attribute.get());
                 } else {
-                    LOGGER.warnf("Attribute %s not found in %s using search filter %s", key, baseDN, filter);
+                    LOGGER.warnf("Attribute %s not found in %s using search filter %s", key, plan.getBaseDN(), plan.describeFilter(userName));
                 }
             } catch (NamingException e) {
                 LOGGER.warn("Error when getting LDAP attribute", e);
@@ -121,22 +403,365 @@ public class LdapService {
         return result;
     }
 
-    private void closeContext(DirContext ctx) {
+    /**
+     * Asynchronous variant of {@link #searchUserOnExternalLDAP(String, String, String, Map)}, running on the LDAP executor.
+     * Cancelling the returned future interrupts the search.
+     */
+    public CompletableFuture<Map<String, String>> searchUserOnExternalLDAPAsync(String baseDN, String uniqueAttribute, String userName, Map<String, String> attributeMapping) {
+
+        return supplyAsync(() -> searchUserOnExternalLDAP(baseDN, uniqueAttribute, userName, attributeMapping));
+    }
+
+    /**
+     * Asynchronous variant of {@link #searchUser(LdapSearchPlan, String)}, running on the LDAP executor
+     */
+    public CompletableFuture<Map<String, String>> searchUserAsync(LdapSearchPlan plan, String userName) {
+
+        return supplyAsync(() -> searchUser(plan, userName));
+    }
+
+    /**
+     * Run a blocking LDAP lookup on the bounded LDAP executor
+     *
+     * @return future completed with the lookup result, or exceptionally when the lookup fails, is rejected or times out
+     */
+    public <T> CompletableFuture<T> supplyAsync(BoundedCache.Loader<T> lookup) {
+
+        return asyncExecutor.submit(lookup);
+    }
+
+    private LdapSearchPlan planFor(String baseDN, String uniqueAttribute, Map<String, String> attributeMapping) {
+
+        LdapSearchPlan plan = plans.get(attributeMapping);
+        if (plan == null || !plan.matches(baseDN, uniqueAttribute, attributeMapping)) {
+            if (plans.size() >= MAX_SEARCH_PLANS) {
+                plans.clear();
+            }
+            plan = new LdapSearchPlan(baseDN, uniqueAttribute, attributeMapping, userDnTemplate);
+            plans.put(new HashMap<>(attributeMapping), plan);
+        }
+        return plan;
+    }
+
+    private SearchResult locateEntry(LdapSearchPlan plan, String userName) throws NamingException {
+
+        return execute(url -> findEntry(plan, userName, () -> connectionPool.borrow(url)));
+    }
+
+    /**
+     * Run the request on the servers chosen by the selector, moving to the next server when one fails
+     * or, when hedging is enabled, when one is slow
+     */
+    private <T> T execute(LdapRequestHedger.ServerRequest<T> request) throws NamingException {
+
+        List<String> urls = serverSelector.select();
+        if (hedger != null && urls.size() > 1) {
+            return hedger.execute(urls, hedgeSlots, url -> executeOn(url, request));
+        }
+
+        NamingException lastError = new ServiceUnavailableException("No LDAP server configured");
+        for (String url : urls) {
+            try {
+                return executeOn(url, request);
+            } catch (InterruptedNamingException e) {
+                throw e;
+            } catch (NamingException e) {
+                LOGGER.debugf("LDAP request on %s failed: %s", url, e.getMessage());
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Run the request on the given server, reporting the outcome to the selector
+     */
+    private <T> T executeOn(String url, LdapRequestHedger.ServerRequest<T> request) throws NamingException {
+
+        long start = System.nanoTime();
         try {
-            ctx.close();
+            T result = request.execute(url);
+            serverSelector.recordSuccess(url, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return result;
+        } catch (UserNotUniqueException e) {
+            // the server answered
+            serverSelector.recordSuccess(url, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            throw e;
+        } catch (InterruptedNamingException e) {
+            // search cancelled by the hedging, not a failure of the server
+            throw e;
         } catch (NamingException e) {
-            LOGGER.warn("Error closing the LDAP context: " + e.getMessage(), e);
-        }    
+            serverSelector.recordFailure(url);
+            throw e;
+        }
+    }
+
+    /**
+     * Read the entry directly when its DN is known (from the DN template or from a previous search),
+     * falling back to the subtree search when the entry has moved
+     */
+    private SearchResult findEntry(LdapSearchPlan plan, String userName, ConnectionSource connectionSource) throws NamingException {
+
+        LdapLookupKey key = new LdapLookupKey(plan.getBaseDN(), plan.getUniqueAttribute(), userName);
+        String userDN = Optional.ofNullable(dnIndex.getIfPresent(key)).orElseGet(() -> plan.userDN(userName));
+        if (userDN != null) {
+            SearchResult entry = readEntry(plan, userDN, userName, connectionSource);
+            if (entry != null) {
+                directReadCount.increment();
+                return entry;
+            }
+            LOGGER.debugf("Entry %s of user %s not found, falling back to the search under %s", userDN, userName, plan.getBaseDN());
+            directReadMissCount.increment();
+            dnIndex.invalidate(key);
+        }
+
+        SearchResult entry = searchUnique(plan, userName, connectionSource);
+        dnIndex.put(key, entry.getNameInNamespace());
+        return entry;
     }
 
-    private DirContext createContext() throws LdapCtxCreationException {
-        DirContext ctx;
+    /**
+     * Base-object read of the given DN, null when the entry doesn't exist or doesn't belong to the user anymore
+     */
+    private SearchResult readEntry(LdapSearchPlan plan, String userDN, String userName, ConnectionSource connectionSource) throws NamingException {
+
+        LdapConnectionPool.PooledConnection connection = connectionSource.borrow();
+        SearchResult entry = null;
         try {
-            ctx = initContext();
-            LOGGER.debug("LDAP Context initialized");
-        } catch (NamingException e) {
-            throw new LdapCtxCreationException(e);
+            NamingEnumeration<SearchResult> results = connection.getContext().search(
+                userDN, plan.getFilterExpression(), new Object[] {userName}, plan.getEntryControls());
+            try {
+                if (results.hasMore()) {
+                    entry = results.next();
+                }
+            } finally {
+                results.close();
+            }
+        } catch (NameNotFoundException e) {
+            // the connection is still healthy
+            LOGGER.debugf("Entry %s not found: %s", userDN, e.getMessage());
+        } catch (NamingException | RuntimeException e) {
+            connectionPool.invalidate(connection);
+            throw e;
+        }
+        connectionPool.release(connection);
+        return entry;
+    }
+
+    /**
+     * Read at most {@link LdapSearchPlan#COUNT_LIMIT} entries, stopping as soon as the username is known to be ambiguous
+     */
+    private SearchResult searchUnique(LdapSearchPlan plan, String userName, ConnectionSource connectionSource) throws NamingException {
+
+        SearchResult first = null;
+        int count = 0;
+
+        LdapConnectionPool.PooledConnection connection = connectionSource.borrow();
+        try {
+            NamingEnumeration<SearchResult> results = connection.getContext().search(
+                plan.getBaseDN(), plan.getFilterExpression(), new Object[] {userName}, plan.getSearchControls());
+            try {
+                while (count < LdapSearchPlan.COUNT_LIMIT && results.hasMore()) {
+                    SearchResult result = results.next();
+                    if (first == null) {
+                        first = result;
+                    }
+                    count++;
+                }
+            } catch (SizeLimitExceededException e) {
+                // more entries than the count limit
+                count = (int) LdapSearchPlan.COUNT_LIMIT;
+            } finally {
+                results.close();
+            }
+            connectionPool.release(connection);
+        } catch (NamingException | RuntimeException e) {
+            // the state of the connection is unknown after a failure: don't give it back to the pool
+            connectionPool.invalidate(connection);
+            throw e;
+        }
+
+        if (count != 1) {
+            throw new UserNotUniqueException(String.format("Found %s record(s) using baseDN %s and filter %s. Expected 1", count, plan.getBaseDN(), plan.describeFilter(userName)), count);
+        }
+        return first;
+    }
+
+    /**
+     * Subtree search of several users at once, keeping only the users matching exactly one entry
+     */
+    private Map<String, SearchResult> searchMany(LdapSearchPlan plan, List<String> userNames, ConnectionSource connectionSource) throws NamingException {
+
+        // LDAP compares usernames ignoring the case
+        Map<String, String> requested = new HashMap<>();
+        userNames.forEach(userName -> requested.put(userName.toLowerCase(Locale.ROOT), userName));
+        Map<String, SearchResult> found = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+
+        LdapConnectionPool.PooledConnection connection = connectionSource.borrow();
+        try {
+            NamingEnumeration<SearchResult> results = connection.getContext().search(
+                plan.getBaseDN(), plan.getBatchFilterExpression(userNames.size()), userNames.toArray(), plan.getBatchControls());
+            try {
+                while (results.hasMore()) {
+                    SearchResult entry = results.next();
+                    Attribute uniqueValues = entry.getAttributes().get(plan.getUniqueAttribute());
+                    NamingEnumeration<?> values = uniqueValues == null ? null : uniqueValues.getAll();
+                    while (values != null && values.hasMore()) {
+                        String userName = requested.get(String.valueOf(values.next()).toLowerCase(Locale.ROOT));
+                        if (userName != null && found.putIfAbsent(userName, entry) != null && found.get(userName) != entry) {
+                            ambiguous.add(userName);
+                        }
+                    }
+                }
+            } finally {
+                results.close();
+            }
+            connectionPool.release(connection);
+        } catch (NamingException | RuntimeException e) {
+            // the state of the connection is unknown after a failure: don't give it back to the pool
+            connectionPool.invalidate(connection);
+            throw e;
+        }
+
+        ambiguous.forEach(userName -> {
+            LOGGER.warnf("Found more than one record using baseDN %s and filter %s", plan.getBaseDN(), plan.describeFilter(userName));
+            found.remove(userName);
+        });
+        userNames.stream().filter(userName -> !found.containsKey(userName) && !ambiguous.contains(userName))
+            .forEach(userName -> LOGGER.warnf("Found 0 record(s) using baseDN %s and filter %s", plan.getBaseDN(), plan.describeFilter(userName)));
+        return found;
+    }
+
+    /**
+     * True when the services built for the two configurations would be the same: the same servers, credentials,
+     * connection pool, balancing, hedging, LDAP executor and DN index
+     */
+    public static boolean hasSameSettings(ProviderConfig config, ProviderConfig other) {
+
+        return config.getProviderUrls().equals(other.getProviderUrls())
+            && Objects.equals(config.getSecurityPrincipal(), other.getSecurityPrincipal())
+            && Objects.equals(config.getSecurityCredentials(), other.getSecurityCredentials())
+            && Objects.equals(config.getPoolSettings(), other.getPoolSettings())
+            && config.getBalancingPolicy() == other.getBalancingPolicy()
+            && config.getCircuitBreakerFailureThreshold() == other.getCircuitBreakerFailureThreshold()
+            && config.getCircuitBreakerProbeIntervalMillis() == other.getCircuitBreakerProbeIntervalMillis()
+            && config.isHedgingEnabled() == other.isHedgingEnabled()
+            && config.getHedgingPercentile() == other.getHedgingPercentile()
+            && config.getHedgingMinDelayMillis() == other.getHedgingMinDelayMillis()
+            && config.getHedgingInitialDelayMillis() == other.getHedgingInitialDelayMillis()
+            && config.getAsyncThreads() == other.getAsyncThreads()
+            && config.getAsyncQueueSize() == other.getAsyncQueueSize()
+            && config.getAsyncTimeoutMillis() == other.getAsyncTimeoutMillis()
+            && Objects.equals(config.getUserDnTemplate(), other.getUserDnTemplate())
+            && config.getDnCacheMaxSize() == other.getDnCacheMaxSize()
+            && config.getDnCacheTtlMillis() == other.getDnCacheTtlMillis();
+    }
+
+    /**
+     * Run a lookup counted as in progress until its end
+     */
+    private <T> T track(BoundedCache.Loader<T> lookup) throws NamingException {
+
+        lookups.incrementAndGet();
+        try {
+            return lookup.load();
+        } finally {
+            if (lookups.decrementAndGet() == 0 && retired.get()) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Close the connections once the lookups in progress are over, at once when there are none: the service of a
+     * replaced configuration, no longer used by the new lookups
+     */
+    public void closeWhenIdle() {
+
+        retired.set(true);
+        if (lookups.get() == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Close the connections to the external LDAP servers
+     */
+    public void close() {
+
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (hedger != null) {
+            hedger.close();
+        }
+        asyncExecutor.close();
+        serverSelector.close();
+        connectionPool.close();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public LdapConnectionPool getConnectionPool() {
+
+        return connectionPool;
+    }
+
+    /**
+     * True when at least one LDAP server is not ejected by its circuit breaker
+     */
+    public boolean isAvailable() {
+
+        return serverSelector.isAvailable();
+    }
+
+    public LdapServerSelector getServerSelector() {
+
+        return serverSelector;
+    }
+
+    public LdapAsyncExecutor getAsyncExecutor() {
+
+        return asyncExecutor;
+    }
+
+    public long getDirectReadCount() {
+
+        return directReadCount.sum();
+    }
+
+    public long getDirectReadMissCount() {
+
+        return directReadMissCount.sum();
+    }
+
+    /**
+     * Searches sent to a second server because the first one was slow
+     */
+    public long getHedgedCount() {
+
+        return hedger == null ? 0 : hedger.getHedgedCount();
+    }
+
+    /**
+     * Hedged searches answered first by the second server
+     */
+    public long getHedgeWonCount() {
+
+        return hedger == null ? 0 : hedger.getHedgeWonCount();
+    }
+
+    public void logStatistics() {
+
+        LOGGER.infof("LDAP connection pool statistics: %s", connectionPool);
+        LOGGER.infof("LDAP server statistics: %s", serverSelector);
+        LOGGER.infof("LDAP asynchronous lookup statistics: %s", asyncExecutor);
+        LOGGER.infof("LDAP DN index statistics: %s, directReads=%d, directReadMisses=%d", dnIndex.stats(), directReadCount.sum(), directReadMissCount.sum());
+        if (hedger != null) {
+            LOGGER.infof("LDAP hedging statistics: %s", hedger);
         }
-        return ctx;
     }
 }
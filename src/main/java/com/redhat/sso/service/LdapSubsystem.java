@@ -0,0 +1,158 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.config.ProviderConfig;
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The LDAP subsystem shared by the mapper and the event listener of the JVM: a single configuration and a single
+ * set of UserServices, the default one and the ones of the realms with LDAP settings of their own, so a single set of
+ * caches, connection pools and statistics.
+ * The subsystem is created by the first provider using it and closed by the shutdown of the event listener factory,
+ * the only provider factory closed once at shutdown (a protocol mapper is closed with every session).
+ * When the configuration is read from EXTERNAL_LDAP_CONFIG_FILE too, the file is checked for changes: a changed
+ * configuration replaces the LDAP services of the UserServices, and the caches whose settings changed; the previous LDAP
+ * services are closed when the lookups started before the change are over. The settings of
+ * {@link ProviderConfig#STARTUP_ONLY_SETTINGS} are not reloaded: a change is logged and applied at the next restart.
+ * The statistics of the caches and of the LDAP connections are logged every statistics log interval, and at shutdown.
+ */
+public final class LdapSubsystem {
+
+    private static final Logger LOGGER = Logger.getLogger(LdapSubsystem.class.getName());
+
+    private static LdapSubsystem shared;
+
+    private final RealmUserServices userServices;
+    // null when the configuration is not read from a file or the file is not checked for changes
+    private final ScheduledExecutorService watcher;
+    // null when the statistics are logged at shutdown only
+    private final ScheduledExecutorService statisticsLogger;
+    private volatile ProviderConfig config;
+    private Map<String, String> environment;
+
+    LdapSubsystem(Map<String, String> environment, ProviderConfig config, UserService userService) {
+
+        this.environment = environment;
+        this.config = config;
+        this.userServices = new RealmUserServices(userService, environment);
+        long interval = config.getConfigFilePollIntervalMillis();
+        if (config.getConfigFile() == null || interval <= 0) {
+            this.watcher = null;
+        } else {
+            this.watcher = newScheduler("sso-ldap-config-watcher");
+            this.watcher.scheduleWithFixedDelay(this::reload, interval, interval, TimeUnit.MILLISECONDS);
+            LOGGER.infof("Configuration file %s checked for changes every %d ms", config.getConfigFile(), interval);
+        }
+        long statisticsInterval = config.getStatisticsLogIntervalMillis();
+        if (statisticsInterval <= 0) {
+            this.statisticsLogger = null;
+        } else {
+            this.statisticsLogger = newScheduler("sso-ldap-statistics");
+            this.statisticsLogger.scheduleWithFixedDelay(this::logStatistics, statisticsInterval, statisticsInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static ScheduledExecutorService newScheduler(String threadName) {
+
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void logStatistics() {
+
+        try {
+            userServices.logStatistics();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Statistics of the LDAP subsystem not logged", e);
+        }
+    }
+
+    /**
+     * The subsystem of the JVM, created at the first call
+     */
+    public static synchronized LdapSubsystem get() {
+
+        if (shared == null) {
+            Map<String, String> environment = ProviderConfig.environment(System.getenv());
+            ProviderConfig config = new ProviderConfig(environment);
+            shared = new LdapSubsystem(environment, config, new UserService(new LdapService(config), config));
+            LOGGER.infof("LDAP subsystem started on %s", config.getProviderUrls());
+        }
+        return shared;
+    }
+
+    /**
+     * Close the subsystem of the JVM, if any: the next call of {@link #get()} creates a new one
+     */
+    public static synchronized void shutdown() {
+
+        if (shared == null) {
+            return;
+        }
+        if (shared.watcher != null) {
+            shared.watcher.shutdownNow();
+        }
+        if (shared.statisticsLogger != null) {
+            shared.statisticsLogger.shutdownNow();
+        }
+        shared.userServices.logStatistics();
+        shared.userServices.close();
+        shared = null;
+        LOGGER.info("LDAP subsystem closed");
+    }
+
+    /**
+     * Read the configuration again and apply it when changed; an invalid configuration is discarded
+     *
+     * @return true when a new configuration has been applied
+     */
+    synchronized boolean reload() {
+
+        ProviderConfig previous = config;
+        Map<String, String> changed;
+        ProviderConfig reloaded;
+        try {
+            changed = ProviderConfig.environment(System.getenv());
+            if (changed.equals(environment)) {
+                return false;
+            }
+            reloaded = new ProviderConfig(changed);
+        } catch (IllegalArgumentException e) {
+            LOGGER.errorf(e, "Configuration file %s not valid, the current configuration is kept", previous.getConfigFile());
+            return false;
+        }
+
+        ProviderConfig.STARTUP_ONLY_SETTINGS.stream()
+            .filter(name -> !Objects.equals(environment.get(name), changed.get(name)))
+            .forEach(name -> LOGGER.warnf("%s changed in configuration file %s, the change is applied at the next restart only",
+                name, reloaded.getConfigFile()));
+        userServices.reconfigure(changed, reloaded);
+        config = reloaded;
+        environment = changed;
+        LOGGER.infof("Configuration file %s reloaded", reloaded.getConfigFile());
+        return true;
+    }
+
+    public ProviderConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The default UserService, the one of the realms without LDAP settings of their own
+     */
+    public UserService getUserService() {
+        return userServices.getDefault();
+    }
+
+    public RealmUserServices getUserServices() {
+        return userServices;
+    }
+}
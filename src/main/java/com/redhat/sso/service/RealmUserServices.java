@@ -0,0 +1,326 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.config.LdapPoolSettings;
+import com.redhat.sso.config.ProviderConfig;
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The UserService of every realm.
+ * A realm with LDAP settings of its own, or every realm when EXTERNAL_LDAP_REALM_ISOLATION_ENABLED is true, has a
+ * UserService of its own, created the first time the realm is used: its own connection pool, LDAP executor and caches,
+ * so the lookups of a busy realm wait for the connections of that realm only. The other realms share the default
+ * UserService.
+ * The settings of a realm come from two sources:
+ * <ul>
+ * <li>the realm attributes named as the environment variables they override, restricted to the attribute map, the
+ * username filter and the sizes of the caches and of the pool: a realm administrator can't point the global
+ * credentials to another server or another subtree</li>
+ * <li>the entries of the configuration named {@code <realm name>.<environment variable>}, for example
+ * {@code tenant.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS}, any setting: a realm with provider urls of its own must have
+ * its own principal and credentials too</li>
+ * </ul>
+ * The settings of the event listener workers, journal and reconciliation are JVM wide and not read from the realms.
+ */
+public final class RealmUserServices {
+
+    /**
+     * Settings of a realm parsed from its attributes and the configuration, valid as long as they are the same instances:
+     * the realm cache of Keycloak returns the same attribute map until the realm is updated on any node of the cluster
+     */
+    private static final class ParsedSettings {
+
+        private final Map<String, String> attributes;
+        private final Map<String, String> environment;
+        private final Map<String, String> settings;
+
+        private ParsedSettings(Map<String, String> attributes, Map<String, String> environment, Map<String, String> settings) {
+            this.attributes = attributes;
+            this.environment = environment;
+            this.settings = settings;
+        }
+    }
+
+    private static final class RealmEntry {
+
+        private final Map<String, String> settings;
+        private final UserService userService;
+
+        private RealmEntry(Map<String, String> settings, UserService userService) {
+            this.settings = settings;
+            this.userService = userService;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RealmUserServices.class.getName());
+
+    private static final String SETTING_PREFIX = "EXTERNAL_LDAP_";
+
+    /**
+     * Settings a realm attribute can override
+     */
+    private static final Set<String> REALM_ATTRIBUTE_SETTINGS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP,
+        ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER,
+        ProviderConfig.EXTERNAL_LDAP_CACHE_MAX_SIZE,
+        ProviderConfig.EXTERNAL_LDAP_CACHE_TTL_MILLIS,
+        ProviderConfig.EXTERNAL_LDAP_CACHE_EVICTION_POLICY,
+        ProviderConfig.EXTERNAL_LDAP_NEGATIVE_CACHE_MAX_SIZE,
+        ProviderConfig.EXTERNAL_LDAP_NEGATIVE_CACHE_TTL_MILLIS,
+        ProviderConfig.EXTERNAL_LDAP_DN_CACHE_MAX_SIZE,
+        ProviderConfig.EXTERNAL_LDAP_DN_CACHE_TTL_MILLIS,
+        ProviderConfig.EXTERNAL_LDAP_POOL_MIN_SIZE,
+        ProviderConfig.EXTERNAL_LDAP_POOL_MAX_SIZE)));
+
+    private final UserService defaultService;
+    // null when the realms share the default UserService
+    private final ScheduledExecutorService retirer;
+    private final Map<String, RealmEntry> realms = new ConcurrentHashMap<>();
+    private final Map<String, ParsedSettings> parsedSettings = new ConcurrentHashMap<>();
+    private volatile Map<String, String> environment;
+
+    /**
+     * One UserService for all the realms
+     */
+    public RealmUserServices(UserService userService) {
+
+        this.defaultService = userService;
+        this.environment = null;
+        this.retirer = null;
+    }
+
+    /**
+     * @param environment the configuration overridden by the settings of the realms
+     */
+    public RealmUserServices(UserService defaultService, Map<String, String> environment) {
+
+        this.defaultService = defaultService;
+        this.environment = environment;
+        this.retirer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sso-ldap-retirer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The UserService of the realm, created the first time the realm is used and configured again when its settings change
+     *
+     * @throws IllegalArgumentException if the settings of the realm are not valid
+     */
+    public UserService forRealm(RealmModel realm) {
+
+        if (retirer == null || realm == null) {
+            return defaultService;
+        }
+        Map<String, String> settings = settings(realm);
+        if (settings.isEmpty() && !defaultService.getConfig().isRealmIsolationEnabled()) {
+            if (realms.containsKey(realm.getId())) {
+                release(realm);
+            }
+            return defaultService;
+        }
+        RealmEntry entry = realms.get(realm.getId());
+        if (entry != null && entry.settings.equals(settings)) {
+            return entry.userService;
+        }
+        return configure(realm, settings);
+    }
+
+    /**
+     * The UserService already created for the realm, the default one otherwise
+     */
+    public UserService forRealmId(String realmId) {
+
+        RealmEntry entry = realmId == null ? null : realms.get(realmId);
+        return entry == null ? defaultService : entry.userService;
+    }
+
+    public UserService getDefault() {
+        return defaultService;
+    }
+
+    /**
+     * True when the realm is served by the default UserService
+     */
+    public boolean isDefault(RealmModel realm) {
+        return retirer == null || (settings(realm).isEmpty() && !defaultService.getConfig().isRealmIsolationEnabled());
+    }
+
+    private Map<String, String> settings(RealmModel realm) {
+
+        Map<String, String> attributes = realm.getAttributes();
+        Map<String, String> current = environment;
+        ParsedSettings parsed = parsedSettings.get(realm.getId());
+        if (parsed != null && parsed.attributes == attributes && parsed.environment == current) {
+            return parsed.settings;
+        }
+        Map<String, String> settings = settings(realm.getName(), attributes, current);
+        parsedSettings.put(realm.getId(), new ParsedSettings(attributes, current, settings));
+        return settings;
+    }
+
+    /**
+     * The allowed settings of the realm attributes overridden by the settings of the realm in the configuration
+     */
+    private static Map<String, String> settings(String realmName, Map<String, String> attributes, Map<String, String> environment) {
+
+        Map<String, String> settings = new TreeMap<>();
+        if (attributes != null) {
+            attributes.forEach((name, value) -> {
+                if (!name.startsWith(SETTING_PREFIX) || value == null) {
+                    return;
+                }
+                if (REALM_ATTRIBUTE_SETTINGS.contains(name)) {
+                    settings.put(name, value);
+                } else {
+                    LOGGER.warnf("Realm attribute %s of realm %s ignored, set it in the configuration as %s.%s", name, realmName, realmName, name);
+                }
+            });
+        }
+        String prefix = realmName + ".";
+        environment.forEach((name, value) -> {
+            if (name.startsWith(prefix) && name.startsWith(SETTING_PREFIX, prefix.length()) && value != null) {
+                settings.put(name.substring(prefix.length()), value);
+            }
+        });
+        return settings.isEmpty() ? Collections.emptyMap() : settings;
+    }
+
+    /**
+     * The global credentials are never sent to the servers of a realm
+     */
+    private static void checkCredentials(Map<String, String> settings) {
+
+        if (settings.containsKey(ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS)
+            && (!settings.containsKey(ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL) || !settings.containsKey(ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS))) {
+            throw new IllegalArgumentException(String.format("%s is set without %s and %s", ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS,
+                ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS));
+        }
+    }
+
+    private synchronized UserService configure(RealmModel realm, Map<String, String> settings) {
+
+        RealmEntry entry = realms.get(realm.getId());
+        if (entry != null && entry.settings.equals(settings)) {
+            return entry.userService;
+        }
+        ProviderConfig config;
+        try {
+            checkCredentials(settings);
+            config = new ProviderConfig(merge(environment, settings));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("The LDAP settings of realm %s are not valid: %s", realm.getName(), e.getMessage()), e);
+        }
+
+        UserService userService;
+        if (entry == null) {
+            userService = new UserService(new LdapService(config), config);
+            LOGGER.infof("LDAP connections and caches of realm %s created, realm settings %s", realm.getName(), settings.keySet());
+        } else {
+            userService = entry.userService;
+            reconfigure(userService, config);
+            LOGGER.infof("LDAP settings of realm %s changed, realm settings %s", realm.getName(), settings.keySet());
+        }
+        realms.put(realm.getId(), new RealmEntry(settings, userService));
+        return userService;
+    }
+
+    private synchronized void release(RealmModel realm) {
+
+        RealmEntry entry = realms.remove(realm.getId());
+        if (entry != null) {
+            retire(entry.userService::closeWhenIdle, entry.userService.getConfig());
+            LOGGER.infof("LDAP settings of realm %s removed, realm served by the default LDAP connections", realm.getName());
+        }
+    }
+
+    /**
+     * Apply a new configuration to the default UserService and to the UserServices of the realms, keeping the settings
+     * of the realms; a realm whose settings are no longer valid keeps its current configuration
+     */
+    public synchronized void reconfigure(Map<String, String> environment, ProviderConfig config) {
+
+        this.environment = environment;
+        reconfigure(defaultService, config);
+        realms.forEach((realmId, entry) -> {
+            ProviderConfig realmConfig;
+            try {
+                realmConfig = new ProviderConfig(merge(environment, entry.settings));
+            } catch (IllegalArgumentException e) {
+                LOGGER.errorf(e, "LDAP settings of realm %s not valid with the new configuration, the current one is kept", realmId);
+                return;
+            }
+            reconfigure(entry.userService, realmConfig);
+        });
+    }
+
+    /**
+     * Apply a configuration to a UserService, with a new LDAP service only when the LDAP settings changed
+     */
+    private void reconfigure(UserService userService, ProviderConfig config) {
+
+        ProviderConfig previous = userService.getConfig();
+        if (LdapService.hasSameSettings(previous, config)) {
+            userService.reconfigure(config);
+        } else {
+            retire(userService.reconfigure(new LdapService(config), config), previous);
+        }
+    }
+
+    /**
+     * Close the LDAP service replaced by a new configuration once the lookups started before are over: the lookups
+     * already holding the previous configuration start within the grace period, then the service is closed when the
+     * last lookup in progress ends, whatever the time it takes on the failover and hedged servers
+     */
+    private void retire(LdapService retired, ProviderConfig previous) {
+        retire(retired::closeWhenIdle, previous);
+    }
+
+    private void retire(Runnable close, ProviderConfig previous) {
+
+        LdapPoolSettings settings = previous.getPoolSettings();
+        long grace = settings.getBorrowTimeoutMillis() + settings.getConnectTimeoutMillis() + settings.getReadTimeoutMillis();
+        retirer.schedule(close, grace, TimeUnit.MILLISECONDS);
+        LOGGER.debugf("Previous LDAP connections closed in %d ms", grace);
+    }
+
+    private static Map<String, String> merge(Map<String, String> environment, Map<String, String> settings) {
+
+        Map<String, String> merged = new HashMap<>(environment);
+        merged.putAll(settings);
+        return merged;
+    }
+
+    public void logStatistics() {
+
+        defaultService.logStatistics();
+        realms.forEach((realmId, entry) -> {
+            LOGGER.infof("Statistics of the LDAP connections and caches of realm %s", realmId);
+            entry.userService.logStatistics();
+        });
+    }
+
+    public void close() {
+
+        if (retirer != null) {
+            // the LDAP services already retired are still closed at the end of their grace period
+            retirer.shutdown();
+        }
+        defaultService.close();
+        realms.values().forEach(entry -> entry.userService.close());
+        realms.clear();
+    }
+}
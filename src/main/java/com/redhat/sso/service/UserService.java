@@ -1,39 +1,559 @@
 package com.redhat.sso.service;
 
 
+import com.redhat.sso.cache.BoundedCache;
+import com.redhat.sso.cache.CacheStats;
+import com.redhat.sso.cache.LdapLookupKey;
+import com.redhat.sso.cache.RequestScopedMemo;
+import com.redhat.sso.cache.SingleFlight;
+import com.redhat.sso.config.EvictionPolicy;
 import com.redhat.sso.config.ProviderConfig;
+import com.redhat.sso.service.LdapPriorityDispatcher.Priority;
+import com.redhat.sso.service.LdapService.UserNotUniqueException;
+import com.redhat.sso.utils.HashUtils;
 import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 
 import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class UserService {
     private static final Logger LOGGER = Logger.getLogger(UserService.class.getName());
 
-    private final LdapService ldapService;
-    private final ProviderConfig config;
+    /**
+     * User attribute with the fingerprint of the LDAP attributes written at the last synchronization
+     */
+    public static final String LDAP_ATTRIBUTES_FINGERPRINT = "ldapAttributesFingerprint";
+
+    /**
+     * User attribute with the time of the last synchronization, written when the local claims are enabled
+     */
+    public static final String LDAP_ATTRIBUTES_SYNCHRONIZED_AT = "ldapAttributesSynchronizedAt";
+
+    /**
+     * Prefix of the key of the LDAP attributes of a user memoized in the KeycloakSession
+     */
+    public static final String LDAP_ATTRIBUTES_MEMO = "ldap-attributes:";
+
+    /**
+     * LDAP service and caches built for a configuration: a lookup uses the snapshot current when it starts,
+     * even when the configuration is reloaded before its end
+     */
+    private static final class Snapshot {
+
+        private final LdapService ldapService;
+        private final ProviderConfig config;
+        private final BoundedCache<LdapLookupKey, Map<String, String>> attributeCache;
+        private final BoundedCache<LdapLookupKey, UserNotUniqueException> negativeCache;
+        // a caller joins only the searches of its own priority, so a mapper never waits for a background search
+        private final Map<Priority, SingleFlight<LdapLookupKey, Map<String, String>>> singleFlights;
+        // realm id/user id -> time of the last synchronization, expired after the min resync interval
+        private final BoundedCache<String, Long> syncMarkers;
+        // searches of the token mappers (user-facing) and of the event listener (background) limited apart
+        private final LdapBulkhead mapperBulkhead;
+        private final LdapBulkhead listenerBulkhead;
+        // null when the searches are not dispatched by priority
+        private final LdapPriorityDispatcher dispatcher;
+
+        private Snapshot(LdapService ldapService, ProviderConfig config) {
+            this(ldapService, config, null);
+        }
+
+        /**
+         * @param previous snapshot whose caches, bulkheads and dispatcher are kept when their settings are unchanged, if any
+         */
+        private Snapshot(LdapService ldapService, ProviderConfig config, Snapshot previous) {
+            this.ldapService = ldapService;
+            this.config = config;
+            ProviderConfig before = previous == null ? null : previous.config;
+            // the cached entries are kept only when they would be read the same way from the same servers
+            boolean sameEntries = before != null && before.getProviderUrls().equals(config.getProviderUrls())
+                && before.getExternalAttributes().equals(config.getExternalAttributes());
+            this.attributeCache = sameEntries && before.getCacheMaxSize() == config.getCacheMaxSize()
+                && before.getCacheTtlMillis() == config.getCacheTtlMillis() && before.getCacheEvictionPolicy() == config.getCacheEvictionPolicy()
+                ? previous.attributeCache
+                : new BoundedCache<>("ldap-attributes", config.getCacheMaxSize(), config.getCacheTtlMillis(), config.getCacheEvictionPolicy());
+            this.negativeCache = sameEntries && before.getNegativeCacheMaxSize() == config.getNegativeCacheMaxSize()
+                && before.getNegativeCacheTtlMillis() == config.getNegativeCacheTtlMillis()
+                ? previous.negativeCache
+                : new BoundedCache<>("ldap-negative", config.getNegativeCacheMaxSize(), config.getNegativeCacheTtlMillis(), EvictionPolicy.LRU);
+            if (before != null && before.getSingleFlightTimeoutMillis() == config.getSingleFlightTimeoutMillis()) {
+                this.singleFlights = previous.singleFlights;
+            } else {
+                this.singleFlights = new EnumMap<>(Priority.class);
+                for (Priority priority : Priority.values()) {
+                    this.singleFlights.put(priority, new SingleFlight<>(config.getSingleFlightTimeoutMillis()));
+                }
+            }
+            this.syncMarkers = before != null && before.getResyncMarkerMaxSize() == config.getResyncMarkerMaxSize()
+                && before.getMinResyncIntervalMillis() == config.getMinResyncIntervalMillis()
+                ? previous.syncMarkers
+                : new BoundedCache<>("user-sync-markers", config.getResyncMarkerMaxSize(), config.getMinResyncIntervalMillis(), EvictionPolicy.LRU);
+            boolean sameBulkheadWait = before != null && before.getBulkheadMaxWaitMillis() == config.getBulkheadMaxWaitMillis();
+            this.mapperBulkhead = sameBulkheadWait && before.getMapperMaxConcurrent() == config.getMapperMaxConcurrent()
+                && before.getMapperMaxQueued() == config.getMapperMaxQueued()
+                ? previous.mapperBulkhead
+                : new LdapBulkhead("mapper", config.getMapperMaxConcurrent(), config.getMapperMaxQueued(), config.getBulkheadMaxWaitMillis());
+            this.listenerBulkhead = sameBulkheadWait && before.getListenerMaxConcurrent() == config.getListenerMaxConcurrent()
+                && before.getListenerMaxQueued() == config.getListenerMaxQueued()
+                ? previous.listenerBulkhead
+                : new LdapBulkhead("listener", config.getListenerMaxConcurrent(), config.getListenerMaxQueued(), config.getBulkheadMaxWaitMillis());
+            if (!config.isPriorityDispatchEnabled()) {
+                this.dispatcher = null;
+            } else if (previous != null && previous.dispatcher != null
+                && before.getPoolSettings().getMaxSize() == config.getPoolSettings().getMaxSize()
+                && before.getMapperReservedSlots() == config.getMapperReservedSlots()
+                && before.getPoolSettings().getBorrowTimeoutMillis() == config.getPoolSettings().getBorrowTimeoutMillis()) {
+                this.dispatcher = previous.dispatcher;
+            } else {
+                this.dispatcher = new LdapPriorityDispatcher(config.getPoolSettings().getMaxSize(), config.getMapperReservedSlots(),
+                    config.getPoolSettings().getBorrowTimeoutMillis());
+            }
+            if (dispatcher != null) {
+                // a hedged search holds a second connection, so its hedge takes a second slot
+                ldapService.setHedgeSlots(dispatcher);
+            }
+        }
+
+        /**
+         * Run a search within the limit of its caller, after the searches of higher priority
+         */
+        private <T> T search(Priority priority, BoundedCache.Loader<T> search) throws NamingException {
+
+            LdapBulkhead bulkhead = priority == Priority.INTERACTIVE ? mapperBulkhead : listenerBulkhead;
+            return bulkhead.call(() -> dispatch(priority, search));
+        }
+
+        private <T> T dispatch(Priority priority, BoundedCache.Loader<T> search) throws NamingException {
+            return dispatcher == null ? search.load() : dispatcher.call(priority, search);
+        }
+    }
+
+    private volatile Snapshot snapshot;
+    private final LongAdder unchangedCount = new LongAdder();
+    private final LongAdder writtenAttributeCount = new LongAdder();
+    private final LongAdder localClaimsCount = new LongAdder();
+    private final LongAdder staleLocalClaimsCount = new LongAdder();
+    private final LongAdder degradedTokenCount = new LongAdder();
 
     public UserService(LdapService ldapService, ProviderConfig config) {
-        this.ldapService = ldapService;
-        this.config = config;
+        this.snapshot = new Snapshot(ldapService, config);
     }
 
     public UserService() {
-        this.config = new ProviderConfig();
-        this.ldapService = new LdapService(config.getProviderUrls(), config.getSecurityPrincipal(), config.getSecurityCredentials());
+        this(new ProviderConfig());
+    }
+
+    private UserService(ProviderConfig config) {
+        this(new LdapService(config), config);
+    }
+
+    /**
+     * Switch to a new configuration: the lookups started before go on with the previous LDAP service, the following
+     * ones use the new one. The caches, the sync markers, the bulkheads and the dispatcher are replaced only when their
+     * settings changed; the caches are replaced when the provider urls or the attribute map changed too.
+     *
+     * @return the previous LDAP service, to be closed when the lookups started before are over
+     */
+    public LdapService reconfigure(LdapService ldapService, ProviderConfig config) {
+
+        Snapshot previous = snapshot;
+        snapshot = new Snapshot(ldapService, config, previous);
+        if (snapshot.attributeCache == previous.attributeCache) {
+            LOGGER.infof("LDAP configuration reloaded, attribute cache kept: %s", previous.attributeCache.stats());
+        } else {
+            LOGGER.infof("LDAP configuration reloaded, attribute cache statistics before the reload: %s", previous.attributeCache.stats());
+        }
+        return previous.ldapService;
+    }
+
+    /**
+     * Switch to a new configuration with the same LDAP settings (see {@link LdapService#hasSameSettings}), keeping the
+     * LDAP service: its connections, DN index, circuit breakers and hedging delays
+     */
+    public void reconfigure(ProviderConfig config) {
+
+        Snapshot previous = snapshot;
+        snapshot = new Snapshot(previous.ldapService, config, previous);
+        LOGGER.infof("LDAP configuration reloaded, LDAP connections kept, attribute cache %s", snapshot.attributeCache == previous.attributeCache ? "kept" : "replaced");
+    }
+
+    public ProviderConfig getConfig() {
+        return snapshot.config;
     }
 
     public Map<String, String> queryLDAP(String username) throws NamingException {
 
+        Snapshot current = snapshot;
+        LdapLookupKey key = new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username);
+        return queryLDAP(current, key, current.config.getExternalAttributes(), Priority.INTERACTIVE);
+    }
+
+    /**
+     * Subset of the attributes of a user: only the given LDAP attributes are read from the external LDAP,
+     * and cached apart from the other subsets. A user already cached with all the attributes is not searched.
+     *
+     * @param ldapAttributes names of the LDAP attributes of EXTERNAL_LDAP_ATTRIBUTE_MAP to read, all of them when empty
+     * @return Map of the mapped attribute names, values
+     */
+    public Map<String, String> queryLDAP(String username, Collection<String> ldapAttributes) throws NamingException {
+
+        Snapshot current = snapshot;
+        Map<String, String> mapping = mapping(current, ldapAttributes);
+        if (mapping.isEmpty() && !ldapAttributes.isEmpty()) {
+            LOGGER.debugf("User %s not searched, none of the LDAP attributes %s is mapped", username, ldapAttributes);
+            return Collections.emptyMap();
+        }
+        LdapLookupKey key = new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username);
+        if (mapping.size() == current.config.getExternalAttributes().size()) {
+            return queryLDAP(current, key, current.config.getExternalAttributes(), Priority.INTERACTIVE);
+        }
+
+        Map<String, String> all = current.attributeCache.getIfPresent(key);
+        if (all != null) {
+            return subset(all, mapping);
+        }
+        return queryLDAP(current, new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username, mapping.keySet()), mapping,
+            Priority.INTERACTIVE);
+    }
+
+    /**
+     * Mapping of the given LDAP attributes known in EXTERNAL_LDAP_ATTRIBUTE_MAP, the whole mapping when none is given
+     */
+    private static Map<String, String> mapping(Snapshot current, Collection<String> ldapAttributes) {
+
+        if (ldapAttributes.isEmpty()) {
+            return current.config.getExternalAttributes();
+        }
+        Map<String, String> mapping = new HashMap<>();
+        current.config.getExternalAttributes().forEach((ldapAttribute, name) -> {
+            if (ldapAttributes.contains(ldapAttribute)) {
+                mapping.put(ldapAttribute, name);
+            }
+        });
+        return mapping;
+    }
+
+    private static Map<String, String> subset(Map<String, String> attributes, Map<String, String> mapping) {
+
+        Map<String, String> subset = new HashMap<>(attributes);
+        subset.keySet().retainAll(mapping.values());
+        return Collections.unmodifiableMap(subset);
+    }
+
+    private Map<String, String> queryLDAP(Snapshot current, LdapLookupKey key, Map<String, String> mapping, Priority priority) throws NamingException {
+
+        // a user not unique is not unique whatever the attributes read
+        LdapLookupKey negativeKey = new LdapLookupKey(key.getUsersDN(), key.getUsernameFilter(), key.getUsername());
+        UserNotUniqueException notUnique = current.negativeCache.getIfPresent(negativeKey);
+        if (notUnique != null) {
+            LOGGER.debugf("User %s skipped, the last search on external LDAP found %d record(s)", key.getUsername(), notUnique.getCount());
+            throw new UserNotUniqueException(notUnique.getMessage(), notUnique.getCount());
+        }
+
+        try {
+            return current.attributeCache.get(key, () -> current.singleFlights.get(priority).execute(key, () -> searchOnExternalLDAP(current, priority, key.getUsername(), mapping)));
+        } catch (UserNotUniqueException e) {
+            current.negativeCache.put(negativeKey, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Attributes of several users: the users not in the caches are searched with a single LDAP search, limited as the
+     * searches of the event listener
+     *
+     * @return Map of username, attributes; the users not found or found more than once are missing
+     */
+    public Map<String, Map<String, String>> queryLDAP(Collection<String> usernames) throws NamingException {
+
+        Snapshot current = snapshot;
+        Map<String, Map<String, String>> result = new HashMap<>();
+        List<String> toSearch = new ArrayList<>();
+        for (String username : new LinkedHashSet<>(usernames)) {
+            LdapLookupKey key = new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username);
+            Map<String, String> cached = current.attributeCache.getIfPresent(key);
+            if (cached != null) {
+                result.put(username, cached);
+            } else if (current.negativeCache.getIfPresent(key) != null) {
+                LOGGER.debugf("User %s skipped, the last search on external LDAP didn't find a unique record", username);
+            } else {
+                toSearch.add(username);
+            }
+        }
+        if (toSearch.isEmpty()) {
+            return result;
+        }
+
+        LOGGER.infof("Searching %d users on external LDAP server: %s", toSearch.size(), toSearch);
+        Map<String, Map<String, String>> found = current.search(Priority.BACKGROUND, () -> current.ldapService.searchUsersOnExternalLDAP(
+            current.config.getUsersDN(), current.config.getExternalUsernameFilter(), toSearch, current.config.getExternalAttributes()));
+        for (String username : toSearch) {
+            LdapLookupKey key = new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username);
+            Map<String, String> attributes = found.get(username);
+            if (attributes == null) {
+                // the batch search doesn't tell a missing user from an ambiguous one
+                current.negativeCache.put(key, new UserNotUniqueException(String.format("No unique record found using baseDN %s for username %s",
+                    current.config.getUsersDN(), username), 0));
+            } else {
+                Map<String, String> collect = Collections.unmodifiableMap(attributes);
+                current.attributeCache.put(key, collect);
+                result.put(username, collect);
+            }
+        }
+        LOGGER.infof("Collected the attributes of %d users out of %d", found.size(), toSearch.size());
+        return result;
+    }
+
+    /**
+     * Read all the users on external LDAP, one page at a time, refreshing the attribute cache
+     *
+     * @return number of users read
+     */
+    public int streamLDAPUsers(int pageSize, Consumer<Map<String, Map<String, String>>> pageConsumer) throws NamingException {
+
+        Snapshot current = snapshot;
+        // every page is read within a background slot, given back while the page is applied and the reconciliation throttled
+        return current.ldapService.streamUsersOnExternalLDAP(current.config.getUsersDN(), current.config.getExternalUsernameFilter(),
+            current.config.getExternalAttributes(), pageSize, page -> current.dispatch(Priority.BACKGROUND, page), page -> {
+                Map<String, Map<String, String>> collect = new LinkedHashMap<>();
+                page.forEach((username, attributes) -> {
+                    Map<String, String> userAttributes = Collections.unmodifiableMap(attributes);
+                    current.attributeCache.put(new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username), userAttributes);
+                    collect.put(username, userAttributes);
+                });
+                pageConsumer.accept(collect);
+            });
+    }
+
+    /**
+     * Asynchronous variant of {@link #queryLDAP(String)}: cached users complete immediately,
+     * the other lookups run on the bounded LDAP executor. Cancelling the returned future interrupts the lookup.
+     */
+    public CompletableFuture<Map<String, String>> queryLDAPAsync(String username) {
+
+        Snapshot current = snapshot;
+        LdapLookupKey key = new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username);
+        Map<String, String> cached = current.attributeCache.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return current.ldapService.supplyAsync(() -> queryLDAP(username));
+    }
+
+    /**
+     * Asynchronous variant of {@link #queryLDAP(String, Collection)}: cached subsets complete immediately
+     */
+    public CompletableFuture<Map<String, String>> queryLDAPAsync(String username, Collection<String> ldapAttributes) {
+
+        Snapshot current = snapshot;
+        Map<String, String> mapping = mapping(current, ldapAttributes);
+        if (mapping.isEmpty() && !ldapAttributes.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+        if (mapping.size() == current.config.getExternalAttributes().size()) {
+            return queryLDAPAsync(username);
+        }
+        Map<String, String> all = current.attributeCache.getIfPresent(new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username));
+        Map<String, String> cached = all != null ? all
+            : current.attributeCache.getIfPresent(new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username, mapping.keySet()));
+        if (cached != null) {
+            return CompletableFuture.completedFuture(subset(cached, mapping));
+        }
+        Set<String> known = new HashSet<>(mapping.keySet());
+        return current.ldapService.supplyAsync(() -> queryLDAP(username, known));
+    }
+
+    /**
+     * True when the user has been synchronized within the min resync interval: its update can be skipped
+     */
+    public boolean isRecentlySynchronized(String realmId, String userId) {
+
+        return snapshot.syncMarkers.getIfPresent(syncMarkerKey(realmId, userId)) != null;
+    }
+
+    /**
+     * Mark the user as synchronized once the transaction of the session is committed: a user whose update is rolled back
+     * is not skipped by the next events
+     */
+    private void markSynchronized(KeycloakSession session, String realmId, String userId) {
+
+        if (snapshot.config.getMinResyncIntervalMillis() <= 0) {
+            return;
+        }
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+
+            @Override
+            protected void commitImpl() {
+                snapshot.syncMarkers.put(syncMarkerKey(realmId, userId), System.currentTimeMillis());
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                LOGGER.debugf("Update of user %s rolled back, user not marked as synchronized", userId);
+            }
+        });
+    }
+
+    private static String syncMarkerKey(String realmId, String userId) {
+        return realmId + "/" + userId;
+    }
+
+    /**
+     * Attributes synchronized on the user, when synchronized within the max age of the local claims and not changed
+     * since: the fingerprint of the attributes must match the one written by the synchronization
+     *
+     * @return empty when the local claims are disabled or the attributes are missing, stale or changed
+     */
+    public Optional<Map<String, String>> getSynchronizedAttributes(UserModel user) {
+
+        long maxAgeMillis = snapshot.config.getLocalClaimsMaxAgeMillis();
+        if (maxAgeMillis <= 0) {
+            return Optional.empty();
+        }
+        if (synchronizationAge(user) >= maxAgeMillis) {
+            staleLocalClaimsCount.increment();
+            LOGGER.debugf("Attributes of user %s missing or older than %d ms", user.getUsername(), maxAgeMillis);
+            return Optional.empty();
+        }
+        Optional<Map<String, String>> attributes = getLastSynchronizedAttributes(user);
+        if (attributes.isPresent()) {
+            localClaimsCount.increment();
+        } else {
+            staleLocalClaimsCount.increment();
+        }
+        return attributes;
+    }
+
+    /**
+     * Attributes written on the user by the last synchronization, whatever their age
+     *
+     * @return empty when the user has never been synchronized or the attributes changed since
+     */
+    public Optional<Map<String, String>> getLastSynchronizedAttributes(UserModel user) {
+
+        Map<String, String> attributes = new HashMap<>();
+        snapshot.config.getExternalAttributes().values().forEach(name -> {
+            String value = user.getFirstAttribute(name);
+            if (value != null) {
+                attributes.put(name, value);
+            }
+        });
+        if (!HashUtils.fingerprint(attributes).equals(user.getFirstAttribute(LDAP_ATTRIBUTES_FINGERPRINT))) {
+            LOGGER.debugf("Attributes of user %s missing or changed since the last synchronization", user.getUsername());
+            return Optional.empty();
+        }
+        return Optional.of(Collections.unmodifiableMap(attributes));
+    }
+
+    /**
+     * Milliseconds since the last synchronization of the user, Long.MAX_VALUE when unknown
+     */
+    private static long synchronizationAge(UserModel user) {
+
+        String synchronizedAt = user.getFirstAttribute(LDAP_ATTRIBUTES_SYNCHRONIZED_AT);
+        if (synchronizedAt == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return System.currentTimeMillis() - Long.parseLong(synchronizedAt);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * True when the external LDAP can be searched
+     */
+    public boolean isLdapAvailable() {
+
+        return snapshot.ldapService.isAvailable();
+    }
+
+    public CacheStats getAttributeCacheStats() {
+        return snapshot.attributeCache.stats();
+    }
+
+    /**
+     * Limit of the LDAP searches of the token mappers
+     */
+    public LdapBulkhead getMapperBulkhead() {
+        return snapshot.mapperBulkhead;
+    }
+
+    /**
+     * Limit of the LDAP searches of the event listener
+     */
+    public LdapBulkhead getListenerBulkhead() {
+        return snapshot.listenerBulkhead;
+    }
+
+    /**
+     * Priority dispatch of the LDAP searches, empty when not enabled
+     */
+    public Optional<LdapPriorityDispatcher> getPriorityDispatcher() {
+        return Optional.ofNullable(snapshot.dispatcher);
+    }
+
+    public CacheStats getNegativeCacheStats() {
+        return snapshot.negativeCache.stats();
+    }
+
+    public void logStatistics() {
+
+        Snapshot current = snapshot;
+        LOGGER.infof("LDAP attribute cache statistics: %s", current.attributeCache.stats());
+        LOGGER.infof("LDAP negative cache statistics: %s", current.negativeCache.stats());
+        LOGGER.infof("LDAP lookup coalescing statistics: mapper %s, background %s", current.singleFlights.get(Priority.INTERACTIVE),
+            current.singleFlights.get(Priority.BACKGROUND));
+        LOGGER.infof("LDAP search limits: %s, %s", current.mapperBulkhead, current.listenerBulkhead);
+        if (current.dispatcher != null) {
+            LOGGER.infof("LDAP search priority dispatch: %s", current.dispatcher);
+        }
+        LOGGER.infof("User synchronization markers statistics: %s", current.syncMarkers.stats());
+        LOGGER.infof("User attribute writes: %d attribute(s) written, %d user(s) unchanged", getWrittenAttributeCount(), getUnchangedCount());
+        LOGGER.infof("Local claims: %d read from the user attributes, %d missing or stale", getLocalClaimsCount(), getStaleLocalClaimsCount());
+        LOGGER.infof("Degraded tokens: %d issued with the last known claims or none, attributes not read within the mapper budget", getDegradedTokenCount());
+        current.ldapService.logStatistics();
+    }
+
+    public void close() {
+
+        snapshot.ldapService.close();
+    }
+
+    /**
+     * Close the LDAP service once the lookups in progress are over
+     */
+    public void closeWhenIdle() {
+
+        snapshot.ldapService.closeWhenIdle();
+    }
+
+    private Map<String, String> searchOnExternalLDAP(Snapshot current, Priority priority, String username, Map<String, String> mapping) throws NamingException {
+
         LOGGER.infof("Searching a user with username %s on external LDAP server", username);
 
-        Map<String, String> collect = ldapService.searchUserOnExternalLDAP( 
-            config.getUsersDN(), config.getExternalUsernameFilter(), username, config.getExternalAttributes());
+        Map<String, String> collect = current.search(priority, () -> current.ldapService.searchUserOnExternalLDAP(
+            current.config.getUsersDN(), current.config.getExternalUsernameFilter(), username, mapping));
         LOGGER.infof("Collected %d attributes for user %s: %s", collect.size(), username, collect);
 
         return Collections.unmodifiableMap(collect);
@@ -45,20 +565,192 @@ public class UserService {
                 .orElseThrow(() -> new IllegalArgumentException(String.format("User with id %s not found", userId)));
         LOGGER.infof("Found user %s on local storage", userId);
 
-        Map<String, String> secondaryAttributes = this.queryLDAP(newRegisteredUser.getUsername());
-        secondaryAttributes.forEach(newRegisteredUser::setSingleAttribute);
-        this.dumpUser(newRegisteredUser);
+        // the token mappers of the same request may have already searched the user
+        Snapshot current = snapshot;
+        LdapLookupKey key = new LdapLookupKey(current.config.getUsersDN(), current.config.getExternalUsernameFilter(), newRegisteredUser.getUsername());
+        Map<String, String> secondaryAttributes = RequestScopedMemo.get(session, LDAP_ATTRIBUTES_MEMO + newRegisteredUser.getUsername(),
+            () -> queryLDAP(current, key, current.config.getExternalAttributes(), Priority.BACKGROUND));
+        applyAttributes(realm, session, userId, newRegisteredUser, secondaryAttributes);
+        markSynchronized(session, realm.getId(), userId);
+    }
+
+    /**
+     * Update the user with attributes already searched on external LDAP, in the transaction of the given session
+     */
+    public void updateUser(RealmModel realm, KeycloakSession session, String userId, Map<String, String> secondaryAttributes) {
+
+        UserModel user = Optional.ofNullable(session.userLocalStorage().getUserById(realm, userId))
+                .orElseThrow(() -> new IllegalArgumentException(String.format("User with id %s not found", userId)));
+        applyAttributes(realm, session, userId, user, secondaryAttributes);
+        markSynchronized(session, realm.getId(), userId);
+    }
+
+    /**
+     * Attributes of several users of the same realm, searched with a single LDAP search
+     *
+     * @return Map of user id, attributes; the users not found in the realm, or not found or found more than once on
+     * external LDAP, are missing
+     */
+    public Map<String, Map<String, String>> queryUsers(RealmModel realm, KeycloakSession session, Collection<String> userIds) throws NamingException {
+
+        return queryUsers(usernames(realm, session, userIds));
+    }
+
+    /**
+     * Usernames of the users of the realm, read from the local storage
+     *
+     * @return Map of user id, username; the users not found in the realm are missing
+     */
+    public Map<String, String> usernames(RealmModel realm, KeycloakSession session, Collection<String> userIds) {
+
+        Map<String, String> usernames = new LinkedHashMap<>();
+        for (String userId : new LinkedHashSet<>(userIds)) {
+            UserModel user = session.userLocalStorage().getUserById(realm, userId);
+            if (user == null) {
+                LOGGER.errorf("User with id %s not found", userId);
+            } else {
+                usernames.put(userId, user.getUsername());
+            }
+        }
+        return usernames;
+    }
+
+    /**
+     * Attributes of several users searched with a single LDAP search, without a session: no transaction is kept open
+     * during the search
+     *
+     * @param usernames Map of user id, username
+     * @return Map of user id, attributes; the users not found or found more than once on external LDAP are missing
+     */
+    public Map<String, Map<String, String>> queryUsers(Map<String, String> usernames) throws NamingException {
+
+        if (usernames.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        Map<String, Map<String, String>> attributes = this.queryLDAP(usernames.values());
+
+        Map<String, Map<String, String>> result = new LinkedHashMap<>();
+        usernames.forEach((userId, username) -> Optional.ofNullable(attributes.get(username)).ifPresent(a -> result.put(userId, a)));
+        return result;
+    }
+
+    /**
+     * Update several users of the same realm with a single LDAP search, in the transaction of the given session.
+     * A user that can't be updated doesn't prevent the update of the others.
+     *
+     * @return number of users updated
+     */
+    public int updateUsers(RealmModel realm, KeycloakSession session, Collection<String> userIds) throws NamingException {
+
+        Map<String, Map<String, String>> attributes = queryUsers(realm, session, userIds);
+        attributes.forEach((userId, secondaryAttributes) -> updateUser(realm, session, userId, secondaryAttributes));
+        return attributes.size();
+    }
+
+    /**
+     * Update the users of the realm with the given usernames, in the transaction of the given session.
+     * The usernames without a user in the realm are ignored.
+     *
+     * @param usersAttributes Map of username, attributes found on external LDAP
+     * @return number of users of the realm found
+     */
+    public int reconcileUsers(RealmModel realm, KeycloakSession session, Map<String, Map<String, String>> usersAttributes) {
+
+        int found = 0;
+        for (Map.Entry<String, Map<String, String>> userAttributes : usersAttributes.entrySet()) {
+            UserModel user = session.userLocalStorage().getUserByUsername(realm, userAttributes.getKey());
+            if (user == null) {
+                continue;
+            }
+            applyAttributes(realm, session, user.getId(), user, userAttributes.getValue());
+            markSynchronized(session, realm.getId(), user.getId());
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * Write the attributes changed since the last synchronization, on the user of the local storage and on its cached copy.
+     * Nothing is written when the fingerprint of the attributes matches the one stored at the last synchronization,
+     * but the time of the synchronization when the local claims would get stale before the next one.
+     */
+    private void applyAttributes(RealmModel realm, KeycloakSession session, String userId, UserModel user, Map<String, String> secondaryAttributes) {
+
+        long localClaimsMaxAgeMillis = snapshot.config.getLocalClaimsMaxAgeMillis();
+        String fingerprint = HashUtils.fingerprint(secondaryAttributes);
+        if (fingerprint.equals(user.getFirstAttribute(LDAP_ATTRIBUTES_FINGERPRINT))) {
+            unchangedCount.increment();
+            if (localClaimsMaxAgeMillis > 0 && synchronizationAge(user) >= localClaimsMaxAgeMillis / 2) {
+                LOGGER.infof("Attributes of user %s unchanged since the last synchronization, writing the synchronization time", userId);
+                String synchronizedAt = String.valueOf(System.currentTimeMillis());
+                user.setSingleAttribute(LDAP_ATTRIBUTES_SYNCHRONIZED_AT, synchronizedAt);
+                updateCachedUser(realm, session, userId, Collections.singletonMap(LDAP_ATTRIBUTES_SYNCHRONIZED_AT, synchronizedAt));
+                return;
+            }
+            LOGGER.infof("Attributes of user %s unchanged since the last synchronization, nothing to write", userId);
+            return;
+        }
+
+        Map<String, String> changedAttributes = new LinkedHashMap<>();
+        secondaryAttributes.forEach((name, value) -> {
+            if (!Objects.equals(value, user.getFirstAttribute(name))) {
+                changedAttributes.put(name, value);
+            }
+        });
+        changedAttributes.forEach(user::setSingleAttribute);
+        user.setSingleAttribute(LDAP_ATTRIBUTES_FINGERPRINT, fingerprint);
+        writtenAttributeCount.add(changedAttributes.size());
+        LOGGER.infof("Written %d changed attributes out of %d for user %s", changedAttributes.size(), secondaryAttributes.size(), userId);
+        this.dumpUser(user);
 
-        
         // update cache
-        if (session.userCache() != null) {
+        Map<String, String> cachedAttributes = new LinkedHashMap<>(changedAttributes);
+        if (localClaimsMaxAgeMillis > 0) {
+            user.setSingleAttribute(LDAP_ATTRIBUTES_SYNCHRONIZED_AT, String.valueOf(System.currentTimeMillis()));
+            // the local claims are read from the cached copy too
+            cachedAttributes.put(LDAP_ATTRIBUTES_FINGERPRINT, fingerprint);
+            cachedAttributes.put(LDAP_ATTRIBUTES_SYNCHRONIZED_AT, user.getFirstAttribute(LDAP_ATTRIBUTES_SYNCHRONIZED_AT));
+        }
+        updateCachedUser(realm, session, userId, cachedAttributes);
+    }
+
+    private void updateCachedUser(RealmModel realm, KeycloakSession session, String userId, Map<String, String> attributes) {
+
+        if (session.userCache() != null && !attributes.isEmpty()) {
             Optional<UserModel> cachedUser = Optional.ofNullable(session.userCache().getUserById(realm, userId));
             cachedUser.ifPresent(cu -> {
                 LOGGER.infof("Updating cache for userId: %s", userId);
-                secondaryAttributes.forEach(cu::setSingleAttribute);
+                attributes.forEach(cu::setSingleAttribute);
             });
         }
+    }
+
+    public long getUnchangedCount() {
+        return unchangedCount.sum();
+    }
+
+    public long getWrittenAttributeCount() {
+        return writtenAttributeCount.sum();
+    }
+
+    public long getLocalClaimsCount() {
+        return localClaimsCount.sum();
+    }
+
+    public long getStaleLocalClaimsCount() {
+        return staleLocalClaimsCount.sum();
+    }
+
+    /**
+     * Count a token issued with the last known claims, or without the claims, because the attributes were not read
+     * within the mapper budget
+     */
+    public void recordDegradedToken() {
+        degradedTokenCount.increment();
+    }
 
+    public long getDegradedTokenCount() {
+        return degradedTokenCount.sum();
     }
 
     private void dumpUser(UserModel userModel) {
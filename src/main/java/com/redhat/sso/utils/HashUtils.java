@@ -3,6 +3,8 @@ package com.redhat.sso.utils;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class HashUtils {
 
@@ -21,6 +23,16 @@ public class HashUtils {
         }
     }
 
+    /**
+     * SHA-256 of a set of attributes, independent of the order of its entries
+     */
+    public static String fingerprint(Map<String, String> attributes) {
+
+        StringBuilder canonical = new StringBuilder();
+        new TreeMap<>(attributes).forEach((name, value) -> canonical.append(name).append('\u0000').append(value).append('\u0000'));
+        return toSha256(canonical.toString());
+    }
+
     private static String bytesToHex(byte[] hash) {
 
         StringBuilder hexString = new StringBuilder(2 * hash.length);
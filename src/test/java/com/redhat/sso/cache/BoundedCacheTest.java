@@ -0,0 +1,124 @@
+package com.redhat.sso.cache;
+
+import com.redhat.sso.config.EvictionPolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.NamingException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+class BoundedCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private BoundedCache<String, String> newCache(int maxSize, long ttlMillis, EvictionPolicy policy) {
+        return new BoundedCache<>("test", maxSize, ttlMillis, policy, now::get);
+    }
+
+    @Test
+    void testValueLoadedOnlyOnce() throws NamingException {
+
+        BoundedCache<String, String> cache = newCache(10, 1000, EvictionPolicy.LRU);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertThat(cache.get("mario.rossi", () -> "value" + loads.incrementAndGet()), equalTo("value1"));
+        assertThat(cache.get("mario.rossi", () -> "value" + loads.incrementAndGet()), equalTo("value1"));
+
+        CacheStats stats = cache.stats();
+        assertThat(loads.get(), equalTo(1));
+        assertThat(stats.getHitCount(), equalTo(1L));
+        assertThat(stats.getMissCount(), equalTo(1L));
+        assertThat(stats.getLoadSuccessCount(), equalTo(1L));
+        assertThat(stats.getSize(), equalTo(1));
+    }
+
+    @Test
+    void testEntryExpiresAfterTtl() {
+
+        BoundedCache<String, String> cache = newCache(10, 1000, EvictionPolicy.LRU);
+        cache.put("mario.rossi", "value");
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertThat(cache.getIfPresent("mario.rossi"), equalTo("value"));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertThat(cache.getIfPresent("mario.rossi"), nullValue());
+        assertThat(cache.stats().getExpirationCount(), equalTo(1L));
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEvicted() {
+
+        BoundedCache<String, String> cache = newCache(2, 1000, EvictionPolicy.LRU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.getIfPresent("a");
+        cache.put("c", "3");
+
+        assertThat(cache.getIfPresent("a"), equalTo("1"));
+        assertThat(cache.getIfPresent("b"), nullValue());
+        assertThat(cache.getIfPresent("c"), equalTo("3"));
+        assertThat(cache.stats().getEvictionCount(), equalTo(1L));
+    }
+
+    @Test
+    void testLeastFrequentlyUsedEvicted() {
+
+        BoundedCache<String, String> cache = newCache(2, 1000, EvictionPolicy.LFU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.getIfPresent("a");
+        cache.getIfPresent("b");
+        cache.getIfPresent("b");
+        cache.put("c", "3");
+
+        assertThat(cache.getIfPresent("a"), nullValue());
+        assertThat(cache.getIfPresent("b"), equalTo("2"));
+        assertThat(cache.getIfPresent("c"), equalTo("3"));
+        assertThat(cache.stats().getEvictionCount(), equalTo(1L));
+    }
+
+    @Test
+    void testLoaderFailureNotCached() throws NamingException {
+
+        BoundedCache<String, String> cache = newCache(10, 1000, EvictionPolicy.LRU);
+
+        Assertions.assertThrows(NamingException.class, () -> cache.get("mario.rossi", () -> {
+            throw new NamingException("LDAP down");
+        }));
+
+        assertThat(cache.get("mario.rossi", () -> "value"), equalTo("value"));
+        assertThat(cache.stats().getLoadFailureCount(), equalTo(1L));
+        assertThat(cache.stats().getLoadSuccessCount(), equalTo(1L));
+    }
+
+    @Test
+    void testDisabledCacheAlwaysLoads() throws NamingException {
+
+        BoundedCache<String, String> cache = newCache(0, 1000, EvictionPolicy.LRU);
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("mario.rossi", () -> "value" + loads.incrementAndGet());
+        cache.get("mario.rossi", () -> "value" + loads.incrementAndGet());
+
+        assertThat(cache.isEnabled(), equalTo(false));
+        assertThat(loads.get(), equalTo(2));
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    void testEvictionPolicyParsing() {
+
+        assertThat(EvictionPolicy.parse("lfu"), equalTo(EvictionPolicy.LFU));
+        assertThat(EvictionPolicy.parse(" LRU "), equalTo(EvictionPolicy.LRU));
+        assertThat(EvictionPolicy.parse(null), equalTo(EvictionPolicy.LRU));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> EvictionPolicy.parse("FIFO"));
+    }
+}
@@ -0,0 +1,56 @@
+package com.redhat.sso.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+
+import javax.naming.NamingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class RequestScopedMemoTest {
+
+    private final Map<String, Object> sessionAttributes = new HashMap<>();
+
+    private final KeycloakSession session = mock(KeycloakSession.class);
+
+    @BeforeEach
+    void init() {
+        doAnswer(invocationOnMock -> sessionAttributes.get(invocationOnMock.getArgument(0, String.class))).when(session).getAttribute(anyString());
+        doAnswer(invocationOnMock -> sessionAttributes.put(invocationOnMock.getArgument(0), invocationOnMock.getArgument(1)))
+            .when(session).setAttribute(anyString(), any());
+    }
+
+    @Test
+    void testLookupRunsOncePerSession() throws NamingException {
+
+        AtomicInteger loads = new AtomicInteger();
+
+        String first = RequestScopedMemo.get(session, "mario.rossi", () -> "value" + loads.incrementAndGet());
+        String second = RequestScopedMemo.get(session, "mario.rossi", () -> "value" + loads.incrementAndGet());
+        String other = RequestScopedMemo.get(session, "luigi.verdi", () -> "value" + loads.incrementAndGet());
+
+        assertThat(first, equalTo("value1"));
+        assertThat(second, equalTo("value1"));
+        assertThat(other, equalTo("value2"));
+    }
+
+    @Test
+    void testFailedLookupNotMemoized() throws NamingException {
+
+        Assertions.assertThrows(NamingException.class, () -> RequestScopedMemo.get(session, "mario.rossi", () -> {
+            throw new NamingException("LDAP down");
+        }));
+
+        assertThat(RequestScopedMemo.get(session, "mario.rossi", () -> "value"), equalTo("value"));
+    }
+}
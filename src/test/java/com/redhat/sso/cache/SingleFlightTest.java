@@ -0,0 +1,124 @@
+package com.redhat.sso.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+class SingleFlightTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void awaitFollowers(SingleFlight<String, String> singleFlight, int followers) throws InterruptedException {
+        while (singleFlight.getCoalescedCount() < followers) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void testConcurrentCallsShareOneLoad() throws Exception {
+
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(5000);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+
+        Future<String> leader = executor.submit(() -> singleFlight.execute("mario.rossi", () -> {
+            loads.incrementAndGet();
+            await(release);
+            return "attributes";
+        }));
+        while (singleFlight.getInFlightCount() == 0) {
+            Thread.sleep(5);
+        }
+        Future<String> follower1 = executor.submit(() -> singleFlight.execute("mario.rossi", () -> "unexpected"));
+        Future<String> follower2 = executor.submit(() -> singleFlight.execute("mario.rossi", () -> "unexpected"));
+        awaitFollowers(singleFlight, 2);
+        release.countDown();
+
+        assertThat(leader.get(5, TimeUnit.SECONDS), equalTo("attributes"));
+        assertThat(follower1.get(5, TimeUnit.SECONDS), equalTo("attributes"));
+        assertThat(follower2.get(5, TimeUnit.SECONDS), equalTo("attributes"));
+        assertThat(loads.get(), equalTo(1));
+        assertThat(singleFlight.getExecutionCount(), equalTo(1L));
+        assertThat(singleFlight.getInFlightCount(), equalTo(0));
+    }
+
+    @Test
+    void testFollowersReceiveLeaderException() throws Exception {
+
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(5000);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> leader = executor.submit(() -> singleFlight.execute("mario.rossi", () -> {
+            await(release);
+            throw new NamingException("LDAP down");
+        }));
+        while (singleFlight.getInFlightCount() == 0) {
+            Thread.sleep(5);
+        }
+        Future<String> follower = executor.submit(() -> singleFlight.execute("mario.rossi", () -> "unexpected"));
+        awaitFollowers(singleFlight, 1);
+        release.countDown();
+
+        ExecutionException leaderException = Assertions.assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+        ExecutionException followerException = Assertions.assertThrows(ExecutionException.class, () -> follower.get(5, TimeUnit.SECONDS));
+        assertThat(leaderException.getCause().getMessage(), equalTo("LDAP down"));
+        assertThat(followerException.getCause().getMessage(), equalTo("LDAP down"));
+    }
+
+    @Test
+    void testFollowerTimeout() throws Exception {
+
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(50);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> leader = executor.submit(() -> singleFlight.execute("mario.rossi", () -> {
+            await(release);
+            return "attributes";
+        }));
+        while (singleFlight.getInFlightCount() == 0) {
+            Thread.sleep(5);
+        }
+
+        Assertions.assertThrows(TimeLimitExceededException.class, () -> singleFlight.execute("mario.rossi", () -> "unexpected"));
+        assertThat(singleFlight.getTimeoutCount(), equalTo(1L));
+
+        release.countDown();
+        assertThat(leader.get(5, TimeUnit.SECONDS), equalTo("attributes"));
+    }
+
+    @Test
+    void testDisabledCoalescing() throws NamingException {
+
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(0);
+
+        assertThat(singleFlight.execute("mario.rossi", () -> "attributes"), equalTo("attributes"));
+        assertThat(singleFlight.getExecutionCount(), equalTo(1L));
+        assertThat(singleFlight.getCoalescedCount(), equalTo(0L));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.redhat.sso.config;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junitpioneer.jupiter.SetEnvironmentVariable;
 
 import static org.hamcrest.CoreMatchers.allOf;
@@ -10,8 +11,13 @@ import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 class ProviderConfigTest {
 
@@ -216,4 +222,131 @@ void testEnvConstructorWithEventListenerEnabledAndMapperEnabledDefined() {
         assertThat(illegalArgumentException.getMessage(), equalTo("The environment variable EXTERNAL_LDAP_USERNAME_FILTER is mandatory but is not present"));
     }
 
-}
\ No newline at end of file
+    @Test
+    void testCacheDefaults() {
+        ProviderConfig configuration = new ProviderConfig("true", "true", 
+            "ldap://localhost:3389", "cn=admin,dc=ldap,dc=example,dc=com", 
+            "password", "ou=users,dc=ldap,dc=example,dc=com", "employeeNumber=numero,title=titolo", "cn");
+        assertThat(configuration.getCacheMaxSize(), equalTo(0));
+        assertThat(configuration.getCacheTtlMillis(), equalTo(60000L));
+        assertThat(configuration.getCacheEvictionPolicy(), equalTo(EvictionPolicy.LRU));
+        assertThat(configuration.getStatisticsLogIntervalMillis(), equalTo(300000L));
+    }
+
+    @SetEnvironmentVariable.SetEnvironmentVariables({
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, value = "ldap://localhost:3389"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, value = "cn=admin,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, value = "password"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERS_DN, value = "ou=users,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, value = "employeeNumber=numero,title=titolo"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, value = "cn"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_CACHE_MAX_SIZE, value = "5000"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_CACHE_TTL_MILLIS, value = "30000"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_CACHE_EVICTION_POLICY, value = "lfu"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_STATISTICS_LOG_INTERVAL_MILLIS, value = "0")
+    })
+    @Test
+    void testCacheConfiguredFromEnv() {
+        ProviderConfig configuration = new ProviderConfig();
+        assertThat(configuration.getCacheMaxSize(), equalTo(5000));
+        assertThat(configuration.getCacheTtlMillis(), equalTo(30000L));
+        assertThat(configuration.getCacheEvictionPolicy(), equalTo(EvictionPolicy.LFU));
+        assertThat(configuration.getStatisticsLogIntervalMillis(), equalTo(0L));
+    }
+
+    @SetEnvironmentVariable.SetEnvironmentVariables({
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, value = "ldap://localhost:3389"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, value = "cn=admin,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, value = "password"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERS_DN, value = "ou=users,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, value = "employeeNumber=numero,title=titolo"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, value = "cn"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_CONNECT_TIMEOUT_MILLIS, value = "1000"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_MAPPER_BUDGET_MILLIS, value = "300")
+    })
+    @Test
+    void testTimeoutsConfiguredFromEnv() {
+        ProviderConfig configuration = new ProviderConfig();
+        assertThat(configuration.getPoolSettings().getConnectTimeoutMillis(), equalTo(1000L));
+        assertThat(configuration.getPoolSettings().getReadTimeoutMillis(), equalTo(10000L));
+        assertThat(configuration.getMapperBudgetMillis(), equalTo(300L));
+    }
+
+    @SetEnvironmentVariable.SetEnvironmentVariables({
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, value = "ldap://localhost:3389"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, value = "cn=admin,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, value = "password"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERS_DN, value = "ou=users,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, value = "employeeNumber=numero,title=titolo"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, value = "cn"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_CACHE_MAX_SIZE, value = "many")
+    })
+    @Test
+    void testExceptionOnInvalidCacheMaxSize() {
+        IllegalArgumentException illegalArgumentException = Assertions.assertThrows(IllegalArgumentException.class, ProviderConfig::new);
+        assertThat(illegalArgumentException.getMessage(), equalTo("The environment variable EXTERNAL_LDAP_CACHE_MAX_SIZE has an invalid value: many"));
+    }
+
+
+    @SetEnvironmentVariable.SetEnvironmentVariables({
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, value = "ldap://localhost:3389"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, value = "cn=admin,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, value = "password"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERS_DN, value = "ou=users,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, value = "employeeNumber=numero,title=titolo"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, value = "cn"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USER_DN_TEMPLATE, value = "cn=mario.rossi,ou=users,dc=ldap,dc=example,dc=com")
+    })
+    @Test
+    void testExceptionOnDnTemplateWithoutPlaceholder() {
+        IllegalArgumentException illegalArgumentException = Assertions.assertThrows(IllegalArgumentException.class, ProviderConfig::new);
+        assertThat(illegalArgumentException.getMessage(), equalTo("The environment variable EXTERNAL_LDAP_USER_DN_TEMPLATE has an invalid value: cn=mario.rossi,ou=users,dc=ldap,dc=example,dc=com"));
+    }
+
+
+    @SetEnvironmentVariable.SetEnvironmentVariables({
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, value = "ldap://localhost:3389,ldap://localhost:4389"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, value = "cn=admin,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, value = "password"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERS_DN, value = "ou=users,dc=ldap,dc=example,dc=com"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, value = "employeeNumber=numero,title=titolo"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, value = "cn"),
+            @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_HEDGING_PERCENTILE, value = "101")
+    })
+    @Test
+    void testExceptionOnInvalidHedgingPercentile() {
+        IllegalArgumentException illegalArgumentException = Assertions.assertThrows(IllegalArgumentException.class, ProviderConfig::new);
+        assertThat(illegalArgumentException.getMessage(), equalTo("The environment variable EXTERNAL_LDAP_HEDGING_PERCENTILE has an invalid value: 101"));
+    }
+
+    @Test
+    void testEnvironmentOverriddenByTheConfigFile(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("ldap.properties");
+        Files.write(file, Arrays.asList(
+            ProviderConfig.EXTERNAL_LDAP_USERS_DN + "=ou=people,dc=ldap,dc=example,dc=com",
+            ProviderConfig.EXTERNAL_LDAP_READ_TIMEOUT_MILLIS + "=2000"));
+        Map<String, String> env = new HashMap<>();
+        env.put(ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, "ldap://localhost:3389");
+        env.put(ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, "cn=admin,dc=ldap,dc=example,dc=com");
+        env.put(ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, "password");
+        env.put(ProviderConfig.EXTERNAL_LDAP_USERS_DN, "ou=users,dc=ldap,dc=example,dc=com");
+        env.put(ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, "employeeNumber=numero,title=titolo");
+        env.put(ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, "cn");
+        env.put(ProviderConfig.EXTERNAL_LDAP_CONFIG_FILE, file.toString());
+
+        ProviderConfig configuration = new ProviderConfig(ProviderConfig.environment(env));
+        assertThat(configuration.getUsersDN(), equalTo("ou=people,dc=ldap,dc=example,dc=com"));
+        assertThat(configuration.getPoolSettings().getReadTimeoutMillis(), is(2000L));
+        assertThat(configuration.getSecurityCredentials(), equalTo("password"));
+        assertThat(configuration.getConfigFile(), equalTo(file.toString()));
+        assertThat(configuration.getConfigFilePollIntervalMillis(), is(5000L));
+    }
+
+    @Test
+    void testExceptionOnMissingConfigFile(@TempDir Path dir) {
+        Map<String, String> env = new HashMap<>();
+        env.put(ProviderConfig.EXTERNAL_LDAP_CONFIG_FILE, dir.resolve("missing.properties").toString());
+        IllegalArgumentException illegalArgumentException = Assertions.assertThrows(IllegalArgumentException.class, () -> ProviderConfig.environment(env));
+        assertThat(illegalArgumentException.getMessage(), containsString("missing.properties"));
+    }
+}
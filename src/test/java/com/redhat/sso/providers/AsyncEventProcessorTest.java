@@ -0,0 +1,316 @@
+package com.redhat.sso.providers;
+
+import com.redhat.sso.config.OverflowPolicy;
+import com.redhat.sso.service.UserService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class AsyncEventProcessorTest {
+
+    @Mock
+    KeycloakSessionFactory sessionFactory;
+
+    @Mock
+    KeycloakSession workerSession;
+
+    @Mock
+    UserService userService;
+
+    RealmModel realmModel = mock(RealmModel.class);
+
+    @BeforeEach
+    void init() {
+
+        RealmProvider realmProvider = mock(RealmProvider.class);
+        lenient().when(sessionFactory.create()).thenReturn(workerSession);
+        lenient().when(workerSession.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        lenient().when(workerSession.realms()).thenReturn(realmProvider);
+        lenient().when(realmProvider.getRealm("rhsso.EventListener-v1")).thenReturn(realmModel);
+    }
+
+    private static Event loginEvent(String userId) {
+
+        Event loginEvent = new Event();
+        loginEvent.setType(EventType.LOGIN);
+        loginEvent.setRealmId("rhsso.EventListener-v1");
+        loginEvent.setUserId(userId);
+        return loginEvent;
+    }
+
+    @Test
+    void testUserUpdatedByWorkerInItsOwnSession() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 2, 10, OverflowPolicy.DROP, 5000);
+        CountDownLatch updated = new CountDownLatch(1);
+        String[] workerThread = new String[1];
+        doAnswer(invocationOnMock -> {
+            workerThread[0] = Thread.currentThread().getName();
+            updated.countDown();
+            return null;
+        }).when(userService).updateUser(any(), any(), eq("mario.rossi"));
+
+        processor.submit(loginEvent("mario.rossi"));
+
+        assertThat(updated.await(5, TimeUnit.SECONDS), equalTo(true));
+        processor.close();
+        verify(userService, times(1)).updateUser(realmModel, workerSession, "mario.rossi");
+        verify(workerSession, times(1)).close();
+        assertThat(workerThread[0], startsWith("sso-event-worker-"));
+        assertThat(processor.getProcessedCount(), equalTo(1L));
+    }
+
+    @Test
+    void testEventDroppedWhenQueueIsFull() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 1, OverflowPolicy.DROP, 5000);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        doAnswer(invocationOnMock -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(userService).updateUser(any(), any(), any());
+
+        processor.submit(loginEvent("running.user"));
+        assertThat(started.await(5, TimeUnit.SECONDS), equalTo(true));
+        processor.submit(loginEvent("queued.user"));
+        processor.submit(loginEvent("dropped.user"));
+        release.countDown();
+        processor.close();
+
+        verify(userService, never()).updateUser(any(), any(), eq("dropped.user"));
+        assertThat(processor.getDroppedCount(), equalTo(1L));
+        assertThat(processor.getProcessedCount(), equalTo(2L));
+    }
+
+    @Test
+    void testCallerRunsWhenQueueIsFull() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 1, OverflowPolicy.CALLER_RUNS, 5000);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        String[] callerThread = new String[1];
+        doAnswer(invocationOnMock -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(userService).updateUser(any(), any(), eq("running.user"));
+        doAnswer(invocationOnMock -> {
+            callerThread[0] = Thread.currentThread().getName();
+            return null;
+        }).when(userService).updateUser(any(), any(), eq("caller.user"));
+
+        processor.submit(loginEvent("running.user"));
+        assertThat(started.await(5, TimeUnit.SECONDS), equalTo(true));
+        processor.submit(loginEvent("queued.user"));
+        processor.submit(loginEvent("caller.user"));
+        release.countDown();
+        processor.close();
+
+        assertThat(callerThread[0], equalTo(Thread.currentThread().getName()));
+        assertThat(processor.getCallerRunsCount(), equalTo(1L));
+        assertThat(processor.getProcessedCount(), equalTo(3L));
+    }
+
+    @Test
+    void testQueuedEventsDrainedOnClose() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 100, OverflowPolicy.BLOCK, 5000);
+
+        for (int i = 0; i < 20; i++) {
+            processor.submit(loginEvent("user" + i));
+        }
+        processor.close();
+
+        assertThat(processor.getProcessedCount(), equalTo(20L));
+        assertThat(processor.getQueueSize(), equalTo(0));
+    }
+
+    @Test
+    void testBlockedCallerQueuesTheEventWhenASlotIsFree() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 1, OverflowPolicy.BLOCK, 5000);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        doAnswer(invocationOnMock -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(userService).updateUser(any(), any(), eq("running.user"));
+
+        processor.submit(loginEvent("running.user"));
+        assertThat(started.await(5, TimeUnit.SECONDS), equalTo(true));
+        processor.submit(loginEvent("queued.user"));
+        Thread blocked = new Thread(() -> processor.submit(loginEvent("blocked.user")));
+        blocked.start();
+        release.countDown();
+        blocked.join(5000);
+        processor.close();
+
+        verify(userService, times(1)).updateUser(realmModel, workerSession, "blocked.user");
+        assertThat(processor.getProcessedCount(), equalTo(3L));
+        assertThat(processor.getDroppedCount(), equalTo(0L));
+    }
+
+    @Test
+    void testEventSubmittedAfterCloseCountedAsDropped() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 10, OverflowPolicy.DROP, 5000, 3, 60000);
+
+        processor.close();
+        processor.submit(loginEvent("mario.rossi"));
+
+        verify(userService, never()).usernames(any(), any(), any());
+        assertThat(processor.getDroppedCount(), equalTo(1L));
+    }
+
+    @Test
+    void testFailedUpdateCounted() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 10, OverflowPolicy.DROP, 5000);
+        doAnswer(invocationOnMock -> {
+            throw new IllegalArgumentException("User with id mario.rossi not found");
+        }).when(userService).updateUser(any(), any(), any());
+
+        processor.submit(loginEvent("mario.rossi"));
+        processor.close();
+
+        assertThat(processor.getFailedCount(), equalTo(1L));
+        assertThat(processor.getProcessedCount(), equalTo(0L));
+    }
+
+    @Test
+    void testEventsBatchedByRealm() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 10, OverflowPolicy.DROP, 5000, 3, 60000);
+        when(userService.usernames(any(), any(), any())).thenAnswer(invocationOnMock -> {
+            Map<String, String> usernames = new LinkedHashMap<>();
+            invocationOnMock.getArgument(2, Collection.class).forEach(userId -> usernames.put((String) userId, (String) userId));
+            return usernames;
+        });
+        when(userService.queryUsers(anyMap())).thenAnswer(invocationOnMock -> {
+            Map<String, Map<String, String>> attributes = new LinkedHashMap<>();
+            invocationOnMock.getArgument(0, Map.class).keySet().forEach(userId -> attributes.put((String) userId, Collections.emptyMap()));
+            return attributes;
+        });
+
+        processor.submit(loginEvent("mario.rossi"));
+        processor.submit(loginEvent("luigi.verdi"));
+        processor.submit(loginEvent("mario.rossi"));
+        verify(userService, never()).usernames(any(), any(), any());
+        processor.submit(loginEvent("anna.bianchi"));
+        processor.close();
+
+        verify(userService, times(1)).usernames(eq(realmModel), eq(workerSession), eq(new LinkedHashSet<>(Arrays.asList("mario.rossi", "luigi.verdi", "anna.bianchi"))));
+        verify(userService, times(1)).queryUsers(anyMap());
+        verify(userService, times(3)).updateUser(eq(realmModel), eq(workerSession), any(), eq(Collections.emptyMap()));
+        // one session to read the usernames, one to update the users
+        verify(sessionFactory, times(2)).create();
+        assertThat(processor.getBatchCount(), equalTo(1L));
+        assertThat(processor.getProcessedCount(), equalTo(3L));
+    }
+
+    @Test
+    void testFailedUserOfABatchDoesNotRollBackTheOthers() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 10, OverflowPolicy.DROP, 5000, 2, 60000);
+        Map<String, Map<String, String>> attributes = new LinkedHashMap<>();
+        attributes.put("mario.rossi", Collections.singletonMap("titolo", "Developer"));
+        attributes.put("luigi.verdi", Collections.singletonMap("titolo", "Manager"));
+        when(userService.usernames(any(), any(), any())).thenReturn(Collections.singletonMap("mario.rossi", "mario.rossi"));
+        when(userService.queryUsers(anyMap())).thenReturn(attributes);
+        doThrow(new IllegalStateException("Constraint violation")).when(userService).updateUser(any(), any(), eq("mario.rossi"), any());
+
+        processor.submit(loginEvent("mario.rossi"));
+        processor.submit(loginEvent("luigi.verdi"));
+        processor.close();
+
+        verify(userService, times(1)).updateUser(realmModel, workerSession, "luigi.verdi", Collections.singletonMap("titolo", "Manager"));
+        verify(sessionFactory, times(2)).create();
+        assertThat(processor.getProcessedCount(), equalTo(1L));
+        assertThat(processor.getFailedCount(), equalTo(1L));
+    }
+
+    @Test
+    void testUsersOfAFailedBatchTransactionUpdatedOneByOne() throws Exception {
+
+        // Given
+        KeycloakTransactionManager transactionManager = mock(KeycloakTransactionManager.class);
+        lenient().when(workerSession.getTransactionManager()).thenReturn(transactionManager);
+        when(transactionManager.isActive()).thenReturn(true);
+        // the commit of the usernames, of the batch, then of every user
+        doNothing().doThrow(new IllegalStateException("Commit failed")).doNothing().when(transactionManager).commit();
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 10, OverflowPolicy.DROP, 5000, 2, 60000);
+        Map<String, Map<String, String>> attributes = new LinkedHashMap<>();
+        attributes.put("mario.rossi", Collections.singletonMap("titolo", "Developer"));
+        attributes.put("luigi.verdi", Collections.singletonMap("titolo", "Manager"));
+        when(userService.usernames(any(), any(), any())).thenReturn(Collections.singletonMap("mario.rossi", "mario.rossi"));
+        when(userService.queryUsers(anyMap())).thenReturn(attributes);
+
+        // When
+        processor.submit(loginEvent("mario.rossi"));
+        processor.submit(loginEvent("luigi.verdi"));
+        processor.close();
+
+        // Then
+        verify(userService, times(2)).updateUser(realmModel, workerSession, "mario.rossi", Collections.singletonMap("titolo", "Developer"));
+        verify(userService, times(2)).updateUser(realmModel, workerSession, "luigi.verdi", Collections.singletonMap("titolo", "Manager"));
+        verify(sessionFactory, times(4)).create();
+        assertThat(processor.getProcessedCount(), equalTo(2L));
+        assertThat(processor.getFailedCount(), equalTo(0L));
+    }
+
+    @Test
+    void testIncompleteBatchFlushedAfterTheWindow() throws Exception {
+
+        AsyncEventProcessor processor = new AsyncEventProcessor(sessionFactory, userService, 1, 10, OverflowPolicy.DROP, 5000, 100, 50);
+        CountDownLatch updated = new CountDownLatch(1);
+        when(userService.usernames(any(), any(), any())).thenReturn(Collections.singletonMap("mario.rossi", "mario.rossi"));
+        doAnswer(invocationOnMock -> {
+            updated.countDown();
+            return Collections.emptyMap();
+        }).when(userService).queryUsers(anyMap());
+
+        processor.submit(loginEvent("mario.rossi"));
+
+        assertThat(updated.await(5, TimeUnit.SECONDS), equalTo(true));
+        processor.close();
+        assertThat(processor.getBatchCount(), equalTo(1L));
+    }
+}
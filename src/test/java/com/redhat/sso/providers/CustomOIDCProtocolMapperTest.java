@@ -1,6 +1,7 @@
 package com.redhat.sso.providers;
 
 import com.redhat.sso.config.ProviderConfig;
+import com.redhat.sso.service.LdapService.UserNotUniqueException;
 import com.redhat.sso.service.UserService;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -23,18 +24,31 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import javax.naming.NamingException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -94,10 +108,12 @@ class CustomOIDCProtocolMapperTest {
     @Test
     void testExpectedConfigProperties() {
         List<ProviderConfigProperty> configProperties = mapper.getConfigProperties();
-        assertThat(configProperties.size(), equalTo(3));
+        assertThat(configProperties.size(), equalTo(5));
         assertThat(configProperties, hasItem(hasProperty("name", equalTo(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN))));
         assertThat(configProperties, hasItem(hasProperty("name", equalTo(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN))));
         assertThat(configProperties, hasItem(hasProperty("name", equalTo(OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO))));
+        assertThat(configProperties, hasItem(hasProperty("name", equalTo(CustomOIDCProtocolMapper.SESSION_NOTES_MAX_AGE))));
+        assertThat(configProperties, hasItem(hasProperty("name", equalTo(CustomOIDCProtocolMapper.LDAP_ATTRIBUTES))));
     }
 
     @Test
@@ -256,6 +272,276 @@ class CustomOIDCProtocolMapperTest {
     }
 
 
+    @Test
+    void testOneLookupForAllTheTokensOfARequest() throws NamingException {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "true");
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO, "true");
+        model.setConfig(config);
+
+        prepareContext();
+        Map<String, Object> sessionAttributes = new HashMap<>();
+        doAnswer(invocationOnMock -> sessionAttributes.get(invocationOnMock.getArgument(0, String.class))).when(keycloakSession).getAttribute(anyString());
+        doAnswer(invocationOnMock -> sessionAttributes.put(invocationOnMock.getArgument(0), invocationOnMock.getArgument(1)))
+            .when(keycloakSession).setAttribute(anyString(), any());
+
+        AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+        IDToken idToken = mapper.transformIDToken(new IDToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+        AccessToken userInfo = mapper.transformUserInfoToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+
+        assertThat(accessToken.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        assertThat(idToken.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        assertThat(userInfo.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        verify(userService, times(1)).queryLDAP("mario.rossi");
+    }
+
+    @Test
+    void testClaimsReusedFromTheUserSessionNotes() throws NamingException {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        config.put(CustomOIDCProtocolMapper.SESSION_NOTES_MAX_AGE, "300");
+        model.setConfig(config);
+
+        prepareContext();
+        Map<String, String> notes = prepareSessionNotes();
+
+        // first token of the session, then a refresh in another request
+        AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+        AccessToken refreshedToken = mapper.transformAccessToken(new AccessToken(), model, mock(KeycloakSession.class), userSessionModel, clientSessionContext);
+
+        assertThat(accessToken.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        assertThat(refreshedToken.getOtherClaims().size(), equalTo(2));
+        assertThat(refreshedToken.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        assertThat(refreshedToken.getOtherClaims().get("numero"), equalTo("42"));
+        assertThat(notes.get(CustomOIDCProtocolMapper.SESSION_NOTE_PREFIX + "numero"), equalTo("42"));
+        verify(userService, times(1)).queryLDAP("mario.rossi");
+    }
+
+    @Test
+    void testExpiredSessionNotesReplaced() throws NamingException {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        config.put(CustomOIDCProtocolMapper.SESSION_NOTES_MAX_AGE, "300");
+        model.setConfig(config);
+
+        prepareContext();
+        Map<String, String> notes = prepareSessionNotes();
+        notes.put(CustomOIDCProtocolMapper.SESSION_NOTE_PREFIX + "titolo", "OldUser");
+        notes.put(CustomOIDCProtocolMapper.SESSION_NOTE_PREFIX + "reparto", "Vendite");
+        notes.put(CustomOIDCProtocolMapper.SESSION_NOTE_TIMESTAMP, String.valueOf(System.currentTimeMillis() - 301000));
+
+        AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+
+        assertThat(accessToken.getOtherClaims().size(), equalTo(2));
+        assertThat(accessToken.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        assertThat(notes.get(CustomOIDCProtocolMapper.SESSION_NOTE_PREFIX + "titolo"), equalTo("NormalUser"));
+        assertThat(notes.containsKey(CustomOIDCProtocolMapper.SESSION_NOTE_PREFIX + "reparto"), equalTo(false));
+        verify(userService, times(1)).queryLDAP("mario.rossi");
+    }
+
+    @Test
+    void testClaimsReadFromTheSynchronizedUserAttributes() throws NamingException {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        model.setConfig(config);
+
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, mock(RealmModel.class), "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userSessionModel.getUser()).thenReturn(userModel);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("titolo", "NormalUser");
+        attributes.put("numero", "42");
+        when(userService.getSynchronizedAttributes(userModel)).thenReturn(Optional.of(attributes));
+
+        AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+
+        assertThat(accessToken.getOtherClaims().size(), equalTo(2));
+        assertThat(accessToken.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        assertThat(accessToken.getOtherClaims().get("numero"), equalTo("42"));
+        verify(userService, never()).queryLDAP(anyString());
+    }
+
+    @Test
+    void testOnlyTheClaimsOfTheMapperAttributes() throws NamingException {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        config.put(CustomOIDCProtocolMapper.LDAP_ATTRIBUTES, "title, unknown");
+        model.setConfig(config);
+
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, mock(RealmModel.class), "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userSessionModel.getUser()).thenReturn(userModel);
+        when(userService.queryLDAP("mario.rossi", Collections.singleton("title"))).thenReturn(Collections.singletonMap("titolo", "NormalUser"));
+
+        AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+
+        assertThat(accessToken.getOtherClaims().size(), equalTo(1));
+        assertThat(accessToken.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        verify(userService, never()).queryLDAP(anyString());
+    }
+
+    @Test
+    void testNoClaimsWhenNoneOfTheMapperAttributesIsKnown() throws NamingException {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        config.put(CustomOIDCProtocolMapper.LDAP_ATTRIBUTES, "titel");
+        model.setConfig(config);
+
+        AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+
+        assertThat(accessToken.getOtherClaims().isEmpty(), equalTo(true));
+        verify(userService, never()).queryLDAP(anyString());
+        verify(userService, never()).queryLDAP(anyString(), any());
+    }
+
+    @Test
+    void testOneLookupForTheAttributesOfAllTheMappersOfTheClient() throws NamingException {
+        ProtocolMapperModel titleModel = new ProtocolMapperModel();
+        Map<String, String> titleConfig = new HashMap<>();
+        titleConfig.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        titleConfig.put(CustomOIDCProtocolMapper.LDAP_ATTRIBUTES, "title");
+        titleModel.setConfig(titleConfig);
+
+        ProtocolMapperModel numberModel = spy(new ProtocolMapperModel());
+        Map<String, String> numberConfig = new HashMap<>();
+        numberConfig.put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "true");
+        numberConfig.put(CustomOIDCProtocolMapper.LDAP_ATTRIBUTES, "employeeNumber");
+        numberModel.setConfig(numberConfig);
+        when(numberModel.getProtocolMapper()).thenReturn(CustomOIDCProtocolMapper.PROVIDER_ID);
+        when(clientSessionContext.getProtocolMappersStream()).thenAnswer(invocationOnMock -> Stream.of(titleModel, numberModel));
+
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, mock(RealmModel.class), "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userSessionModel.getUser()).thenReturn(userModel);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("titolo", "NormalUser");
+        attributes.put("numero", "42");
+        when(userService.queryLDAP("mario.rossi", new TreeSet<>(Arrays.asList("employeeNumber", "title")))).thenReturn(attributes);
+        Map<String, Object> sessionAttributes = new HashMap<>();
+        doAnswer(invocationOnMock -> sessionAttributes.get(invocationOnMock.getArgument(0, String.class))).when(keycloakSession).getAttribute(anyString());
+        doAnswer(invocationOnMock -> sessionAttributes.put(invocationOnMock.getArgument(0), invocationOnMock.getArgument(1)))
+            .when(keycloakSession).setAttribute(anyString(), any());
+
+        AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), titleModel, keycloakSession, userSessionModel, clientSessionContext);
+        IDToken idToken = mapper.transformIDToken(new IDToken(), numberModel, keycloakSession, userSessionModel, clientSessionContext);
+
+        assertThat(accessToken.getOtherClaims().size(), equalTo(1));
+        assertThat(accessToken.getOtherClaims().get("titolo"), equalTo("NormalUser"));
+        assertThat(idToken.getOtherClaims().size(), equalTo(1));
+        assertThat(idToken.getOtherClaims().get("numero"), equalTo("42"));
+        verify(userService, times(1)).queryLDAP(eq("mario.rossi"), any());
+    }
+
+    @SetEnvironmentVariable.SetEnvironmentVariables({
+        @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_MAPPER_BUDGET_MILLIS, value = "50")
+    })
+    @Test
+    void testLastKnownClaimsWhenTheBudgetIsExceeded() {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "true");
+        model.setConfig(config);
+
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, mock(RealmModel.class), "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userSessionModel.getUser()).thenReturn(userModel);
+        when(userService.queryLDAPAsync(eq("mario.rossi"), any())).thenReturn(new CompletableFuture<>());
+        when(userService.getLastSynchronizedAttributes(userModel)).thenReturn(Optional.of(Collections.singletonMap("titolo", "OldUser")));
+        Map<String, Object> sessionAttributes = new HashMap<>();
+        doAnswer(invocationOnMock -> sessionAttributes.get(invocationOnMock.getArgument(0, String.class))).when(keycloakSession).getAttribute(anyString());
+        doAnswer(invocationOnMock -> sessionAttributes.put(invocationOnMock.getArgument(0), invocationOnMock.getArgument(1)))
+            .when(keycloakSession).setAttribute(anyString(), any());
+
+        long start = System.nanoTime();
+        AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+        IDToken idToken = mapper.transformIDToken(new IDToken(), model, keycloakSession, userSessionModel, clientSessionContext);
+
+        // the tokens of the request share the budget
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000, equalTo(true));
+        assertThat(accessToken.getOtherClaims().get("titolo"), equalTo("OldUser"));
+        assertThat(idToken.getOtherClaims().get("titolo"), equalTo("OldUser"));
+        verify(userService, times(1)).queryLDAPAsync(eq("mario.rossi"), any());
+        verify(userService, times(2)).recordDegradedToken();
+    }
+
+    @SetEnvironmentVariable.SetEnvironmentVariables({
+        @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_MAPPER_BUDGET_MILLIS, value = "50")
+    })
+    @Test
+    void testClaimsOmittedWhenTheLookupFailsWithinTheBudget() {
+        AccessToken accessToken = new AccessToken();
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        model.setConfig(config);
+
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, mock(RealmModel.class), "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userSessionModel.getUser()).thenReturn(userModel);
+        CompletableFuture<Map<String, String>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new NamingException("Exception on attribute"));
+        when(userService.queryLDAPAsync(eq("mario.rossi"), any())).thenReturn(failed);
+
+        AccessToken actualToken = mapper.transformAccessToken(accessToken, model, keycloakSession, userSessionModel, clientSessionContext);
+
+        assertThat(actualToken.getOtherClaims().size(), equalTo(0));
+        verify(userService, times(1)).recordDegradedToken();
+    }
+
+    @SetEnvironmentVariable.SetEnvironmentVariables({
+        @SetEnvironmentVariable(key = ProviderConfig.EXTERNAL_LDAP_MAPPER_BUDGET_MILLIS, value = "50")
+    })
+    @Test
+    void testUserNotUniqueWithinTheBudgetServesNoLastKnownClaims() {
+        ProtocolMapperModel model = new ProtocolMapperModel();
+
+        Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        model.setConfig(config);
+
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, mock(RealmModel.class), "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userSessionModel.getUser()).thenReturn(userModel);
+        CompletableFuture<Map<String, String>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new UserNotUniqueException("Found 2 record(s)", 2));
+        when(userService.queryLDAPAsync(eq("mario.rossi"), any())).thenReturn(failed);
+
+        UserNotUniqueException notUnique = Assertions.assertThrows(UserNotUniqueException.class,
+            () -> mapper.transformAccessToken(new AccessToken(), model, keycloakSession, userSessionModel, clientSessionContext));
+
+        assertThat(notUnique.getCount(), equalTo(2));
+        verify(userService, never()).getLastSynchronizedAttributes(any());
+        verify(userService, never()).recordDegradedToken();
+    }
+
+    private Map<String, String> prepareSessionNotes() {
+
+        Map<String, String> notes = new HashMap<>();
+        lenient().when(userSessionModel.getNotes()).thenReturn(notes);
+        lenient().doAnswer(invocationOnMock -> notes.get(invocationOnMock.getArgument(0, String.class))).when(userSessionModel).getNote(anyString());
+        lenient().doAnswer(invocationOnMock -> notes.put(invocationOnMock.getArgument(0), invocationOnMock.getArgument(1)))
+            .when(userSessionModel).setNote(anyString(), anyString());
+        lenient().doAnswer(invocationOnMock -> notes.remove(invocationOnMock.getArgument(0, String.class)))
+            .when(userSessionModel).removeNote(anyString());
+        return notes;
+    }
+
     private void prepareContext() throws NamingException {
 
         RealmModel realmModel = mock(RealmModel.class);
@@ -0,0 +1,128 @@
+package com.redhat.sso.providers;
+
+import com.redhat.sso.providers.UpdateJournal.Entry;
+import com.redhat.sso.service.LdapService.UserNotUniqueException;
+import com.redhat.sso.service.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import javax.naming.CommunicationException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class JournalReplayerTest {
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    KeycloakSessionFactory sessionFactory;
+
+    @Mock
+    KeycloakSession workerSession;
+
+    @Mock
+    UserService userService;
+
+    RealmModel realmModel = mock(RealmModel.class);
+
+    UpdateJournal journal;
+
+    JournalReplayer replayer;
+
+    @BeforeEach
+    void init() throws Exception {
+
+        RealmProvider realmProvider = mock(RealmProvider.class);
+        lenient().when(sessionFactory.create()).thenReturn(workerSession);
+        lenient().when(workerSession.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        lenient().when(workerSession.realms()).thenReturn(realmProvider);
+        lenient().when(realmProvider.getRealm("rhsso.EventListener-v1")).thenReturn(realmModel);
+
+        journal = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+        replayer = new JournalReplayer(sessionFactory, userService, journal, 1, 3600000);
+    }
+
+    @AfterEach
+    void close() {
+        replayer.close();
+    }
+
+    @Test
+    void testPendingUpdatesReplayed() throws Exception {
+
+        journal.append("rhsso.EventListener-v1", "mario.rossi");
+        journal.append("rhsso.EventListener-v1", "luigi.verdi");
+        when(userService.isLdapAvailable()).thenReturn(true);
+
+        assertThat(replayer.replay(), equalTo(2));
+
+        verify(userService, times(1)).updateUser(realmModel, workerSession, "mario.rossi");
+        verify(userService, times(1)).updateUser(realmModel, workerSession, "luigi.verdi");
+        assertThat(journal.getPendingCount(), equalTo(0));
+    }
+
+    @Test
+    void testReplayPostponedWhileLdapIsNotAvailable() throws Exception {
+
+        journal.append("rhsso.EventListener-v1", "mario.rossi");
+        when(userService.isLdapAvailable()).thenReturn(false);
+
+        assertThat(replayer.replay(), equalTo(0));
+
+        verify(userService, never()).updateUser(any(), any(), any());
+        assertThat(journal.getPendingCount(), equalTo(1));
+    }
+
+    @Test
+    void testReplayStoppedAtTheFirstLdapFailure() throws Exception {
+
+        journal.append("rhsso.EventListener-v1", "mario.rossi");
+        journal.append("rhsso.EventListener-v1", "luigi.verdi");
+        when(userService.isLdapAvailable()).thenReturn(true);
+        doThrow(new CommunicationException("LDAP down")).when(userService).updateUser(any(), any(), eq("mario.rossi"));
+
+        assertThat(replayer.replay(), equalTo(0));
+
+        verify(userService, never()).updateUser(any(), any(), eq("luigi.verdi"));
+        assertThat(journal.getPendingEntries(), equalTo(Arrays.asList(
+            new Entry("rhsso.EventListener-v1", "mario.rossi"), new Entry("rhsso.EventListener-v1", "luigi.verdi"))));
+    }
+
+    @Test
+    void testUpdateOfUserNotOnLdapDiscarded() throws Exception {
+
+        journal.append("rhsso.EventListener-v1", "internal.user");
+        when(userService.isLdapAvailable()).thenReturn(true);
+        doThrow(new UserNotUniqueException("Found 0 record(s)", 0)).when(userService).updateUser(any(), any(), eq("internal.user"));
+
+        assertThat(replayer.replay(), equalTo(0));
+
+        assertThat(journal.getPendingEntries(), equalTo(Collections.emptyList()));
+        assertThat(replayer.getDiscardedCount(), equalTo(1L));
+    }
+}
@@ -12,6 +12,7 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import com.redhat.sso.config.ProviderConfig;
+import com.redhat.sso.service.LdapSubsystem;
 import com.redhat.sso.service.UserService;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -93,6 +94,17 @@ class SsoCustomEventListenerProviderFactoryTest {
         assertThat(eventListenerProvider, instanceOf(SsoCustomEventListenerProvider.class));
     }
 
+    @Test
+    void testSharedLdapSubsystemClosedWithTheFactory() {
+        LdapSubsystem subsystem = LdapSubsystem.get();
+        SsoCustomEventListenerProviderFactory factory = new SsoCustomEventListenerProviderFactory();
+
+        factory.close();
+
+        assertThat(LdapSubsystem.get(), not(sameInstance(subsystem)));
+        LdapSubsystem.shutdown();
+    }
+
     @Test
     void testExpectedEventListenerProviderFactoryId() {
         SsoCustomEventListenerProviderFactory factory = new SsoCustomEventListenerProviderFactory(userService);
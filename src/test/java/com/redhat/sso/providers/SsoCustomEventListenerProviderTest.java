@@ -12,6 +12,7 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.models.RealmProvider;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import javax.naming.CommunicationException;
 import javax.naming.NamingException;
 
 import static org.mockito.ArgumentMatchers.any;
@@ -118,4 +119,69 @@ class SsoCustomEventListenerProviderTest {
         verify(userService,times(1)).updateUser(any(),any(),eq(loginEvent.getUserId()));
     }
 
-}
\ No newline at end of file
+    @Test
+    void testLoginEventQueuedAfterCommitInAsyncMode() throws NamingException {
+
+        KeycloakTransactionManager keycloakTransactionManager = mock(KeycloakTransactionManager.class);
+        AsyncEventProcessor eventProcessor = mock(AsyncEventProcessor.class);
+        when(keycloakSession.getTransactionManager()).thenReturn(keycloakTransactionManager);
+        SsoCustomEventListenerProvider asyncProvider = new SsoCustomEventListenerProvider(keycloakSession, userService, eventProcessor);
+
+        Event loginEvent = new Event();
+        loginEvent.setType(EventType.LOGIN);
+        loginEvent.setRealmId("rhsso.EventListener-v1");
+        loginEvent.setUserId("mario.rossi");
+        Event registerEvent = new Event();
+        registerEvent.setType(EventType.REGISTER);
+
+        asyncProvider.handleClientEvent(loginEvent);
+        asyncProvider.handleClientEvent(registerEvent);
+
+        verify(keycloakTransactionManager, times(1)).enlistAfterCompletion(any());
+        verify(eventProcessor, times(1)).submit(loginEvent);
+        verify(eventProcessor, times(0)).submit(registerEvent);
+        verify(userService, times(0)).updateUser(any(), any(), any());
+    }
+
+    @Test
+    void testRecentlySynchronizedUserSkipped() throws NamingException {
+
+        Event loginEvent = new Event();
+        loginEvent.setType(EventType.LOGIN);
+        loginEvent.setRealmId("rhsso.EventListener-v1");
+        loginEvent.setUserId("mario.rossi");
+        when(userService.isRecentlySynchronized("rhsso.EventListener-v1", "mario.rossi")).thenReturn(true);
+
+        provider.handleClientEvent(loginEvent);
+
+        verify(keycloakSession, times(0)).realms();
+        verify(userService, times(0)).updateUser(any(), any(), any());
+    }
+
+    @Test
+    void testUpdateFailedForLdapJournaled() throws NamingException {
+
+        RealmProvider realmProvider = mock(RealmProvider.class);
+        when(keycloakSession.realms()).thenReturn(realmProvider);
+        when(realmProvider.getRealm(anyString())).thenReturn(mock(RealmModel.class));
+        UpdateJournal journal = mock(UpdateJournal.class);
+        SsoCustomEventListenerProvider journaledProvider = new SsoCustomEventListenerProvider(keycloakSession, userService, null, journal);
+
+        Event loginEvent = new Event();
+        loginEvent.setType(EventType.LOGIN);
+        loginEvent.setRealmId("rhsso.EventListener-v1");
+        loginEvent.setUserId("mario.rossi");
+        Event notFoundEvent = new Event();
+        notFoundEvent.setType(EventType.LOGIN);
+        notFoundEvent.setRealmId("rhsso.EventListener-v1");
+        notFoundEvent.setUserId("this_user_does_not_exists");
+        doThrow(new CommunicationException("LDAP down")).when(userService).updateUser(any(), any(), eq("mario.rossi"));
+        doThrow(IllegalArgumentException.class).when(userService).updateUser(any(), any(), eq("this_user_does_not_exists"));
+
+        journaledProvider.handleClientEvent(loginEvent);
+        journaledProvider.handleClientEvent(notFoundEvent);
+
+        verify(journal, times(1)).append("rhsso.EventListener-v1", "mario.rossi");
+        verify(journal, times(0)).append(any(), eq("this_user_does_not_exists"));
+    }
+}
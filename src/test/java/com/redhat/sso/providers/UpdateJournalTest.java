@@ -0,0 +1,155 @@
+package com.redhat.sso.providers;
+
+import com.redhat.sso.providers.UpdateJournal.Entry;
+import com.redhat.sso.service.LdapService.LdapCtxCreationException;
+import com.redhat.sso.service.LdapService.UserNotUniqueException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.naming.CommunicationException;
+import javax.naming.ServiceUnavailableException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+class UpdateJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testPendingUpdatesSurviveARestart() throws Exception {
+
+        UpdateJournal journal = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+        journal.append("rhsso.EventListener-v1", "mario.rossi");
+        journal.append("rhsso.EventListener-v1", "luigi.verdi");
+        journal.append("rhsso.EventListener-v1", "mario.rossi");
+        journal.close();
+
+        UpdateJournal reopened = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+
+        assertThat(reopened.getPendingEntries(), equalTo(Arrays.asList(
+            new Entry("rhsso.EventListener-v1", "mario.rossi"), new Entry("rhsso.EventListener-v1", "luigi.verdi"))));
+        reopened.close();
+    }
+
+    @Test
+    void testAppliedUpdatesNotReplayedAfterARestart() throws Exception {
+
+        UpdateJournal journal = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+        journal.append("rhsso.EventListener-v1", "mario.rossi");
+        journal.append("rhsso.EventListener-v1", "luigi.verdi");
+        journal.append("rhsso.EventListener-v1", "anna.bianchi");
+        journal.markApplied(new Entry("rhsso.EventListener-v1", "luigi.verdi"));
+        journal.close();
+
+        UpdateJournal reopened = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+
+        assertThat(reopened.getPendingEntries(), equalTo(Arrays.asList(
+            new Entry("rhsso.EventListener-v1", "mario.rossi"), new Entry("rhsso.EventListener-v1", "anna.bianchi"))));
+        reopened.close();
+    }
+
+    @Test
+    void testJournalCompactedWhenAllUpdatesApplied() throws Exception {
+
+        UpdateJournal journal = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+        journal.append("rhsso.EventListener-v1", "mario.rossi");
+        journal.append("rhsso.EventListener-v1", "luigi.verdi");
+
+        journal.markApplied(new Entry("rhsso.EventListener-v1", "mario.rossi"));
+        journal.markApplied(new Entry("rhsso.EventListener-v1", "luigi.verdi"));
+
+        assertThat(journal.getCompactionCount(), equalTo(1L));
+        assertThat(journal.getPendingCount(), equalTo(0));
+        journal.close();
+    }
+
+    @Test
+    void testFullJournalCompactedBeforeRejectingAnUpdate() throws Exception {
+
+        UpdateJournal journal = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+        int appended = 0;
+        while (journal.append("realm", "user" + appended)) {
+            appended++;
+        }
+        assertThat(journal.getRejectedCount(), equalTo(1L));
+
+        for (int i = 0; i < 10; i++) {
+            journal.markApplied(new Entry("realm", "user" + i));
+        }
+        assertThat(journal.getCompactionCount(), equalTo(0L));
+
+        assertThat(journal.append("realm", "new.user"), equalTo(true));
+        assertThat(journal.getCompactionCount(), equalTo(1L));
+        assertThat(journal.getPendingCount(), equalTo(appended - 10 + 1));
+        assertThat(journal.getPendingEntries().get(0), equalTo(new Entry("realm", "user10")));
+        journal.close();
+    }
+
+    @Test
+    void testWritesForcedTogetherWithAForceInterval() throws Exception {
+
+        UpdateJournal journal = new UpdateJournal(directory.resolve("journal.dat"), 4096, 60000);
+        journal.append("rhsso.EventListener-v1", "mario.rossi");
+        journal.append("rhsso.EventListener-v1", "luigi.verdi");
+        journal.markApplied(new Entry("rhsso.EventListener-v1", "luigi.verdi"));
+        assertThat(journal.getForceCount(), equalTo(0L));
+
+        journal.force();
+        journal.force();
+
+        assertThat(journal.getForceCount(), equalTo(1L));
+        journal.close();
+    }
+
+    @Test
+    void testJournalUsableAfterRepeatedCompactions() throws Exception {
+
+        UpdateJournal journal = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+        for (int i = 0; i < 100; i++) {
+            journal.append("realm", "user" + i);
+            journal.markApplied(new Entry("realm", "user" + i));
+        }
+        journal.append("realm", "pending.user");
+        journal.close();
+
+        UpdateJournal reopened = new UpdateJournal(directory.resolve("journal.dat"), 4096);
+
+        assertThat(journal.getCompactionCount(), equalTo(100L));
+        assertThat(reopened.getPendingEntries(), equalTo(Arrays.asList(new Entry("realm", "pending.user"))));
+        reopened.close();
+    }
+
+    @Test
+    void testLdapNotAvailableTransient() {
+
+        assertThat(UpdateJournal.isTransientFailure(new CommunicationException("LDAP down")), equalTo(true));
+    }
+
+    @Test
+    void testLdapContextNotCreatedTransient() {
+
+        assertThat(UpdateJournal.isTransientFailure(new LdapCtxCreationException(new ServiceUnavailableException("LDAP busy"))), equalTo(true));
+    }
+
+    @Test
+    void testUserNotFoundInTheRealmNotTransient() {
+
+        assertThat(UpdateJournal.isTransientFailure(new IllegalArgumentException("User with id mario.rossi not found")), equalTo(false));
+    }
+
+    @Test
+    void testUserNotFoundOnLdapNotTransient() {
+
+        assertThat(UpdateJournal.isTransientFailure(new UserNotUniqueException("Found 0 record(s)", 0)), equalTo(false));
+    }
+
+    @Test
+    void testUserNotUniqueOnLdapNotTransient() {
+
+        assertThat(UpdateJournal.isTransientFailure(new UserNotUniqueException("Found 2 record(s)", 2)), equalTo(false));
+    }
+}
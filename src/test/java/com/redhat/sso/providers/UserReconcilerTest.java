@@ -0,0 +1,172 @@
+package com.redhat.sso.providers;
+
+import com.redhat.sso.service.RealmUserServices;
+import com.redhat.sso.service.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class UserReconcilerTest {
+
+    @Mock
+    KeycloakSessionFactory sessionFactory;
+
+    @Mock
+    KeycloakSession workerSession;
+
+    @Mock
+    UserService userService;
+
+    RealmModel realmModel = mock(RealmModel.class);
+
+    RealmProvider realmProvider = mock(RealmProvider.class);
+
+    UserReconciler reconciler;
+
+    @BeforeEach
+    void init() {
+
+        lenient().when(sessionFactory.create()).thenReturn(workerSession);
+        lenient().when(workerSession.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        lenient().when(workerSession.realms()).thenReturn(realmProvider);
+        lenient().when(realmProvider.getRealmByName("rhsso")).thenReturn(realmModel);
+        lenient().when(realmProvider.getRealm("rhsso-id")).thenReturn(realmModel);
+        lenient().when(realmModel.getId()).thenReturn("rhsso-id");
+    }
+
+    @AfterEach
+    void close() {
+        reconciler.close();
+    }
+
+    private static Map<String, Map<String, String>> page(int from, int to) {
+
+        Map<String, Map<String, String>> page = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            page.put("user" + i, Collections.singletonMap("titolo", "Developer"));
+        }
+        return page;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void streamPages(Map<String, Map<String, String>>... pages) throws Exception {
+
+        doAnswer(invocationOnMock -> {
+            Consumer<Map<String, Map<String, String>>> consumer = invocationOnMock.getArgument(1);
+            int count = 0;
+            for (Map<String, Map<String, String>> page : pages) {
+                consumer.accept(page);
+                count += page.size();
+            }
+            return count;
+        }).when(userService).streamLDAPUsers(anyInt(), any());
+    }
+
+    @Test
+    void testEveryChunkUpdatedInItsOwnTransaction() throws Exception {
+
+        reconciler = new UserReconciler(sessionFactory, userService, Collections.singletonList("rhsso"), 3600000, 5, 2, 2, 0);
+        streamPages(page(0, 5), page(5, 8));
+        when(userService.reconcileUsers(eq(realmModel), eq(workerSession), any()))
+            .thenAnswer(invocationOnMock -> invocationOnMock.getArgument(2, Map.class).size() - 1);
+
+        int found = reconciler.reconcile();
+
+        // realms resolved in a transaction, then pages of 5 and 3 users, chunks of 2 users: 3 + 2 transactions
+        verify(sessionFactory, times(6)).create();
+        verify(realmProvider, times(1)).getRealmByName("rhsso");
+        verify(userService, times(5)).reconcileUsers(eq(realmModel), eq(workerSession), any());
+        assertThat(found, equalTo(3));
+        assertThat(reconciler.getReadCount(), equalTo(8L));
+        assertThat(reconciler.getMatchedCount(), equalTo(3L));
+    }
+
+    @Test
+    void testReconciliationThrottled() throws Exception {
+
+        reconciler = new UserReconciler(sessionFactory, userService, Collections.singletonList("rhsso"), 3600000, 10, 10, 1, 100);
+        streamPages(page(0, 10), page(10, 20));
+
+        long start = System.nanoTime();
+        reconciler.reconcile();
+
+        // 20 users at 100 users per second
+        assertThat((System.nanoTime() - start) / 1000000, greaterThanOrEqualTo(200L));
+    }
+
+    @Test
+    void testFailedChunkDoesNotStopTheReconciliation() throws Exception {
+
+        reconciler = new UserReconciler(sessionFactory, userService, Collections.singletonList("rhsso"), 3600000, 10, 1, 1, 0);
+        streamPages(page(0, 3));
+        when(userService.reconcileUsers(eq(realmModel), eq(workerSession), any()))
+            .thenReturn(1)
+            .thenThrow(new IllegalStateException("database not available"))
+            .thenReturn(1);
+
+        assertThat(reconciler.reconcile(), equalTo(2));
+        assertThat(reconciler.getFailedChunkCount(), equalTo(1L));
+    }
+
+    @Test
+    void testRunSkippedWhenAnotherNodeIsReconciling() throws Exception {
+
+        // the lease of the lock doesn't depend on the interval
+        reconciler = new UserReconciler(sessionFactory, userService, Collections.singletonList("rhsso"), 60000, 10, 10, 1, 0);
+        ClusterProvider cluster = mock(ClusterProvider.class);
+        when(workerSession.getProvider(ClusterProvider.class)).thenReturn(cluster);
+        when(cluster.executeIfNotExecuted(eq(UserReconciler.TASK_KEY), eq(3600), any())).thenReturn(ExecutionResult.notExecuted());
+
+        reconciler.reconcileSafely();
+
+        verify(userService, never()).streamLDAPUsers(anyInt(), any());
+        verify(workerSession, times(1)).close();
+        assertThat(reconciler.getSkippedCount(), equalTo(1L));
+        assertThat(reconciler.getRunCount(), equalTo(0L));
+    }
+
+    @Test
+    void testLockHeldForTheConfiguredLease() throws Exception {
+
+        reconciler = new UserReconciler(sessionFactory, new RealmUserServices(userService), Collections.singletonList("rhsso"), 60000, 10, 10, 1, 0,
+            7200000);
+        ClusterProvider cluster = mock(ClusterProvider.class);
+        when(workerSession.getProvider(ClusterProvider.class)).thenReturn(cluster);
+        when(cluster.executeIfNotExecuted(eq(UserReconciler.TASK_KEY), eq(7200), any())).thenReturn(ExecutionResult.notExecuted());
+
+        reconciler.reconcileSafely();
+
+        verify(cluster, times(1)).executeIfNotExecuted(eq(UserReconciler.TASK_KEY), eq(7200), any());
+        assertThat(reconciler.getSkippedCount(), equalTo(1L));
+    }
+}
@@ -0,0 +1,124 @@
+package com.redhat.sso.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+
+class LdapAsyncExecutorTest {
+
+    private LdapAsyncExecutor executor;
+
+    @AfterEach
+    void close() {
+        executor.close();
+    }
+
+    @Test
+    void testLookupCompletesOnTheExecutor() throws Exception {
+
+        executor = new LdapAsyncExecutor(2, 10, 5000);
+
+        CompletableFuture<String> lookup = executor.submit(() -> Thread.currentThread().getName());
+
+        assertThat(lookup.get(5, TimeUnit.SECONDS), equalTo("ldap-async-lookup-1"));
+        assertThat(executor.getSubmittedCount(), equalTo(1L));
+    }
+
+    @Test
+    void testLookupExceptionCompletesTheFuture() {
+
+        executor = new LdapAsyncExecutor(2, 10, 5000);
+
+        CompletableFuture<String> lookup = executor.submit(() -> {
+            throw new NamingException("LDAP down");
+        });
+
+        ExecutionException exception = Assertions.assertThrows(ExecutionException.class, () -> lookup.get(5, TimeUnit.SECONDS));
+        assertThat(exception.getCause().getMessage(), equalTo("LDAP down"));
+    }
+
+    @Test
+    void testLookupRejectedWhenTheQueueIsFull() throws Exception {
+
+        executor = new LdapAsyncExecutor(1, 1, 0);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> running = executor.submit(() -> await(release));
+        CompletableFuture<String> queued = executor.submit(() -> await(release));
+        CompletableFuture<String> rejected = executor.submit(() -> await(release));
+
+        ExecutionException exception = Assertions.assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+        assertThat(exception.getCause(), instanceOf(ServiceUnavailableException.class));
+        assertThat(executor.getRejectedCount(), equalTo(1L));
+
+        release.countDown();
+        assertThat(running.get(5, TimeUnit.SECONDS), equalTo("released"));
+        assertThat(queued.get(5, TimeUnit.SECONDS), equalTo("released"));
+    }
+
+    @Test
+    void testSlowLookupTimesOutAndIsInterrupted() {
+
+        executor = new LdapAsyncExecutor(1, 1, 50);
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        CompletableFuture<String> lookup = executor.submit(() -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "too late";
+        });
+
+        ExecutionException exception = Assertions.assertThrows(ExecutionException.class, () -> lookup.get(5, TimeUnit.SECONDS));
+        assertThat(exception.getCause(), instanceOf(TimeLimitExceededException.class));
+        assertThat(executor.getTimeoutCount(), equalTo(1L));
+        Assertions.assertDoesNotThrow(() -> Assertions.assertTrue(interrupted.await(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void testCancelledLookupIsInterrupted() {
+
+        executor = new LdapAsyncExecutor(1, 1, 0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        CompletableFuture<String> lookup = executor.submit(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "cancelled";
+        });
+        Assertions.assertDoesNotThrow(() -> Assertions.assertTrue(started.await(5, TimeUnit.SECONDS)));
+
+        lookup.cancel(true);
+
+        Assertions.assertDoesNotThrow(() -> Assertions.assertTrue(interrupted.await(5, TimeUnit.SECONDS)));
+        assertThat(executor.getCancelledCount(), equalTo(1L));
+    }
+
+    private static String await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "released";
+    }
+}
@@ -0,0 +1,109 @@
+package com.redhat.sso.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.ServiceUnavailableException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+class LdapBulkheadTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void close() {
+        release.countDown();
+        callers.shutdownNow();
+    }
+
+    /**
+     * Start a search holding its slot until the end of the test
+     */
+    private CompletableFuture<String> blockingSearch(LdapBulkhead bulkhead) throws InterruptedException {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> result = new CompletableFuture<>();
+        callers.execute(() -> {
+            try {
+                result.complete(bulkhead.call(() -> {
+                    started.countDown();
+                    release.await(5, TimeUnit.SECONDS);
+                    return "slow";
+                }));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        started.await(5, TimeUnit.SECONDS);
+        return result;
+    }
+
+    @Test
+    void testSearchesNotLimitedWithoutMaxConcurrent() throws Exception {
+
+        LdapBulkhead bulkhead = new LdapBulkhead("mapper", 0, 0, 0);
+
+        blockingSearch(bulkhead);
+
+        assertThat(bulkhead.call(() -> "fast"), equalTo("fast"));
+        assertThat(bulkhead.getRejectedCount(), equalTo(0L));
+    }
+
+    @Test
+    void testSearchShedWhenTheQueueIsFull() throws Exception {
+
+        LdapBulkhead bulkhead = new LdapBulkhead("mapper", 1, 0, 5000);
+        blockingSearch(bulkhead);
+
+        ServiceUnavailableException shed = Assertions.assertThrows(ServiceUnavailableException.class, () -> bulkhead.call(() -> "fast"));
+
+        assertThat(shed.getMessage(), containsString("Too many mapper LDAP searches"));
+        assertThat(bulkhead.getActiveCount(), equalTo(1));
+        assertThat(bulkhead.getRejectedCount(), equalTo(1L));
+        assertThat(bulkhead.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    void testSearchShedWhenNoSlotIsFreeWithinTheMaxWait() throws Exception {
+
+        LdapBulkhead bulkhead = new LdapBulkhead("listener", 1, 1, 50);
+        blockingSearch(bulkhead);
+
+        ServiceUnavailableException shed = Assertions.assertThrows(ServiceUnavailableException.class, () -> bulkhead.call(() -> "fast"));
+
+        assertThat(shed.getMessage(), containsString("within 50 ms"));
+        assertThat(bulkhead.getTimeoutCount(), equalTo(1L));
+        assertThat(bulkhead.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    void testQueuedSearchRunsWhenASlotIsFree() throws Exception {
+
+        LdapBulkhead bulkhead = new LdapBulkhead("listener", 1, 1, 5000);
+        CompletableFuture<String> slow = blockingSearch(bulkhead);
+
+        CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return bulkhead.call(() -> "queued");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, callers);
+        release.countDown();
+
+        assertThat(slow.get(5, TimeUnit.SECONDS), equalTo("slow"));
+        assertThat(queued.get(5, TimeUnit.SECONDS), equalTo("queued"));
+        assertThat(bulkhead.getAdmittedCount(), equalTo(2L));
+        assertThat(bulkhead.getActiveCount(), equalTo(0));
+    }
+}
@@ -0,0 +1,113 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.config.LdapPoolSettings;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifFiles;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.redhat.sso.service.LdapService.LdapCtxCreationException;
+
+import javax.naming.NamingException;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+
+@ExtendWith(ApacheDSTestExtension.class)
+@CreateDS(name = "TestPoolDS", partitions = {@CreatePartition(name = "TestPartition", suffix = "dc=myorg,dc=com")}, allowAnonAccess = false)
+@ApplyLdifFiles({"users.ldif"})
+class LdapConnectionPoolTest extends AbstractLdapTestUnit {
+
+    private LdapConnectionPool newPool(int maxSize, long validationIntervalMillis) {
+        return new LdapConnectionPool(Arrays.asList("ldap://localhost:11391", "ldap://localhost:21391"),
+            "uid=admin,ou=system", "secret", new LdapPoolSettings(0, maxSize, 0, 100, validationIntervalMillis));
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11391)})
+    @Test
+    void testReleasedConnectionIsReused() throws NamingException {
+
+        try (LdapConnectionPool pool = newPool(2, 30000)) {
+            LdapConnectionPool.PooledConnection first = pool.borrow();
+            pool.release(first);
+            LdapConnectionPool.PooledConnection second = pool.borrow();
+            pool.release(second);
+
+            assertThat(second, sameInstance(first));
+            assertThat(pool.getCreatedCount(), equalTo(1L));
+            assertThat(pool.getBorrowCount(), equalTo(2L));
+        }
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11391)})
+    @Test
+    void testInvalidatedConnectionIsReplaced() throws NamingException {
+
+        try (LdapConnectionPool pool = newPool(2, 30000)) {
+            LdapConnectionPool.PooledConnection first = pool.borrow();
+            pool.invalidate(first);
+            LdapConnectionPool.PooledConnection second = pool.borrow();
+            pool.release(second);
+
+            assertThat(second, not(sameInstance(first)));
+            assertThat(pool.getCreatedCount(), equalTo(2L));
+            assertThat(pool.getDestroyedCount(), equalTo(1L));
+        }
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11391)})
+    @Test
+    void testIdleConnectionValidatedOnBorrow() throws NamingException {
+
+        try (LdapConnectionPool pool = newPool(2, 0)) {
+            pool.release(pool.borrow());
+            pool.release(pool.borrow());
+
+            assertThat(pool.getCreatedCount(), equalTo(1L));
+            assertThat(pool.getValidationFailureCount(), equalTo(0L));
+        }
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11391)})
+    @Test
+    void testBorrowOverflowsToTheNextServerWhenTheFirstIsExhausted() throws NamingException {
+
+        try (LdapConnectionPool pool = newPool(1, 30000)) {
+            LdapConnectionPool.PooledConnection first = pool.borrow();
+
+            // the only connection to the first server is in use and the second server is down
+            Assertions.assertThrows(LdapCtxCreationException.class, pool::borrow);
+            assertThat(pool.getBorrowTimeoutCount(), equalTo(1L));
+
+            pool.release(first);
+        }
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 21391)})
+    @Test
+    void testBorrowFromTheSecondServerWhenTheFirstIsDown() throws NamingException {
+
+        try (LdapConnectionPool pool = newPool(2, 30000)) {
+            LdapConnectionPool.PooledConnection connection = pool.borrow();
+
+            assertThat(connection.getUrl(), equalTo("ldap://localhost:21391"));
+            pool.release(connection);
+        }
+    }
+
+    @Test
+    void testExceptionWhenNoServerIsAvailable() {
+
+        try (LdapConnectionPool pool = newPool(2, 30000)) {
+            Assertions.assertThrows(LdapCtxCreationException.class, pool::borrow);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.service.LdapPriorityDispatcher.Priority;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.ServiceUnavailableException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+class LdapPriorityDispatcherTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void close() {
+        release.countDown();
+        callers.shutdownNow();
+    }
+
+    private CompletableFuture<String> search(LdapPriorityDispatcher dispatcher, Priority priority, String name, List<String> order) {
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return dispatcher.call(priority, () -> {
+                    order.add(name);
+                    return name;
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, callers);
+    }
+
+    /**
+     * Start a search holding its slot until the end of the test
+     */
+    private void blockingSearch(LdapPriorityDispatcher dispatcher, Priority priority) throws InterruptedException {
+
+        CountDownLatch started = new CountDownLatch(1);
+        callers.execute(() -> {
+            try {
+                dispatcher.call(priority, () -> {
+                    started.countDown();
+                    return release.await(5, TimeUnit.SECONDS);
+                });
+            } catch (Exception e) {
+                // the test fails on the started latch
+            }
+        });
+        started.await(5, TimeUnit.SECONDS);
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+
+    @Test
+    void testInteractiveSearchRunsBeforeTheWaitingBackgroundOnes() throws Exception {
+
+        LdapPriorityDispatcher dispatcher = new LdapPriorityDispatcher(1, 0, 5000);
+        List<String> order = new CopyOnWriteArrayList<>();
+        blockingSearch(dispatcher, Priority.BACKGROUND);
+
+        CompletableFuture<String> background = search(dispatcher, Priority.BACKGROUND, "listener", order);
+        waitUntil(() -> dispatcher.getWaitingCount(Priority.BACKGROUND) == 1);
+        CompletableFuture<String> interactive = search(dispatcher, Priority.INTERACTIVE, "mapper", order);
+        waitUntil(() -> dispatcher.getWaitingCount(Priority.INTERACTIVE) == 1);
+        release.countDown();
+
+        assertThat(interactive.get(5, TimeUnit.SECONDS), equalTo("mapper"));
+        assertThat(background.get(5, TimeUnit.SECONDS), equalTo("listener"));
+        assertThat(order, equalTo(Arrays.asList("mapper", "listener")));
+        assertThat(dispatcher.getDeferredCount(), equalTo(1L));
+        assertThat(dispatcher.getRunningCount(), equalTo(0));
+    }
+
+    @Test
+    void testBackgroundSearchesNeverUseTheReservedSlots() throws Exception {
+
+        LdapPriorityDispatcher dispatcher = new LdapPriorityDispatcher(2, 1, 50);
+        blockingSearch(dispatcher, Priority.BACKGROUND);
+
+        ServiceUnavailableException timeout = Assertions.assertThrows(ServiceUnavailableException.class,
+            () -> dispatcher.call(Priority.BACKGROUND, () -> "listener"));
+
+        assertThat(timeout.getMessage(), containsString("within 50 ms"));
+        assertThat(dispatcher.call(Priority.INTERACTIVE, () -> "mapper"), equalTo("mapper"));
+        assertThat(dispatcher.getTimeoutCount(), equalTo(1L));
+        assertThat(dispatcher.getInteractiveCount(), equalTo(1L));
+    }
+
+    @Test
+    void testInteractiveSearchTimesOutWhenAllTheSlotsAreBusy() throws Exception {
+
+        LdapPriorityDispatcher dispatcher = new LdapPriorityDispatcher(1, 0, 50);
+        blockingSearch(dispatcher, Priority.INTERACTIVE);
+
+        Assertions.assertThrows(ServiceUnavailableException.class, () -> dispatcher.call(Priority.INTERACTIVE, () -> "mapper"));
+
+        assertThat(dispatcher.getWaitingCount(Priority.INTERACTIVE), equalTo(0));
+        assertThat(dispatcher.getTimeoutCount(), equalTo(1L));
+    }
+}
@@ -0,0 +1,187 @@
+package com.redhat.sso.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+class LdapRequestHedgerTest {
+
+    private static final List<String> URLS = Arrays.asList("ldap://primary:389", "ldap://secondary:389");
+
+    private final LdapRequestHedger hedger = new LdapRequestHedger(95, 20, 20, 4);
+
+    @AfterEach
+    void close() {
+        hedger.close();
+    }
+
+    private static void sleep(long millis) {
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void testFastPrimaryIsNotHedged() throws NamingException {
+
+        assertThat(hedger.execute(URLS, url -> url), equalTo("ldap://primary:389"));
+        assertThat(hedger.getHedgedCount(), equalTo(0L));
+        assertThat(hedger.getHedgeWonCount(), equalTo(0L));
+    }
+
+    @Test
+    void testSlowPrimaryIsHedged() throws NamingException {
+
+        CountDownLatch cancelled = new CountDownLatch(1);
+        String result = hedger.execute(URLS, url -> {
+            if (url.equals("ldap://primary:389")) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    cancelled.countDown();
+                }
+            }
+            return url;
+        });
+
+        assertThat(result, equalTo("ldap://secondary:389"));
+        assertThat(hedger.getHedgedCount(), equalTo(1L));
+        assertThat(hedger.getHedgeWonCount(), equalTo(1L));
+        Assertions.assertDoesNotThrow(() -> Assertions.assertTrue(cancelled.await(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void testSlowPrimaryNotHedgedWithoutAFreeSlot() throws NamingException {
+
+        LdapPriorityDispatcher dispatcher = new LdapPriorityDispatcher(1, 0, 50);
+        String result = dispatcher.call(LdapPriorityDispatcher.Priority.INTERACTIVE, () -> hedger.execute(URLS, dispatcher, url -> {
+            sleep(100);
+            return url;
+        }));
+
+        assertThat(result, equalTo("ldap://primary:389"));
+        assertThat(hedger.getHedgedCount(), equalTo(0L));
+        assertThat(dispatcher.getHedgeCount(), equalTo(0L));
+        assertThat(dispatcher.getRunningCount(), equalTo(0));
+    }
+
+    @Test
+    void testHedgedRequestTakesAndReleasesASlot() throws NamingException {
+
+        LdapPriorityDispatcher dispatcher = new LdapPriorityDispatcher(2, 0, 50);
+        String result = dispatcher.call(LdapPriorityDispatcher.Priority.INTERACTIVE, () -> hedger.execute(URLS, dispatcher, url -> {
+            if (url.equals("ldap://primary:389")) {
+                sleep(5000);
+            }
+            return url;
+        }));
+
+        assertThat(result, equalTo("ldap://secondary:389"));
+        assertThat(dispatcher.getHedgeCount(), equalTo(1L));
+        assertThat(dispatcher.getRunningCount(), equalTo(0));
+    }
+
+    @Test
+    void testSlotOfAHedgeCancelledBeforeItsStartReleased() throws NamingException {
+
+        // a single thread: the hedge stays queued behind the primary, and doesn't start before the end of the test
+        CountDownLatch busy = new CountDownLatch(1);
+        AtomicInteger startedTasks = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable task) {
+                if (startedTasks.incrementAndGet() > 1) {
+                    try {
+                        busy.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        LdapRequestHedger queuedHedger = new LdapRequestHedger(95, 20, 20, executor);
+        LdapPriorityDispatcher dispatcher = new LdapPriorityDispatcher(2, 0, 50);
+
+        try {
+            String result = dispatcher.call(LdapPriorityDispatcher.Priority.INTERACTIVE, () -> queuedHedger.execute(URLS, dispatcher, url -> {
+                sleep(100);
+                return url;
+            }));
+
+            assertThat(result, equalTo("ldap://primary:389"));
+            assertThat(dispatcher.getHedgeCount(), equalTo(1L));
+            assertThat(dispatcher.getRunningCount(), equalTo(0));
+        } finally {
+            busy.countDown();
+            queuedHedger.close();
+        }
+    }
+
+    @Test
+    void testFailingPrimaryFallsBackImmediately() throws NamingException {
+
+        String result = hedger.execute(URLS, url -> {
+            if (url.equals("ldap://primary:389")) {
+                throw new CommunicationException("Connection refused");
+            }
+            return url;
+        });
+
+        assertThat(result, equalTo("ldap://secondary:389"));
+        assertThat(hedger.getHedgedCount(), equalTo(0L));
+    }
+
+    @Test
+    void testLastErrorWhenAllServersFail() {
+
+        NamingException exception = Assertions.assertThrows(NamingException.class, () -> hedger.execute(URLS, url -> {
+            throw new CommunicationException(url + " down");
+        }));
+        assertThat(exception.getMessage(), equalTo("ldap://secondary:389 down"));
+    }
+
+    @Test
+    void testRuntimeExceptionIsDefinitive() {
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> hedger.execute(URLS, url -> {
+            if (url.equals("ldap://primary:389")) {
+                throw new IllegalArgumentException("Found 0 record(s)");
+            }
+            return url;
+        }));
+        assertThat(hedger.getHedgedCount(), equalTo(0L));
+    }
+
+    @Test
+    void testDelayFollowsObservedLatencies() throws NamingException {
+
+        for (int i = 0; i < 20; i++) {
+            hedger.execute(URLS, url -> {
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return url;
+            });
+        }
+        assertThat(hedger.getDelayMillis(), greaterThanOrEqualTo(30L));
+    }
+}
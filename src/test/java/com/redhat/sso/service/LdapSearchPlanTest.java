@@ -0,0 +1,54 @@
+package com.redhat.sso.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.naming.directory.SearchControls;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.equalTo;
+
+class LdapSearchPlanTest {
+
+    private Map<String, String> attributeMapping() {
+        Map<String, String> attributeMapping = new LinkedHashMap<>();
+        attributeMapping.put("title", "titolo");
+        attributeMapping.put("employeeNumber", "numero");
+        return attributeMapping;
+    }
+
+    @Test
+    void testSearchControls() {
+
+        LdapSearchPlan plan = new LdapSearchPlan("ou=users,dc=ldap,dc=example,dc=com", "cn", attributeMapping());
+
+        SearchControls searchControls = plan.getSearchControls();
+        assertThat(searchControls.getSearchScope(), equalTo(SearchControls.SUBTREE_SCOPE));
+        assertThat(searchControls.getCountLimit(), equalTo(2L));
+        assertThat(searchControls.getReturningAttributes(), arrayContaining("title", "employeeNumber"));
+        assertThat(plan.getFilterExpression(), equalTo("(cn={0})"));
+        assertThat(plan.describeFilter("mario.rossi"), equalTo("(cn=mario.rossi)"));
+    }
+
+    @Test
+    void testMatches() {
+
+        LdapSearchPlan plan = new LdapSearchPlan("ou=users,dc=ldap,dc=example,dc=com", "cn", attributeMapping());
+
+        assertThat(plan.matches("ou=users,dc=ldap,dc=example,dc=com", "cn", attributeMapping()), equalTo(true));
+        assertThat(plan.matches("ou=users,dc=ldap,dc=example,dc=com", "uid", attributeMapping()), equalTo(false));
+        assertThat(plan.matches("ou=people,dc=ldap,dc=example,dc=com", "cn", attributeMapping()), equalTo(false));
+    }
+
+    @Test
+    void testBatchSearch() {
+
+        LdapSearchPlan plan = new LdapSearchPlan("ou=users,dc=ldap,dc=example,dc=com", "cn", attributeMapping());
+
+        assertThat(plan.getBatchFilterExpression(3), equalTo("(|(cn={0})(cn={1})(cn={2}))"));
+        assertThat(plan.getBatchControls().getReturningAttributes(), arrayContaining("title", "employeeNumber", "cn"));
+        assertThat(plan.getBatchControls().getCountLimit(), equalTo(0L));
+    }
+}
@@ -0,0 +1,126 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.config.BalancingPolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.CommunicationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+class LdapServerSelectorTest {
+
+    private static final String FIRST = "ldap://first:389";
+    private static final String SECOND = "ldap://second:389";
+    private static final String THIRD = "ldap://third:389";
+    private static final List<String> URLS = Arrays.asList(FIRST, SECOND, THIRD);
+
+    @Test
+    void testFailoverKeepsTheConfiguredOrder() {
+
+        try (LdapServerSelector selector = new LdapServerSelector(URLS, BalancingPolicy.FAILOVER, 0, 0, url -> {})) {
+            assertThat(selector.select(), contains(FIRST, SECOND, THIRD));
+            assertThat(selector.select(), contains(FIRST, SECOND, THIRD));
+        }
+    }
+
+    @Test
+    void testRoundRobinRotatesTheServers() {
+
+        try (LdapServerSelector selector = new LdapServerSelector(URLS, BalancingPolicy.ROUND_ROBIN, 0, 0, url -> {})) {
+            assertThat(selector.select(), contains(FIRST, SECOND, THIRD));
+            assertThat(selector.select(), contains(SECOND, THIRD, FIRST));
+            assertThat(selector.select(), contains(THIRD, FIRST, SECOND));
+        }
+    }
+
+    @Test
+    void testEwmaPrefersTheFasterOfTwoServers() {
+
+        try (LdapServerSelector selector = new LdapServerSelector(URLS, BalancingPolicy.EWMA, 0, 0, url -> {})) {
+            selector.recordSuccess(FIRST, 80);
+            selector.recordSuccess(SECOND, 5);
+            selector.recordSuccess(THIRD, 20);
+
+            Map<String, Integer> firstChoices = new HashMap<>();
+            for (int i = 0; i < 300; i++) {
+                List<String> selected = selector.select();
+                assertThat(selected, containsInAnyOrder(FIRST, SECOND, THIRD));
+                firstChoices.merge(selected.get(0), 1, Integer::sum);
+            }
+
+            // the slowest server loses every pick, the fastest doesn't get all the searches
+            assertThat(firstChoices.containsKey(FIRST), equalTo(false));
+            assertThat(firstChoices.get(SECOND), greaterThan(firstChoices.get(THIRD)));
+            assertThat(firstChoices.get(THIRD), greaterThan(0));
+        }
+    }
+
+    @Test
+    void testEwmaTriesTheOtherServersByLatency() {
+
+        try (LdapServerSelector selector = new LdapServerSelector(URLS, BalancingPolicy.EWMA, 0, 0, url -> {})) {
+            selector.recordSuccess(FIRST, 80);
+            selector.recordSuccess(SECOND, 5);
+            selector.recordSuccess(THIRD, 20);
+
+            for (int i = 0; i < 50; i++) {
+                List<String> selected = selector.select();
+                List<String> fallbacks = new ArrayList<>(Arrays.asList(SECOND, THIRD, FIRST));
+                fallbacks.remove(selected.get(0));
+                assertThat(selected.subList(1, selected.size()), equalTo(fallbacks));
+            }
+        }
+    }
+
+    @Test
+    void testServerEjectedAfterConsecutiveFailures() {
+
+        try (LdapServerSelector selector = new LdapServerSelector(URLS, BalancingPolicy.FAILOVER, 2, 60000, url -> {})) {
+            selector.recordFailure(FIRST);
+            selector.recordSuccess(FIRST, 10);
+            selector.recordFailure(FIRST);
+            Assertions.assertFalse(selector.isEjected(FIRST));
+
+            selector.recordFailure(FIRST);
+            Assertions.assertTrue(selector.isEjected(FIRST));
+            assertThat(selector.select(), contains(SECOND, THIRD, FIRST));
+            assertThat(selector.getEjectionCount(), equalTo(1L));
+        }
+    }
+
+    @Test
+    void testEjectedServerBackAfterSuccessfulProbe() throws InterruptedException {
+
+        AtomicBoolean down = new AtomicBoolean(true);
+        try (LdapServerSelector selector = new LdapServerSelector(URLS, BalancingPolicy.FAILOVER, 1, 100, url -> {
+            if (down.get()) {
+                throw new CommunicationException(url + " down");
+            }
+        })) {
+            selector.recordFailure(FIRST);
+            Assertions.assertTrue(selector.isEjected(FIRST));
+
+            Thread.sleep(300);
+            Assertions.assertTrue(selector.isEjected(FIRST));
+
+            down.set(false);
+            for (int i = 0; i < 50 && selector.isEjected(FIRST); i++) {
+                Thread.sleep(50);
+            }
+            Assertions.assertFalse(selector.isEjected(FIRST));
+            assertThat(selector.select(), contains(FIRST, SECOND, THIRD));
+            assertThat(selector.getRecoveryCount(), equalTo(1L));
+        }
+    }
+}
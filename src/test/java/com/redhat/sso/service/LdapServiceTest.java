@@ -7,15 +7,21 @@ import org.apache.directory.server.core.annotations.CreateDS;
 import org.apache.directory.server.core.annotations.CreatePartition;
 import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
 import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import com.redhat.sso.config.ProviderConfig;
 import com.redhat.sso.service.LdapService.LdapCtxCreationException;
+import com.redhat.sso.service.LdapService.UserNotUniqueException;
 
 import javax.naming.NamingException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.*;
@@ -30,6 +36,11 @@ class LdapServiceTest extends AbstractLdapTestUnit {
     private LdapService service = new LdapService(Arrays.asList("ldap://localhost:11390", "ldap://localhost:21390"),
         "uid=admin,ou=system", "secret");
 
+    @AfterEach
+    void closeService() {
+        service.close();
+    }
+
     @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
     @Test
     void testUserFoundWithUidFromRootDC() throws NamingException {
@@ -150,4 +161,175 @@ class LdapServiceTest extends AbstractLdapTestUnit {
         });
     }
 
-}
\ No newline at end of file
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testConnectionReusedBetweenSearches() throws NamingException {
+
+        Map<String, String> attributeMapping = new HashMap<>();
+        attributeMapping.put("title", "titolo");
+
+        service.searchUserOnExternalLDAP("dc=myorg,dc=com", "uid", "ldaptest1", attributeMapping);
+        service.searchUserOnExternalLDAP("dc=myorg,dc=com", "uid", "ldaptest1", attributeMapping);
+
+        assertThat(service.getConnectionPool().getCreatedCount(), equalTo(1L));
+        assertThat(service.getConnectionPool().getBorrowCount(), equalTo(2L));
+    }
+
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testUsernameIsEscapedInFilter() {
+
+        Map<String, String> attributeMapping = new HashMap<>();
+        attributeMapping.put("title", "titolo");
+
+        // without escaping (uid=ldaptest*) would match both users
+        UserNotUniqueException notFound = Assertions.assertThrows(UserNotUniqueException.class, () -> {
+            service.searchUserOnExternalLDAP("ou=Users,dc=myorg,dc=com", "uid", "ldaptest*", attributeMapping);
+        });
+
+        assertThat(notFound.getCount(), equalTo(0));
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testOnlyMappedAttributesAreReturned() throws NamingException {
+
+        Map<String, String> attributeMapping = new HashMap<>();
+        attributeMapping.put("title", "titolo");
+
+        Map<String, String> userAttributes = service.searchUser(
+            new LdapSearchPlan("dc=myorg,dc=com", "uid", attributeMapping), "ldaptest1");
+
+        assertThat(userAttributes.size(), equalTo(1));
+        assertThat(userAttributes.get("titolo"), equalTo("Worker"));
+    }
+
+
+    private LdapService newServiceWithDnLookup(String userDnTemplate, String dnCacheMaxSize) {
+
+        Map<String, String> env = new HashMap<>();
+        env.put(ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, "ldap://localhost:11390");
+        env.put(ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, "uid=admin,ou=system");
+        env.put(ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, "secret");
+        env.put(ProviderConfig.EXTERNAL_LDAP_USERS_DN, "ou=Users,dc=myorg,dc=com");
+        env.put(ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, "title=titolo");
+        env.put(ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, "uid");
+        env.put(ProviderConfig.EXTERNAL_LDAP_USER_DN_TEMPLATE, userDnTemplate);
+        env.put(ProviderConfig.EXTERNAL_LDAP_DN_CACHE_MAX_SIZE, dnCacheMaxSize);
+        return new LdapService(new ProviderConfig(env));
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testUserReadWithDnTemplate() throws NamingException {
+
+        LdapService dnService = newServiceWithDnLookup("cn={0},ou=Users,dc=myorg,dc=com", null);
+        try {
+            Map<String, String> userAttributes = dnService.searchUserOnExternalLDAP(
+                "ou=Users,dc=myorg,dc=com", "cn", "Test1 Ldap", Collections.singletonMap("title", "titolo"));
+
+            assertThat(userAttributes.get("titolo"), equalTo("Worker"));
+            assertThat(dnService.getDirectReadCount(), equalTo(1L));
+            assertThat(dnService.getDirectReadMissCount(), equalTo(0L));
+        } finally {
+            dnService.close();
+        }
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testFallbackToSearchWhenDnTemplateDoesNotMatch() throws NamingException {
+
+        LdapService dnService = newServiceWithDnLookup("uid={0},ou=Users,dc=myorg,dc=com", null);
+        try {
+            Map<String, String> userAttributes = dnService.searchUserOnExternalLDAP(
+                "ou=Users,dc=myorg,dc=com", "uid", "ldaptest1", Collections.singletonMap("title", "titolo"));
+
+            assertThat(userAttributes.get("titolo"), equalTo("Worker"));
+            assertThat(dnService.getDirectReadCount(), equalTo(0L));
+            assertThat(dnService.getDirectReadMissCount(), equalTo(1L));
+        } finally {
+            dnService.close();
+        }
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testDnRememberedAfterTheFirstSearch() throws NamingException {
+
+        LdapService dnService = newServiceWithDnLookup(null, "10");
+        try {
+            dnService.searchUserOnExternalLDAP("ou=Users,dc=myorg,dc=com", "uid", "ldaptest1", Collections.singletonMap("title", "titolo"));
+            Map<String, String> userAttributes = dnService.searchUserOnExternalLDAP(
+                "ou=Users,dc=myorg,dc=com", "uid", "ldaptest1", Collections.singletonMap("title", "titolo"));
+
+            assertThat(userAttributes.get("titolo"), equalTo("Worker"));
+            assertThat(dnService.getDirectReadCount(), equalTo(1L));
+        } finally {
+            dnService.close();
+        }
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testUsersFoundWithOneSearch() throws NamingException {
+
+        Map<String, Map<String, String>> usersAttributes = service.searchUsersOnExternalLDAP("ou=Users,dc=myorg,dc=com", "uid",
+            Arrays.asList("ldaptest1", "LdapTest2", "User Not Existent"), Collections.singletonMap("employeenumber", "numero"));
+
+        assertThat(usersAttributes.size(), equalTo(2));
+        assertThat(usersAttributes.get("ldaptest1").get("numero"), equalTo("42"));
+        assertThat(usersAttributes.get("LdapTest2").get("numero"), equalTo("43"));
+        assertThat(usersAttributes.get("ldaptest1").get("uid"), nullValue());
+        assertThat(service.getConnectionPool().getBorrowCount(), equalTo(1L));
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testAmbiguousUserMissingFromBatch() throws NamingException {
+
+        Map<String, Map<String, String>> usersAttributes = service.searchUsersOnExternalLDAP("ou=Users,dc=myorg,dc=com", "sn",
+            Collections.singletonList("Ldap"), Collections.singletonMap("title", "titolo"));
+
+        assertThat(usersAttributes.isEmpty(), equalTo(true));
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testUsersStreamedOnePageAtATime() throws NamingException {
+
+        List<Map<String, Map<String, String>>> pages = new ArrayList<>();
+
+        int count = service.streamUsersOnExternalLDAP("ou=Users,dc=myorg,dc=com", "uid",
+            Collections.singletonMap("employeenumber", "numero"), 1, pages::add);
+
+        assertThat(count, equalTo(2));
+        assertThat(pages.size(), equalTo(2));
+        assertThat(pages.get(0).size(), equalTo(1));
+        assertThat(pages.get(1).size(), equalTo(1));
+        Map<String, Map<String, String>> users = new HashMap<>(pages.get(0));
+        users.putAll(pages.get(1));
+        assertThat(users.get("ldaptest1").get("numero"), equalTo("42"));
+        assertThat(users.get("ldaptest2").get("numero"), equalTo("43"));
+        assertThat(service.getConnectionPool().getBorrowCount(), equalTo(0L));
+    }
+
+    @CreateLdapServer(transports = {@CreateTransport(protocol = "LDAP", address = "localhost", port = 11390)})
+    @Test
+    void testRetiredServiceClosedWhenTheLookupInProgressEnds() throws NamingException {
+
+        List<Boolean> closedAfterEachPage = new ArrayList<>();
+
+        int count = service.streamUsersOnExternalLDAP("ou=Users,dc=myorg,dc=com", "uid",
+            Collections.singletonMap("employeenumber", "numero"), 1, page -> {
+                service.closeWhenIdle();
+                closedAfterEachPage.add(service.isClosed());
+            });
+
+        assertThat(count, equalTo(2));
+        assertThat(closedAfterEachPage, equalTo(Arrays.asList(false, false)));
+        assertThat(service.isClosed(), equalTo(true));
+    }
+}
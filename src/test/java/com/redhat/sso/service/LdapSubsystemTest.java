@@ -0,0 +1,82 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.config.ProviderConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junitpioneer.jupiter.SetEnvironmentVariable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+@SetEnvironmentVariable.SetEnvironmentVariables({
+    @SetEnvironmentVariable(key = "EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS", value = "ldap://localhost:3389"),
+    @SetEnvironmentVariable(key = "EXTERNAL_LDAP_SECURITY_PRINCIPAL", value = "cn=admin,dc=ldap,dc=example,dc=com"),
+    @SetEnvironmentVariable(key = "EXTERNAL_LDAP_SECURITY_CREDENTIALS", value = "password"),
+    @SetEnvironmentVariable(key = "EXTERNAL_LDAP_USERS_DN", value = "ou=users,dc=ldap,dc=example,dc=com"),
+    @SetEnvironmentVariable(key = "EXTERNAL_LDAP_ATTRIBUTE_MAP", value = "employeeNumber=numero,title=titolo"),
+    @SetEnvironmentVariable(key = "EXTERNAL_LDAP_USERNAME_FILTER", value = "cn")
+})
+class LdapSubsystemTest {
+
+    private static final String CONFIG_FILE = "target/ldap-subsystem-test.properties";
+
+    @AfterEach
+    void shutdown() {
+        LdapSubsystem.shutdown();
+    }
+
+    @Test
+    void testOneSubsystemPerJvm() {
+
+        LdapSubsystem subsystem = LdapSubsystem.get();
+
+        assertThat(LdapSubsystem.get(), sameInstance(subsystem));
+        assertThat(LdapSubsystem.get().getUserService(), sameInstance(subsystem.getUserService()));
+        assertThat(subsystem.getConfig().getUsersDN(), equalTo("ou=users,dc=ldap,dc=example,dc=com"));
+    }
+
+    @Test
+    void testNewSubsystemAfterTheShutdown() {
+
+        LdapSubsystem subsystem = LdapSubsystem.get();
+        LdapSubsystem.shutdown();
+
+        assertThat(LdapSubsystem.get(), not(sameInstance(subsystem)));
+    }
+
+    @Test
+    @SetEnvironmentVariable(key = "EXTERNAL_LDAP_CONFIG_FILE", value = CONFIG_FILE)
+    @SetEnvironmentVariable(key = "EXTERNAL_LDAP_CONFIG_FILE_POLL_INTERVAL_MILLIS", value = "0")
+    void testConfigurationReloadedWhenTheFileChanges() throws IOException {
+
+        Path file = Paths.get(CONFIG_FILE);
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(file, Collections.singletonList("EXTERNAL_LDAP_USERS_DN=ou=people,dc=ldap,dc=example,dc=com"));
+        LdapSubsystem subsystem = LdapSubsystem.get();
+        ProviderConfig initial = subsystem.getConfig();
+
+        assertThat(initial.getUsersDN(), equalTo("ou=people,dc=ldap,dc=example,dc=com"));
+        assertThat(subsystem.reload(), is(false));
+
+        Files.write(file, Collections.singletonList("EXTERNAL_LDAP_USERS_DN=ou=staff,dc=ldap,dc=example,dc=com"));
+        assertThat(subsystem.reload(), is(true));
+        assertThat(subsystem.getConfig().getUsersDN(), equalTo("ou=staff,dc=ldap,dc=example,dc=com"));
+        assertThat(subsystem.getUserService().getConfig(), sameInstance(subsystem.getConfig()));
+
+        // an invalid configuration is discarded
+        Files.write(file, Collections.singletonList("EXTERNAL_LDAP_HEDGING_PERCENTILE=101"));
+        ProviderConfig reloaded = subsystem.getConfig();
+        assertThat(subsystem.reload(), is(false));
+        assertThat(subsystem.getConfig(), sameInstance(reloaded));
+        assertThat(initial, not(sameInstance(reloaded)));
+    }
+}
@@ -0,0 +1,164 @@
+package com.redhat.sso.service;
+
+import com.redhat.sso.config.ProviderConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RealmUserServicesTest {
+
+    private Map<String, String> environment;
+    private UserService defaultService;
+    private RealmUserServices userServices;
+
+    @BeforeEach
+    void init() {
+
+        environment = new HashMap<>();
+        environment.put(ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, "ldap://localhost:3389");
+        environment.put(ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, "cn=admin,dc=ldap,dc=example,dc=com");
+        environment.put(ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, "password");
+        environment.put(ProviderConfig.EXTERNAL_LDAP_USERS_DN, "ou=users,dc=ldap,dc=example,dc=com");
+        environment.put(ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, "employeeNumber=numero,title=titolo");
+        environment.put(ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, "cn");
+        ProviderConfig config = new ProviderConfig(environment);
+        defaultService = new UserService(new LdapService(config), config);
+        userServices = new RealmUserServices(defaultService, environment);
+    }
+
+    @AfterEach
+    void close() {
+        userServices.close();
+    }
+
+    private static RealmModel realm(String id, Map<String, String> attributes) {
+
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(id);
+        when(realm.getName()).thenReturn(id);
+        when(realm.getAttributes()).thenReturn(attributes);
+        return realm;
+    }
+
+    @Test
+    void testRealmWithoutSettingsServedByTheDefaultUserService() {
+
+        RealmModel realm = realm("master", Collections.singletonMap("displayName", "Master"));
+
+        assertThat(userServices.forRealm(realm), sameInstance(defaultService));
+        assertThat(userServices.forRealmId("master"), sameInstance(defaultService));
+        assertThat(userServices.isDefault(realm), is(true));
+    }
+
+    @Test
+    void testRealmWithSettingsServedByItsOwnUserService() {
+
+        RealmModel realm = realm("tenant", Collections.singletonMap(ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, "uid"));
+
+        UserService realmService = userServices.forRealm(realm);
+
+        assertThat(realmService, not(sameInstance(defaultService)));
+        assertThat(realmService.getConfig().getExternalUsernameFilter(), equalTo("uid"));
+        assertThat(realmService.getConfig().getUsersDN(), equalTo("ou=users,dc=ldap,dc=example,dc=com"));
+        assertThat(userServices.forRealm(realm), sameInstance(realmService));
+        assertThat(userServices.forRealmId("tenant"), sameInstance(realmService));
+        assertThat(userServices.isDefault(realm), is(false));
+    }
+
+    @Test
+    void testRealmReconfiguredWhenItsSettingsChange() {
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, "uid");
+        RealmModel realm = realm("tenant", attributes);
+        UserService realmService = userServices.forRealm(realm);
+
+        // an updated realm has a new attribute map
+        Map<String, String> updated = new HashMap<>(attributes);
+        updated.put(ProviderConfig.EXTERNAL_LDAP_POOL_MAX_SIZE, "2");
+        when(realm.getAttributes()).thenReturn(updated);
+
+        assertThat(userServices.forRealm(realm), sameInstance(realmService));
+        assertThat(realmService.getConfig().getPoolSettings().getMaxSize(), is(2));
+    }
+
+    @Test
+    void testExceptionOnInvalidRealmSettings() {
+
+        RealmModel realm = realm("tenant", Collections.singletonMap(ProviderConfig.EXTERNAL_LDAP_POOL_MAX_SIZE, "many"));
+
+        IllegalArgumentException illegalArgumentException = Assertions.assertThrows(IllegalArgumentException.class, () -> userServices.forRealm(realm));
+        assertThat(illegalArgumentException.getMessage(), containsString("realm tenant"));
+    }
+
+    @Test
+    void testNewConfigurationAppliedToTheRealmsKeepingTheirSettings() {
+
+        RealmModel realm = realm("tenant", Collections.singletonMap(ProviderConfig.EXTERNAL_LDAP_ATTRIBUTE_MAP, "title=titolo"));
+        UserService realmService = userServices.forRealm(realm);
+
+        Map<String, String> reloaded = new HashMap<>(environment);
+        reloaded.put(ProviderConfig.EXTERNAL_LDAP_USERNAME_FILTER, "uid");
+        userServices.reconfigure(reloaded, new ProviderConfig(reloaded));
+
+        assertThat(defaultService.getConfig().getExternalUsernameFilter(), equalTo("uid"));
+        assertThat(realmService.getConfig().getExternalUsernameFilter(), equalTo("uid"));
+        assertThat(realmService.getConfig().getExternalAttributes(), equalTo(Collections.singletonMap("title", "titolo")));
+        assertThat(userServices.forRealm(realm), sameInstance(realmService));
+    }
+
+    @Test
+    void testServerAndCredentialsOfARealmAttributeIgnored() {
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, "ldap://attacker:389");
+        attributes.put(ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, "cn=attacker");
+        attributes.put(ProviderConfig.EXTERNAL_LDAP_USERS_DN, "ou=admins,dc=ldap,dc=example,dc=com");
+        RealmModel realm = realm("tenant", attributes);
+
+        assertThat(userServices.forRealm(realm), sameInstance(defaultService));
+        assertThat(userServices.isDefault(realm), is(true));
+    }
+
+    @Test
+    void testRealmServerOfTheConfigurationWithItsOwnCredentials() {
+
+        environment.put("tenant." + ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, "ldap://tenant:389");
+        environment.put("tenant." + ProviderConfig.EXTERNAL_LDAP_SECURITY_PRINCIPAL, "cn=tenant,dc=ldap,dc=example,dc=com");
+        environment.put("tenant." + ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS, "tenant-password");
+        RealmModel realm = realm("tenant", Collections.emptyMap());
+
+        UserService realmService = userServices.forRealm(realm);
+
+        assertThat(realmService, not(sameInstance(defaultService)));
+        assertThat(realmService.getConfig().getProviderUrls(), equalTo(Collections.singletonList("ldap://tenant:389")));
+        assertThat(realmService.getConfig().getSecurityPrincipal(), equalTo("cn=tenant,dc=ldap,dc=example,dc=com"));
+        assertThat(userServices.forRealm(realm("other", Collections.emptyMap())), sameInstance(defaultService));
+    }
+
+    @Test
+    void testExceptionOnRealmServerWithTheGlobalCredentials() {
+
+        environment.put("tenant." + ProviderConfig.EXTERNAL_LDAP_FEDERATION_PROVIDER_URLS, "ldap://tenant:389");
+        RealmModel realm = realm("tenant", Collections.emptyMap());
+
+        IllegalArgumentException illegalArgumentException = Assertions.assertThrows(IllegalArgumentException.class, () -> userServices.forRealm(realm));
+        assertThat(illegalArgumentException.getMessage(), containsString(ProviderConfig.EXTERNAL_LDAP_SECURITY_CREDENTIALS));
+    }
+}
+}
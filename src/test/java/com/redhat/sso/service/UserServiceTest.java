@@ -1,29 +1,40 @@
 package com.redhat.sso.service;
 
 import com.redhat.sso.config.ProviderConfig;
+import com.redhat.sso.service.LdapService.UserNotUniqueException;
+import com.redhat.sso.utils.HashUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserProvider;
 import org.keycloak.models.cache.UserCache;
 import org.keycloak.storage.adapter.InMemoryUserAdapter;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import javax.naming.NamingException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -186,6 +197,67 @@ class UserServiceTest {
         verify(userModel, times(1)).setSingleAttribute(eq("numero"), any());
     }
 
+    @Test
+    void testUnchangedUserNotWritten() throws NamingException {
+
+        RealmModel realmModel = mock(RealmModel.class);
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, realmModel, "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        userModel.setSingleAttribute("titolo", "Developer");
+        userModel.setSingleAttribute("numero", "42");
+        Map<String, String> lastAttributes = new HashMap<>();
+        lastAttributes.put("numero", "42");
+        lastAttributes.put("titolo", "Developer");
+        userModel.setSingleAttribute(UserService.LDAP_ATTRIBUTES_FINGERPRINT, HashUtils.fingerprint(lastAttributes));
+        userModel = spy(userModel);
+        when(userProvider.getUserById(eq(realmModel), eq("mario.rossi"))).thenReturn(userModel);
+
+        // Given
+        initLdapMocks();
+
+        userService.updateUser(realmModel, keycloakSession, "mario.rossi");
+
+        verify(userModel, times(0)).setSingleAttribute(any(), any());
+        verify(keycloakSession, times(0)).userCache();
+        assertThat(userService.getUnchangedCount(), equalTo(1L));
+    }
+
+    @Test
+    void testOnlyChangedAttributesWritten() throws NamingException {
+
+        RealmModel realmModel = mock(RealmModel.class);
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        UserCache userCache = mock(UserCache.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+        when(keycloakSession.userCache()).thenReturn(userCache);
+
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, realmModel, "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        userModel.setSingleAttribute("titolo", "Developer");
+        userModel.setSingleAttribute("numero", "41");
+        userModel = spy(userModel);
+        UserModel cachedUserModel = mock(UserModel.class);
+        when(userProvider.getUserById(eq(realmModel), eq("mario.rossi"))).thenReturn(userModel);
+        when(userCache.getUserById(eq(realmModel), eq("mario.rossi"))).thenReturn(cachedUserModel);
+
+        // Given
+        initLdapMocks();
+
+        userService.updateUser(realmModel, keycloakSession, "mario.rossi");
+
+        verify(userModel, times(0)).setSingleAttribute(eq("titolo"), any());
+        verify(userModel, times(1)).setSingleAttribute("numero", "42");
+        verify(userModel, times(1)).setSingleAttribute(eq(UserService.LDAP_ATTRIBUTES_FINGERPRINT), any());
+        verify(cachedUserModel, times(0)).setSingleAttribute(eq("titolo"), any());
+        verify(cachedUserModel, times(1)).setSingleAttribute("numero", "42");
+        assertThat(userService.getWrittenAttributeCount(), equalTo(1L));
+    }
+
     @Test
     void testUpdateNotFoundUser() {
         RealmModel realmModel = mock(RealmModel.class);
@@ -203,4 +275,436 @@ class UserServiceTest {
         assertThat(userNotFound.getMessage(), equalTo("User with id non.existent not found"));
     }
 
-}
\ No newline at end of file
+    @Test
+    void testUpdatedUserMarkedAsRecentlySynchronized() throws NamingException {
+
+        // Given
+        when(providerConfig.getResyncMarkerMaxSize()).thenReturn(10);
+        when(providerConfig.getMinResyncIntervalMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+
+        RealmModel realmModel = mock(RealmModel.class);
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        when(realmModel.getId()).thenReturn("rhsso.EventListener-v1");
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, realmModel, "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userProvider.getUserById(eq(realmModel), eq("mario.rossi"))).thenReturn(userModel);
+
+        KeycloakTransactionManager transactionManager = mock(KeycloakTransactionManager.class);
+        when(keycloakSession.getTransactionManager()).thenReturn(transactionManager);
+
+        assertThat(userService.isRecentlySynchronized("rhsso.EventListener-v1", "mario.rossi"), equalTo(false));
+        userService.updateUser(realmModel, keycloakSession, "mario.rossi");
+
+        ArgumentCaptor<KeycloakTransaction> afterCompletion = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(afterCompletion.capture());
+        // not marked before the commit
+        assertThat(userService.isRecentlySynchronized("rhsso.EventListener-v1", "mario.rossi"), equalTo(false));
+        afterCompletion.getValue().begin();
+        afterCompletion.getValue().commit();
+
+        assertThat(userService.isRecentlySynchronized("rhsso.EventListener-v1", "mario.rossi"), equalTo(true));
+        assertThat(userService.isRecentlySynchronized("other-realm", "mario.rossi"), equalTo(false));
+    }
+
+    @Test
+    void testRolledBackUserNotMarkedAsRecentlySynchronized() throws NamingException {
+
+        // Given
+        when(providerConfig.getResyncMarkerMaxSize()).thenReturn(10);
+        when(providerConfig.getMinResyncIntervalMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+
+        RealmModel realmModel = mock(RealmModel.class);
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        when(realmModel.getId()).thenReturn("rhsso.EventListener-v1");
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, realmModel, "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userProvider.getUserById(eq(realmModel), eq("mario.rossi"))).thenReturn(userModel);
+        KeycloakTransactionManager transactionManager = mock(KeycloakTransactionManager.class);
+        when(keycloakSession.getTransactionManager()).thenReturn(transactionManager);
+
+        // When
+        userService.updateUser(realmModel, keycloakSession, "mario.rossi");
+        ArgumentCaptor<KeycloakTransaction> afterCompletion = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(afterCompletion.capture());
+        afterCompletion.getValue().begin();
+        afterCompletion.getValue().rollback();
+
+        // Then
+        assertThat(userService.isRecentlySynchronized("rhsso.EventListener-v1", "mario.rossi"), equalTo(false));
+    }
+
+    @Test
+    void testSynchronizedAttributesReadFromTheUser() throws NamingException {
+
+        // Given
+        Map<String, String> externalAttributes = new HashMap<>();
+        externalAttributes.put("title", "titolo");
+        externalAttributes.put("employeeNumber", "numero");
+        when(providerConfig.getExternalAttributes()).thenReturn(externalAttributes);
+        when(providerConfig.getLocalClaimsMaxAgeMillis()).thenReturn(60000L);
+        initLdapMocks();
+
+        RealmModel realmModel = mock(RealmModel.class);
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, realmModel, "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userProvider.getUserById(eq(realmModel), eq("mario.rossi"))).thenReturn(userModel);
+
+        assertThat(userService.getSynchronizedAttributes(userModel).isPresent(), equalTo(false));
+        userService.updateUser(realmModel, keycloakSession, "mario.rossi");
+
+        Map<String, String> attributes = userService.getSynchronizedAttributes(userModel).orElseThrow(IllegalStateException::new);
+        assertThat(attributes.size(), equalTo(2));
+        assertThat(attributes.get("titolo"), equalTo("Developer"));
+        assertThat(attributes.get("numero"), equalTo("42"));
+
+        // changed on Keycloak after the synchronization
+        userModel.setSingleAttribute("numero", "43");
+        assertThat(userService.getSynchronizedAttributes(userModel).isPresent(), equalTo(false));
+        assertThat(userService.getLocalClaimsCount(), equalTo(1L));
+        assertThat(userService.getStaleLocalClaimsCount(), equalTo(2L));
+    }
+
+    @Test
+    void testStaleSynchronizedAttributesNotRead() {
+
+        // Given
+        when(providerConfig.getLocalClaimsMaxAgeMillis()).thenReturn(60000L);
+
+        UserModel userModel = new InMemoryUserAdapter(mock(KeycloakSession.class), mock(RealmModel.class), "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        userModel.setSingleAttribute("titolo", "Developer");
+        userModel.setSingleAttribute(UserService.LDAP_ATTRIBUTES_FINGERPRINT, HashUtils.fingerprint(Collections.singletonMap("titolo", "Developer")));
+        userModel.setSingleAttribute(UserService.LDAP_ATTRIBUTES_SYNCHRONIZED_AT, String.valueOf(System.currentTimeMillis() - 60001));
+
+        assertThat(userService.getSynchronizedAttributes(userModel).isPresent(), equalTo(false));
+        assertThat(userService.getStaleLocalClaimsCount(), equalTo(1L));
+    }
+
+    @Test
+    void testNoUserMarkedWithoutMinResyncInterval() throws NamingException {
+
+        // Given
+        initLdapMocks();
+        RealmModel realmModel = mock(RealmModel.class);
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+        UserModel userModel = new InMemoryUserAdapter(keycloakSession, realmModel, "mario.rossi");
+        userModel.setUsername("mario.rossi");
+        when(userProvider.getUserById(eq(realmModel), eq("mario.rossi"))).thenReturn(userModel);
+
+        userService.updateUser(realmModel, keycloakSession, "mario.rossi");
+
+        assertThat(userService.isRecentlySynchronized(realmModel.getId(), "mario.rossi"), equalTo(false));
+    }
+
+    @Test
+    void testQueryServedFromCache() throws NamingException {
+
+        // Given
+        when(providerConfig.getCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getCacheTtlMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+
+        userService.queryLDAP("mario.rossi");
+        Map<String, String> actualResult = userService.queryLDAP("mario.rossi");
+
+        assertThat(actualResult.get("titolo"), equalTo("Developer"));
+        verify(ldapService, times(1)).searchUserOnExternalLDAP(any(), any(), eq("mario.rossi"), any());
+        assertThat(userService.getAttributeCacheStats().getHitCount(), equalTo(1L));
+        assertThat(userService.getAttributeCacheStats().getMissCount(), equalTo(1L));
+    }
+
+
+    @Test
+    void testReconfigureReplacesTheLdapServiceAndTheCaches() throws NamingException {
+
+        // Given
+        when(providerConfig.getCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getCacheTtlMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+        userService.queryLDAP("mario.rossi");
+
+        LdapService reloadedLdapService = mock(LdapService.class);
+        when(reloadedLdapService.searchUserOnExternalLDAP(any(), any(), eq("mario.rossi"), any()))
+            .thenReturn(Collections.singletonMap("titolo", "Architect"));
+        ProviderConfig reloadedConfig = mock(ProviderConfig.class);
+        when(reloadedConfig.getCacheMaxSize()).thenReturn(10);
+        when(reloadedConfig.getCacheTtlMillis()).thenReturn(30000L);
+
+        // When
+        LdapService retired = userService.reconfigure(reloadedLdapService, reloadedConfig);
+        Map<String, String> actualResult = userService.queryLDAP("mario.rossi");
+
+        // Then
+        assertThat(retired, sameInstance(ldapService));
+        assertThat(userService.getConfig(), sameInstance(reloadedConfig));
+        assertThat(actualResult.get("titolo"), equalTo("Architect"));
+        verify(ldapService, times(1)).searchUserOnExternalLDAP(any(), any(), eq("mario.rossi"), any());
+        assertThat(userService.getAttributeCacheStats().getMissCount(), equalTo(1L));
+    }
+
+    @Test
+    void testReconfigureWithTheSameLdapSettingsKeepsTheLdapService() throws NamingException {
+
+        // Given
+        initLdapMocks();
+        ProviderConfig reloadedConfig = mock(ProviderConfig.class);
+
+        // When
+        userService.reconfigure(reloadedConfig);
+        Map<String, String> actualResult = userService.queryLDAP("mario.rossi");
+
+        // Then
+        assertThat(userService.getConfig(), sameInstance(reloadedConfig));
+        assertThat(actualResult.get("titolo"), equalTo("Developer"));
+        verify(ldapService, times(1)).searchUserOnExternalLDAP(any(), any(), eq("mario.rossi"), any());
+    }
+
+    @Test
+    void testReconfigureKeepsTheCachesWhoseSettingsAreUnchanged() throws NamingException {
+
+        // Given
+        when(providerConfig.getCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getCacheTtlMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+        userService.queryLDAP("mario.rossi");
+
+        LdapService reloadedLdapService = mock(LdapService.class);
+
+        // When
+        LdapService retired = userService.reconfigure(reloadedLdapService, providerConfig);
+        Map<String, String> actualResult = userService.queryLDAP("mario.rossi");
+
+        // Then
+        assertThat(retired, sameInstance(ldapService));
+        assertThat(actualResult.get("titolo"), equalTo("Developer"));
+        verify(reloadedLdapService, never()).searchUserOnExternalLDAP(any(), any(), any(), any());
+        assertThat(userService.getAttributeCacheStats().getHitCount(), equalTo(1L));
+    }
+
+    @Test
+    void testQueryOnlyTheAttributesOfTheSubset() throws NamingException {
+
+        // Given
+        Map<String, String> externalAttributes = new HashMap<>();
+        externalAttributes.put("title", "titolo");
+        externalAttributes.put("employeeNumber", "numero");
+        when(providerConfig.getExternalAttributes()).thenReturn(externalAttributes);
+        when(providerConfig.getCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getCacheTtlMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        when(ldapService.searchUserOnExternalLDAP(any(), any(), eq("mario.rossi"), eq(Collections.singletonMap("title", "titolo"))))
+            .thenReturn(Collections.singletonMap("titolo", "Developer"));
+
+        userService.queryLDAP("mario.rossi", Collections.singleton("title"));
+        Map<String, String> actualResult = userService.queryLDAP("mario.rossi", Collections.singleton("title"));
+
+        assertThat(actualResult.size(), equalTo(1));
+        assertThat(actualResult.get("titolo"), equalTo("Developer"));
+        verify(ldapService, times(1)).searchUserOnExternalLDAP(any(), any(), eq("mario.rossi"), any());
+    }
+
+    @Test
+    void testSubsetOfUnknownAttributesNeitherSearchedNorCached() throws NamingException {
+
+        // Given
+        Map<String, String> externalAttributes = new HashMap<>();
+        externalAttributes.put("title", "titolo");
+        externalAttributes.put("employeeNumber", "numero");
+        when(providerConfig.getExternalAttributes()).thenReturn(externalAttributes);
+        when(providerConfig.getCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getCacheTtlMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+
+        Map<String, String> unknownResult = userService.queryLDAP("mario.rossi", Collections.singleton("unknown"));
+        Map<String, String> actualResult = userService.queryLDAP("mario.rossi");
+
+        assertThat(unknownResult.isEmpty(), equalTo(true));
+        assertThat(actualResult.get("titolo"), equalTo("Developer"));
+        verify(ldapService, times(1)).searchUserOnExternalLDAP(any(), any(), eq("mario.rossi"), any());
+    }
+
+    @Test
+    void testSubsetServedFromTheCacheOfAllTheAttributes() throws NamingException {
+
+        // Given
+        Map<String, String> externalAttributes = new HashMap<>();
+        externalAttributes.put("title", "titolo");
+        externalAttributes.put("employeeNumber", "numero");
+        when(providerConfig.getExternalAttributes()).thenReturn(externalAttributes);
+        when(providerConfig.getCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getCacheTtlMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+
+        userService.queryLDAP("mario.rossi");
+        Map<String, String> actualResult = userService.queryLDAP("mario.rossi", Collections.singleton("employeeNumber"));
+
+        assertThat(actualResult.size(), equalTo(1));
+        assertThat(actualResult.get("numero"), equalTo("42"));
+        verify(ldapService, times(1)).searchUserOnExternalLDAP(any(), any(), eq("mario.rossi"), any());
+    }
+
+    @Test
+    void testUserNotFoundServedFromNegativeCache() throws NamingException {
+
+        // Given
+        when(providerConfig.getNegativeCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getNegativeCacheTtlMillis()).thenReturn(10000L);
+        userService = new UserService(ldapService, providerConfig);
+        when(ldapService.searchUserOnExternalLDAP(any(), any(), eq("internal.user"), any()))
+            .thenThrow(new UserNotUniqueException("Found 0 record(s)", 0));
+
+        assertThrows(UserNotUniqueException.class, () -> userService.queryLDAP("internal.user"));
+        UserNotUniqueException notFound = assertThrows(UserNotUniqueException.class, () -> userService.queryLDAP("internal.user"));
+
+        assertThat(notFound.getMessage(), equalTo("Found 0 record(s)"));
+        assertThat(notFound.isNotFound(), equalTo(true));
+        verify(ldapService, times(1)).searchUserOnExternalLDAP(any(), any(), eq("internal.user"), any());
+        assertThat(userService.getNegativeCacheStats().getHitCount(), equalTo(1L));
+    }
+
+    @Test
+    void testAsyncQueryRunsOnTheLdapExecutor() throws Exception {
+
+        // Given
+        when(providerConfig.getCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getCacheTtlMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+        try (LdapAsyncExecutor executor = new LdapAsyncExecutor(1, 1, 5000)) {
+            doAnswer(invocationOnMock -> executor.submit(invocationOnMock.getArgument(0)))
+                .when(ldapService).supplyAsync(any());
+
+            Map<String, String> actualResult = userService.queryLDAPAsync("mario.rossi").get(5, TimeUnit.SECONDS);
+            CompletableFuture<Map<String, String>> cachedResult = userService.queryLDAPAsync("mario.rossi");
+
+            assertThat(actualResult.get("titolo"), equalTo("Developer"));
+            assertThat(cachedResult.isDone(), equalTo(true));
+            assertThat(cachedResult.get(), equalTo(actualResult));
+            verify(ldapService, times(1)).supplyAsync(any());
+        }
+    }
+
+    @Test
+    void testBatchQuerySearchesOnlyUncachedUsers() throws NamingException {
+
+        // Given
+        when(providerConfig.getCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getCacheTtlMillis()).thenReturn(60000L);
+        userService = new UserService(ldapService, providerConfig);
+        initLdapMocks();
+        userService.queryLDAP("mario.rossi");
+        Map<String, String> verdiAttributes = new HashMap<>();
+        verdiAttributes.put("titolo", "Manager");
+        when(ldapService.searchUsersOnExternalLDAP(any(), any(), eq(Arrays.asList("luigi.verdi", "user_not_exists")), any()))
+            .thenReturn(Collections.singletonMap("luigi.verdi", verdiAttributes));
+
+        Map<String, Map<String, String>> actualResult = userService.queryLDAP(Arrays.asList("mario.rossi", "luigi.verdi", "user_not_exists"));
+
+        assertThat(actualResult.size(), equalTo(2));
+        assertThat(actualResult.get("mario.rossi").get("titolo"), equalTo("Developer"));
+        assertThat(actualResult.get("luigi.verdi").get("titolo"), equalTo("Manager"));
+        assertThat(userService.queryLDAP("luigi.verdi").get("titolo"), equalTo("Manager"));
+    }
+
+    @Test
+    void testUserMissingFromTheBatchServedFromNegativeCache() throws NamingException {
+
+        // Given
+        when(providerConfig.getNegativeCacheMaxSize()).thenReturn(10);
+        when(providerConfig.getNegativeCacheTtlMillis()).thenReturn(10000L);
+        userService = new UserService(ldapService, providerConfig);
+        when(ldapService.searchUsersOnExternalLDAP(any(), any(), eq(Arrays.asList("internal.user")), any()))
+            .thenReturn(Collections.emptyMap());
+
+        assertThat(userService.queryLDAP(Arrays.asList("internal.user")).isEmpty(), equalTo(true));
+        assertThrows(UserNotUniqueException.class, () -> userService.queryLDAP("internal.user"));
+        assertThat(userService.queryLDAP(Arrays.asList("internal.user")).isEmpty(), equalTo(true));
+
+        verify(ldapService, times(1)).searchUsersOnExternalLDAP(any(), any(), any(), any());
+        verify(ldapService, never()).searchUserOnExternalLDAP(any(), any(), any(), any());
+    }
+
+    @Test
+    void testUpdateUsersOfABatch() throws NamingException {
+
+        // Given
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        RealmModel realmModel = mock(RealmModel.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        UserModel marioRossi = spy(new InMemoryUserAdapter(keycloakSession, realmModel, "1"));
+        marioRossi.setUsername("mario.rossi");
+        UserModel userNotExists = spy(new InMemoryUserAdapter(keycloakSession, realmModel, "2"));
+        userNotExists.setUsername("user_not_exists");
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+        when(userProvider.getUserById(realmModel, "1")).thenReturn(marioRossi);
+        when(userProvider.getUserById(realmModel, "2")).thenReturn(userNotExists);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("titolo", "Developer");
+        when(ldapService.searchUsersOnExternalLDAP(any(), any(), eq(Arrays.asList("mario.rossi", "user_not_exists")), any()))
+            .thenReturn(Collections.singletonMap("mario.rossi", attributes));
+
+        int updated = userService.updateUsers(realmModel, keycloakSession, Arrays.asList("1", "2", "3"));
+
+        assertThat(updated, equalTo(1));
+        verify(marioRossi, times(1)).setSingleAttribute("titolo", "Developer");
+        verify(userNotExists, times(0)).setSingleAttribute(any(), any());
+    }
+
+    @Test
+    void testReconcileOnlyUsersOfTheRealm() {
+
+        // Given
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        RealmModel realmModel = mock(RealmModel.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        UserModel marioRossi = spy(new InMemoryUserAdapter(keycloakSession, realmModel, "1"));
+        marioRossi.setUsername("mario.rossi");
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+        when(userProvider.getUserByUsername(realmModel, "mario.rossi")).thenReturn(marioRossi);
+        Map<String, Map<String, String>> usersAttributes = new HashMap<>();
+        usersAttributes.put("mario.rossi", Collections.singletonMap("titolo", "Developer"));
+        usersAttributes.put("other.realm.user", Collections.singletonMap("titolo", "Manager"));
+
+        int found = userService.reconcileUsers(realmModel, keycloakSession, usersAttributes);
+
+        assertThat(found, equalTo(1));
+        verify(marioRossi, times(1)).setSingleAttribute("titolo", "Developer");
+    }
+
+    @Test
+    void testUpdatedUserWithAttributesMemoizedInTheSession() throws NamingException {
+
+        RealmModel realmModel = mock(RealmModel.class);
+        KeycloakSession keycloakSession = mock(KeycloakSession.class);
+        UserProvider userProvider = mock(UserProvider.class);
+        when(keycloakSession.userLocalStorage()).thenReturn(userProvider);
+        UserModel userModel = spy(new InMemoryUserAdapter(keycloakSession, realmModel, "mario.rossi"));
+        userModel.setUsername("mario.rossi");
+        when(userProvider.getUserById(eq(realmModel), eq("mario.rossi"))).thenReturn(userModel);
+        // attributes already searched by the token mappers of the request
+        when(keycloakSession.getAttribute(any())).thenReturn(Collections.singletonMap("titolo", "Developer"));
+
+        userService.updateUser(realmModel, keycloakSession, "mario.rossi");
+
+        verify(userModel, times(1)).setSingleAttribute("titolo", "Developer");
+        verify(ldapService, times(0)).searchUserOnExternalLDAP(any(), any(), any(), any());
+    }
+}